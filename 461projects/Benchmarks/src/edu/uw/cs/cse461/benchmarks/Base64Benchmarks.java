@@ -0,0 +1,41 @@
+package edu.uw.cs.cse461.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import edu.uw.cs.cse461.util.Base64;
+
+/**
+ * Base64.encodeBytes() and decode(String), the calls DataXferRPC makes on each transfer, across payload sizes.
+ */
+public class Base64Benchmarks {
+	static final int[] SIZES = { 16, 1024, 64 * 1024, 1024 * 1024 };
+
+	public static List<Benchmark> all() {
+		List<Benchmark> list = new ArrayList<Benchmark>();
+		for (int size : SIZES) {
+			final byte[] raw = randomBytes(size);
+			final String encoded = Base64.encodeBytes(raw);
+			list.add(new Benchmark("Base64.encodeBytes/" + size) {
+				@Override
+				public Object op() {
+					return Base64.encodeBytes(raw);
+				}
+			});
+			list.add(new Benchmark("Base64.decode/" + size) {
+				@Override
+				public Object op() throws Exception {
+					return Base64.decode(encoded);
+				}
+			});
+		}
+		return list;
+	}
+
+	static byte[] randomBytes(int size) {
+		byte[] bytes = new byte[size];
+		new Random(size).nextBytes(bytes);
+		return bytes;
+	}
+}
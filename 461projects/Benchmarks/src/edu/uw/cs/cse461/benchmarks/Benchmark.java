@@ -0,0 +1,34 @@
+package edu.uw.cs.cse461.benchmarks;
+
+/**
+ * One microbenchmark: an operation that BenchmarkRunner calls repeatedly, timing the calls and counting
+ * the bytes they allocate.
+ * <p>
+ * op() should return something computed from its work (the decoded bytes, say), so the JIT can't
+ * eliminate the work as dead code.  The runner folds every result into a sink it publishes.
+ */
+public abstract class Benchmark {
+	private final String mName;
+
+	protected Benchmark(String name) {
+		mName = name;
+	}
+
+	public String name() {
+		return mName;
+	}
+
+	/**
+	 * Called once, before any op() calls.  Allocation here isn't counted.
+	 */
+	public void setUp() throws Exception {
+	}
+
+	/**
+	 * Called once, after the last op() call.
+	 */
+	public void tearDown() throws Exception {
+	}
+
+	public abstract Object op() throws Exception;
+}
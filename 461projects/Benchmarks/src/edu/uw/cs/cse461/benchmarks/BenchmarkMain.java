@@ -0,0 +1,82 @@
+package edu.uw.cs.cse461.benchmarks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.PosixParser;
+
+import edu.uw.cs.cse461.net.base.NetBase;
+import edu.uw.cs.cse461.net.base.NetBaseConsole;
+import edu.uw.cs.cse461.net.rpc.RPCMessageBenchmarks;
+import edu.uw.cs.cse461.util.ConfigManager;
+import edu.uw.cs.cse461.util.IPFinder;
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * Runs the microbenchmarks of the message hot path: TCPMessageHandler framing, RPC message
+ * marshalling and dispatch, and Base64.  For example, to run just the Base64 ones:
+ * <pre>
+ *   java edu.uw.cs.cse461.benchmarks.BenchmarkMain -b 'Base64.*'
+ * </pre>
+ * The message classes need a NetBase (for the host name and the config), so one is booted from the
+ * config file, which should load no services or apps.
+ */
+public class BenchmarkMain {
+
+	public static void main(String[] args) throws Exception {
+		Options options = new Options();
+		options.addOption("f", "configfile", true, "Path name of config file (Default: ../ConfigFiles/benchmark.config.ini)");
+		options.addOption("b", "benchmarks", true, "Regular expression selecting the benchmarks to run (Default: all)");
+		options.addOption("w", "warmup", true, "Warmup iterations (Default: 3)");
+		options.addOption("i", "iterations", true, "Measurement iterations (Default: 5)");
+		options.addOption("t", "time", true, "Length of each iteration, in msec. (Default: 1000)");
+		options.addOption("l", "list", false, "List the benchmarks, without running them");
+		options.addOption("H", "help", false, "Print this message");
+
+		CommandLineParser parser = new PosixParser();
+		CommandLine line = parser.parse(options, args);
+		if ( line.hasOption("help") ) {
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp("java BenchmarkMain", options);
+			return;
+		}
+
+		File configFile = new File(line.getOptionValue("configfile", "../ConfigFiles/benchmark.config.ini"));
+		if ( !configFile.canRead() ) {
+			System.err.println("Can't read config file " + configFile.getCanonicalPath());
+			System.exit(-1);
+		}
+		ConfigManager configMgr = new ConfigManager(new FileInputStream(configFile));
+		Log.setShowLog(configMgr.getAsInt("debug.enable", 1) != 0);
+		Log.setLevel(configMgr.getAsInt("debug.level", Log.DebugLevel.WARN.toInt()));
+		IPFinder.setIP(configMgr.getProperty("net.host.ip", "localhost"));
+		new NetBaseConsole(configMgr);
+
+		try {
+			List<Benchmark> all = new ArrayList<Benchmark>();
+			all.addAll(TCPMessageHandlerBenchmarks.all());
+			all.addAll(RPCMessageBenchmarks.all());
+			all.addAll(Base64Benchmarks.all());
+
+			Pattern selected = Pattern.compile(line.getOptionValue("benchmarks", ".*"));
+			BenchmarkRunner runner = new BenchmarkRunner(Integer.parseInt(line.getOptionValue("warmup", "3")),
+														 Integer.parseInt(line.getOptionValue("iterations", "5")),
+														 Integer.parseInt(line.getOptionValue("time", "1000")));
+			if ( !line.hasOption("list") ) System.out.println(BenchmarkRunner.header());
+			for (Benchmark benchmark : all) {
+				if ( !selected.matcher(benchmark.name()).matches() ) continue;
+				if ( line.hasOption("list") ) System.out.println(benchmark.name());
+				else System.out.println(runner.run(benchmark));
+			}
+		} finally {
+			NetBase.theNetBase().shutdown();
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package edu.uw.cs.cse461.benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * Runs Benchmarks: some warmup iterations, whose results are discarded, then measurement iterations.
+ * Each iteration calls op() for a fixed time.  For each benchmark it reports throughput (the mean and standard
+ * deviation over the measurement iterations), and the bytes allocated per op and the allocation rate.
+ * <p>
+ * Allocation is counted by HotSpot's per-thread allocation counters (com.sun.management.ThreadMXBean), summed over
+ * all live threads, so it includes the work of helper threads, like the peer of a loopback connection.  Like
+ * JMH's gc profiler, it counts bytes allocated, not bytes collected.  On JVMs without the counters it's reported as
+ * unavailable.
+ */
+public class BenchmarkRunner {
+	private static final String TAG = "BenchmarkRunner";
+
+	/**
+	 * op() is called in batches, and the clock read once per batch.  Warmup grows the batch until one takes at least this long.
+	 */
+	private static final long BATCH_NSEC = 100 * 1000L;
+
+	private final int mWarmupIterations;
+	private final int mIterations;
+	private final long mIterationNsec;
+
+	/**
+	 * Holds each op() result, so the JIT can't discard the work that computed it
+	 */
+	private volatile Object mSink;
+
+	public BenchmarkRunner(int warmupIterations, int iterations, int iterationMsec) {
+		mWarmupIterations = warmupIterations;
+		mIterations = iterations;
+		mIterationNsec = iterationMsec * 1000000L;
+	}
+
+	public static String header() {
+		return String.format("%-44s %14s %12s %10s %12s %12s", "Benchmark", "ops/sec", "+-", "nsec/op", "B/op", "alloc MB/sec");
+	}
+
+	/**
+	 * Runs the benchmark, returning its line of the report.
+	 */
+	public String run(Benchmark benchmark) throws Exception {
+		benchmark.setUp();
+		try {
+			int batch = 1;
+			for (int i = 0; i < mWarmupIterations; i++) {
+				long deadline = System.nanoTime() + mIterationNsec;
+				long now;
+				do {
+					long start = System.nanoTime();
+					runBatch(benchmark, batch);
+					now = System.nanoTime();
+					if ( now - start < BATCH_NSEC && batch < (1 << 30) ) batch *= 2;
+				} while ( now < deadline );
+			}
+
+			double[] opsPerSec = new double[mIterations];
+			long totalOps = 0;
+			long totalNsec = 0;
+			long allocated = 0;
+			for (int i = 0; i < mIterations; i++) {
+				long ops = 0;
+				long allocStart = allocatedBytes();
+				long start = System.nanoTime();
+				long deadline = start + mIterationNsec;
+				long now;
+				do {
+					runBatch(benchmark, batch);
+					ops += batch;
+					now = System.nanoTime();
+				} while ( now < deadline );
+				long allocEnd = allocatedBytes();
+
+				opsPerSec[i] = ops * 1.0e9 / (now - start);
+				totalOps += ops;
+				totalNsec += now - start;
+				allocated = allocStart < 0 || allocEnd < 0 || allocated < 0 ? -1 : allocated + allocEnd - allocStart;
+			}
+
+			double mean = 0.0;
+			for (double x : opsPerSec) mean += x;
+			mean /= mIterations;
+			double var = 0.0;
+			for (double x : opsPerSec) var += (x - mean) * (x - mean);
+			double stdev = mIterations > 1 ? Math.sqrt(var / (mIterations - 1)) : 0.0;
+
+			String alloc = allocated < 0 ? String.format("%12s %12s", "n/a", "n/a")
+										 : String.format("%12.1f %12.1f", (double)allocated / totalOps,
+												 		 allocated / (totalNsec / 1.0e9) / (1024 * 1024));
+			return String.format("%-44s %14.1f %12.1f %10.1f %s", benchmark.name(), mean, stdev,
+								 (double)totalNsec / totalOps, alloc);
+		} finally {
+			benchmark.tearDown();
+		}
+	}
+
+	private void runBatch(Benchmark benchmark, int batch) throws Exception {
+		for (int i = 0; i < batch; i++) mSink = benchmark.op();
+	}
+
+	/**
+	 * Returns the bytes allocated so far by all live threads, or -1 if the JVM doesn't count them.
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if ( !(threads instanceof com.sun.management.ThreadMXBean) ) return -1;
+		com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean)threads;
+		try {
+			if ( !hotspot.isThreadAllocatedMemorySupported() ) return -1;
+			if ( !hotspot.isThreadAllocatedMemoryEnabled() ) hotspot.setThreadAllocatedMemoryEnabled(true);
+			long total = 0;
+			for (long bytes : hotspot.getThreadAllocatedBytes(hotspot.getAllThreadIds())) {
+				if ( bytes > 0 ) total += bytes;
+			}
+			return total;
+		} catch (UnsupportedOperationException e) {
+			Log.w(TAG, "Thread allocation counters unavailable: " + e.getMessage());
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,236 @@
+package edu.uw.cs.cse461.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandler;
+
+/**
+ * TCPMessageHandler framing: sendMessage() followed by readMessageAsBytes().
+ * <p>
+ * The in-memory benchmarks run the handler over a MemorySocket, whose output feeds its own input, so they
+ * measure the framing code alone.  The loopback ones make a round trip over a real TCP connection to a peer
+ * thread that echoes each message back, so they include the system calls and the wakeups.  The burst ones
+ * send a burst of small messages over a real connection, to a peer that acknowledges each burst with one
+ * message, with and without write coalescing.
+ */
+public class TCPMessageHandlerBenchmarks {
+	static final int[] SIZES = { 16, 1024, 64 * 1024, 1024 * 1024 };
+	static final int BURST_MESSAGES = 64;
+	static final int BURST_SIZE = 1000;
+
+	public static List<Benchmark> all() {
+		List<Benchmark> list = new ArrayList<Benchmark>();
+		for (int size : SIZES) list.add(new InMemory(size));
+		for (int size : SIZES) list.add(new Loopback(size));
+		list.add(new Burst(BURST_MESSAGES, BURST_SIZE, false));
+		list.add(new Burst(BURST_MESSAGES, BURST_SIZE, true));
+		return list;
+	}
+
+	private static class InMemory extends Benchmark {
+		private final byte[] mMessage;
+		private TCPMessageHandler mHandler;
+
+		InMemory(int size) {
+			super("TCPMessageHandler.inMemory/" + size);
+			mMessage = Base64Benchmarks.randomBytes(size);
+		}
+
+		@Override
+		public void setUp() throws Exception {
+			mHandler = new TCPMessageHandler(new MemorySocket());
+			mHandler.setMaxReadLength(Integer.MAX_VALUE);
+		}
+
+		@Override
+		public Object op() throws Exception {
+			mHandler.sendMessage(mMessage);
+			return mHandler.readMessageAsBytes();
+		}
+	}
+
+	private static class Loopback extends Benchmark {
+		private final byte[] mMessage;
+		private Socket mSocket;
+		private TCPMessageHandler mHandler;
+		private Thread mPeer;
+
+		Loopback(int size) {
+			super("TCPMessageHandler.loopback/" + size);
+			mMessage = Base64Benchmarks.randomBytes(size);
+		}
+
+		@Override
+		public void setUp() throws Exception {
+			ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+			try {
+				mSocket = new Socket(server.getInetAddress(), server.getLocalPort());
+				final Socket peerSocket = server.accept();
+				mPeer = new Thread("loopback-echo") {
+					@Override
+					public void run() {
+						try {
+							TCPMessageHandler peer = new TCPMessageHandler(peerSocket);
+							peer.setNoDelay(true);
+							peer.setMaxReadLength(Integer.MAX_VALUE);
+							while ( true ) peer.sendMessage(peer.readMessageAsBytes());
+						} catch (IOException e) {
+							// the benchmark closed its end
+						} finally {
+							try { peerSocket.close(); } catch (IOException e) {}
+						}
+					}
+				};
+				mPeer.setDaemon(true);
+				mPeer.start();
+			} finally {
+				server.close();
+			}
+			mHandler = new TCPMessageHandler(mSocket);
+			// A message over 64KB is written as the length and then the data, so Nagle would hold the data back
+			// for the ack
+			mHandler.setNoDelay(true);
+			mHandler.setMaxReadLength(Integer.MAX_VALUE);
+		}
+
+		@Override
+		public Object op() throws Exception {
+			mHandler.sendMessage(mMessage);
+			return mHandler.readMessageAsBytes();
+		}
+
+		@Override
+		public void tearDown() throws Exception {
+			mHandler.close();
+			mPeer.join();
+		}
+	}
+
+	private static class Burst extends Benchmark {
+		private final int mCount;
+		private final byte[] mMessage;
+		private final boolean mCoalesce;
+		private Socket mSocket;
+		private TCPMessageHandler mHandler;
+		private Thread mPeer;
+
+		Burst(int count, int size, boolean coalesce) {
+			super("TCPMessageHandler." + (coalesce ? "burstCoalesced/" : "burst/") + count + "x" + size);
+			mCount = count;
+			mMessage = Base64Benchmarks.randomBytes(size);
+			mCoalesce = coalesce;
+		}
+
+		@Override
+		public void setUp() throws Exception {
+			ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+			try {
+				mSocket = new Socket(server.getInetAddress(), server.getLocalPort());
+				final Socket peerSocket = server.accept();
+				mPeer = new Thread("burst-ack") {
+					@Override
+					public void run() {
+						try {
+							TCPMessageHandler peer = new TCPMessageHandler(peerSocket);
+							peer.setNoDelay(true);
+							while ( true ) {
+								for (int i = 0; i < mCount; i++) peer.readMessageAsBytes();
+								peer.sendMessage(mCount);
+							}
+						} catch (IOException e) {
+							// the benchmark closed its end
+						} finally {
+							try { peerSocket.close(); } catch (IOException e) {}
+						}
+					}
+				};
+				mPeer.setDaemon(true);
+				mPeer.start();
+			} finally {
+				server.close();
+			}
+			mHandler = new TCPMessageHandler(mSocket);
+			mHandler.setNoDelay(true);
+			mHandler.setCoalescing(mCoalesce);
+		}
+
+		@Override
+		public Object op() throws Exception {
+			for (int i = 0; i < mCount; i++) mHandler.sendMessage(mMessage);
+			// Reading flushes whatever's still buffered
+			return mHandler.readMessageAsInt();
+		}
+
+		@Override
+		public void tearDown() throws Exception {
+			mHandler.close();
+			mPeer.join();
+		}
+	}
+
+	/**
+	 * An unconnected Socket whose input stream reads back what was written to its output stream.  Reading with
+	 * nothing buffered returns EOF, as there's no other thread that could write more.
+	 */
+	static class MemorySocket extends Socket {
+		private byte[] mBuf = new byte[8192];
+		private int mReadPos;
+		private int mWritePos;
+
+		private final InputStream mIn = new InputStream() {
+			@Override
+			public int read() {
+				return mReadPos < mWritePos ? mBuf[mReadPos++] & 0xff : -1;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) {
+				if ( mReadPos == mWritePos ) return -1;
+				int n = Math.min(len, mWritePos - mReadPos);
+				System.arraycopy(mBuf, mReadPos, b, off, n);
+				mReadPos += n;
+				if ( mReadPos == mWritePos ) mReadPos = mWritePos = 0;
+				return n;
+			}
+		};
+
+		private final OutputStream mOut = new OutputStream() {
+			@Override
+			public void write(int b) {
+				ensure(1);
+				mBuf[mWritePos++] = (byte)b;
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				ensure(len);
+				System.arraycopy(b, off, mBuf, mWritePos, len);
+				mWritePos += len;
+			}
+		};
+
+		private void ensure(int n) {
+			if ( mWritePos + n <= mBuf.length ) return;
+			byte[] bigger = new byte[Math.max(mBuf.length * 2, mWritePos + n)];
+			System.arraycopy(mBuf, 0, bigger, 0, mWritePos);
+			mBuf = bigger;
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return mIn;
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return mOut;
+		}
+	}
+}
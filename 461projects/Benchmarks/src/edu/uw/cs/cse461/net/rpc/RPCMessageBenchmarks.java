@@ -0,0 +1,129 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+
+import edu.uw.cs.cse461.benchmarks.Benchmark;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCInvokeMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCNormalResponseMessage;
+import edu.uw.cs.cse461.util.Base64;
+
+/**
+ * Marshalling and unmarshalling of RPC messages, in both the json and binary encodings, and
+ * RPCCallableMethod.handleCall() dispatch, reflective and through an RPCHandler, and handler
+ * lookup.  They're in this package because the message classes, RPCBinaryCodec and
+ * RPCDispatchTable are package private.
+ * <p>
+ * Marshalling builds the message and encodes it, as a caller does for each invoke.  The binary
+ * codecs are primed with one message first, so, as on a long lived connection, the names are sent
+ * as table references.  Small args are an echo call's; large ones carry a 48KB payload, base64
+ * encoded as DataXferRPC sends it.
+ */
+public class RPCMessageBenchmarks {
+
+	/**
+	 * The target of the dispatch benchmarks
+	 */
+	public static class EchoTarget {
+		public JSONObject echo(JSONObject args) {
+			return args;
+		}
+	}
+
+	public static List<Benchmark> all() throws Exception {
+		List<Benchmark> list = new ArrayList<Benchmark>();
+
+		JSONObject small = new JSONObject().put("header", new JSONObject().put("tag", "echo")).put("payload", "hello");
+		JSONObject large = new JSONObject().put("header", new JSONObject().put("tag", "xfer"))
+										   .put("data", Base64.encodeBytes(new byte[48 * 1024]));
+		String[] sizes = { "small", "large" };
+		JSONObject[] args = { small, large };
+		for (int i = 0; i < args.length; i++) {
+			for (boolean binary : new boolean[] { false, true }) {
+				String suffix = (binary ? "binary/" : "json/") + sizes[i];
+				list.add(marshall("RPCMessage.marshall.invoke." + suffix, binary, args[i]));
+				list.add(unmarshall("RPCMessage.unmarshall.invoke." + suffix, binary,
+									new RPCInvokeMessage("echorpc", "echo", args[i])));
+				list.add(unmarshall("RPCMessage.unmarshall.response." + suffix, binary,
+									new RPCNormalResponseMessage(1, args[i])));
+			}
+			final JSONObject callArgs = args[i];
+			final RPCCallableMethod method = new RPCCallableMethod(new EchoTarget(), "echo");
+			list.add(new Benchmark("RPCCallableMethod.handleCall.reflective/" + sizes[i]) {
+				@Override
+				public Object op() throws Exception {
+					return method.handleCall(callArgs);
+				}
+			});
+			final EchoTarget target = new EchoTarget();
+			final RPCCallableMethod direct = new RPCCallableMethod(new RPCHandler() {
+				@Override
+				public Object handleCall(JSONObject args) {
+					return target.echo(args);
+				}
+			});
+			list.add(new Benchmark("RPCCallableMethod.handleCall.direct/" + sizes[i]) {
+				@Override
+				public Object op() throws Exception {
+					return direct.handleCall(callArgs);
+				}
+			});
+		}
+
+		// A lookup of names decoded from a message, so equal to the registered ones but not the same Strings
+		RPCDispatchTable table = RPCDispatchTable.EMPTY;
+		for (int i = 0; i < 32; i++) {
+			table = table.with("service" + i, "method" + i, new RPCCallableMethod(new EchoTarget(), "echo"));
+		}
+		final RPCDispatchTable handlers = table;
+		final String service = new String("service17");
+		final String method = new String("method17");
+		list.add(new Benchmark("RPCDispatchTable.get") {
+			@Override
+			public Object op() {
+				return handlers.get(service, method);
+			}
+		});
+		return list;
+	}
+
+	private static Benchmark marshall(String name, final boolean binary, final JSONObject args) {
+		return new Benchmark(name) {
+			private RPCBinaryCodec mCodec;
+
+			@Override
+			public void setUp() throws Exception {
+				mCodec = new RPCBinaryCodec(binary);
+				mCodec.encode(new RPCInvokeMessage("echorpc", "echo", args));
+			}
+
+			@Override
+			public Object op() throws Exception {
+				return mCodec.encode(new RPCInvokeMessage("echorpc", "echo", args));
+			}
+		};
+	}
+
+	private static Benchmark unmarshall(String name, final boolean binary, final RPCMessage message) {
+		return new Benchmark(name) {
+			private RPCBinaryCodec mCodec;
+			private byte[] mEncoded;
+
+			@Override
+			public void setUp() throws Exception {
+				RPCBinaryCodec sender = new RPCBinaryCodec(binary);
+				mCodec = new RPCBinaryCodec(binary);
+				mCodec.decode(sender.encode(message));
+				// Encoded again, the names are table references, which decode without growing the table
+				mEncoded = sender.encode(message);
+			}
+
+			@Override
+			public Object op() throws Exception {
+				return mCodec.decode(mEncoded);
+			}
+		};
+	}
+}
@@ -3,6 +3,7 @@ package edu.uw.cs.cse461.consoleapps.solution;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -68,12 +69,17 @@ public class DataXferRPC extends NetLoadableConsoleApp implements DataXferRPCInt
             JSONObject header = new JSONObject().put(DataXferRPCService.HEADER_TAG_KEY, DataXferServiceBase.HEADER_STR)
                     .put(DataXferRPCService.HEADER_LENGTH_KEY, size);
 
+            // dataxferrpc.mode=stream uses the streaming variant of the call
+            boolean stream = "stream".equalsIgnoreCase(config.getProperty("dataxferrpc.mode", "base64"));
+
             TransferRate.clear();
-            TransferRateInterval result = DataXferRate(header, targetIP, targetRPCPort, timeout, nTrials);
+            TransferRateInterval result = stream ? DataXferStreamRate(header, targetIP, targetRPCPort, timeout, nTrials)
+                    : DataXferRate(header, targetIP, targetRPCPort, timeout, nTrials);
 
             if (result != null) {
-                System.out.println(String.format("RPC: xfer rate =\t%.2f bytes/sec.", result.mean() * 1000));
-                System.out.println(String.format("RPC: failure rate =\t%.1f [%d/%d]", result.failureRate(),
+                String label = stream ? "RPC (stream)" : "RPC";
+                System.out.println(String.format("%s: xfer rate =\t%.2f bytes/sec.", label, result.mean() * 1000));
+                System.out.println(String.format("%s: failure rate =\t%.1f [%d/%d]", label, result.failureRate(),
                         result.nAborted(), result.nTrials()));
             }
         } catch (Exception e) {
@@ -131,4 +137,86 @@ public class DataXferRPC extends NetLoadableConsoleApp implements DataXferRPCInt
 
         return TransferRate.get("DataXferRPC_Total");
     }
+
+    /**
+     * Like DataXfer(), but uses the streaming variant of the call: the data is written to sink as it arrives,
+     * rather than being returned, so memory use doesn't grow with the transfer size.
+     * 
+     * @param sink
+     *            Where to write the data. May be null, to discard it.
+     * @return The number of bytes received
+     */
+    public long DataXferStream(JSONObject header, String targetIP, int targetRPCPort, int timeout, OutputStream sink)
+            throws JSONException, IOException {
+        JSONObject args = new JSONObject().put(DataXferRPCService.HEADER_KEY, header);
+        Log.d(TAG, "Sending streaming RPC: " + args);
+        CountingOutputStream counter = new CountingOutputStream(sink);
+        JSONObject response = RPCCall.invokeStream(targetIP, targetRPCPort, "dataxferrpc", "dataxferstream", args,
+                counter, timeout);
+        if (response == null) {
+            throw new IOException("RPC failed; response is null");
+        }
+        Log.d(TAG, "RPC response received: " + response);
+
+        return counter.mCount;
+    }
+
+    /**
+     * DataXferRate(), using DataXferStream(). The data is discarded.
+     */
+    public TransferRateInterval DataXferStreamRate(JSONObject header, String hostIP, int port, int timeout,
+            int nTrials) {
+        long transferLength = header.optLong(DataXferRPCService.HEADER_LENGTH_KEY, -1);
+        if (transferLength < 0) {
+            Log.e(TAG, "Header doesn't contain length");
+            throw new IllegalArgumentException("The provided header does not contain the transfer size.");
+        }
+
+        for (int i = 0; i < nTrials; i++) {
+            try {
+                Log.d(TAG, "Starting streaming trial " + i);
+                TransferRate.start("DataXferRPC_Stream");
+                long received = DataXferStream(header, hostIP, port, timeout, null);
+
+                if (received != transferLength) {
+                    throw new Exception("Incorrect length");
+                }
+
+                TransferRate.stop("DataXferRPC_Stream", transferLength);
+            } catch (Exception ex) {
+                Log.w(TAG, "Exception: " + ex.getClass() + " : " + ex.getMessage());
+                TransferRate.abort("DataXferRPC_Stream", transferLength);
+            }
+        }
+
+        return TransferRate.get("DataXferRPC_Stream");
+    }
+
+    /**
+     * Counts the bytes written through it.
+     */
+    private static class CountingOutputStream extends OutputStream {
+        private final OutputStream mOut;
+        private long mCount;
+
+        CountingOutputStream(OutputStream out) {
+            mOut = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mCount++;
+            if (mOut != null) {
+                mOut.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            mCount += len;
+            if (mOut != null) {
+                mOut.write(b, off, len);
+            }
+        }
+    }
 }
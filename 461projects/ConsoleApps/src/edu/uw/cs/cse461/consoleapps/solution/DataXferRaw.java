@@ -9,13 +9,16 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
+import java.util.BitSet;
 
 import edu.uw.cs.cse461.consoleapps.DataXferInterface.DataXferRawInterface;
 import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.net.base.NetLoadable.NetLoadableConsoleApp;
 import edu.uw.cs.cse461.service.DataXferRawService;
 import edu.uw.cs.cse461.service.DataXferServiceBase;
+import edu.uw.cs.cse461.service.ReliableUDP;
 import edu.uw.cs.cse461.util.ConfigManager;
 import edu.uw.cs.cse461.util.SampledStatistic.TransferRate;
 import edu.uw.cs.cse461.util.SampledStatistic.TransferRateInterval;
@@ -84,14 +87,38 @@ public class DataXferRaw extends NetLoadableConsoleApp implements
 			String trialStr = console.readLine();
 			int nTrials = Integer.parseInt(trialStr);
 
-			for (int index = 0; index < DataXferRawService.NPORTS; index++) {
+			// Transfers bigger than this are counted as they arrive, rather than returned in a byte[]
+			long maxBuffered = config.getAsInt("dataxferraw.client.maxbuffered", 16 << 20, 0);
+
+			long[] xferSizes = DataXferRawService.xferSizes(config);
+			for (int index = 0; index < xferSizes.length; index++) {
 
 				TransferRate.clear();
 
 				int port = basePort + index;
-				int xferLength = DataXferRawService.XFERSIZE[index];
-
-				System.out.println("\n" + xferLength + " bytes");
+				long xferSize = xferSizes[index];
+
+				System.out.println("\n" + xferSize + " bytes");
+
+				if (xferSize > maxBuffered) {
+					TransferRateInterval rudpStats = rudpDataXferRate(
+							DataXferServiceBase.HEADER_BYTES, server, port,
+							socketTimeout, xferSize, nTrials);
+					printReliableStats(rudpStats);
+
+					TransferRateInterval tcpStats = tcpDataXferStreamRate(
+							DataXferServiceBase.HEADER_BYTES, server, port,
+							socketTimeout, xferSize, nTrials);
+
+					System.out.println("TCP: xfer rate = "
+							+ String.format("%9.0f", tcpStats.mean() * 1000.0)
+							+ " bytes/sec.");
+					System.out.println("TCP: failure rate = "
+							+ String.format("%5.1f", tcpStats.failureRate()) + " ["
+							+ tcpStats.nAborted() + "/" + tcpStats.nTrials() + "]");
+					continue;
+				}
+				int xferLength = (int) xferSize;
 
 				// -----------------------------------------------------
 				// UDP transfer
@@ -107,6 +134,20 @@ public class DataXferRaw extends NetLoadableConsoleApp implements
 				System.out.println("UDP: failure rate = "
 						+ String.format("%5.1f", udpStats.failureRate()) + " ["
 						+ udpStats.nAborted() + "/" + udpStats.nTrials() + "]");
+				if (udpStats.nAborted() > 0) {
+					System.out.println("UDP: loss by sequence range = "
+							+ udpLoss(DataXferServiceBase.HEADER_BYTES, server,
+									port, socketTimeout, xferLength));
+				}
+
+				// -----------------------------------------------------
+				// Reliable UDP transfer
+				// -----------------------------------------------------
+
+				TransferRateInterval rudpStats = rudpDataXferRate(
+						DataXferServiceBase.HEADER_BYTES, server, port,
+						socketTimeout, xferLength, nTrials);
+				printReliableStats(rudpStats);
 
 				// -----------------------------------------------------
 				// TCP transfer
@@ -151,9 +192,7 @@ public class DataXferRaw extends NetLoadableConsoleApp implements
 		// Allocate space for the response
 		byte[] responseBuf = new byte[xferLength];
 
-		DatagramSocket socket = new DatagramSocket();
-		socket.setSoTimeout(socketTimeout); // wait at most a bounded time when
-											// receiving on this socket
+		DatagramSocket socket = openUdpSocket(socketTimeout);
 
 		ByteBuffer bufBB = ByteBuffer.wrap(header);
 		bufBB.put(header);
@@ -162,9 +201,10 @@ public class DataXferRaw extends NetLoadableConsoleApp implements
 		// Inform the server that we are here, and would like a response
 		socket.send(packet);
 
-		// We expect to receive a response packet containing at most 1000
-		// payload bytes
-		int packetLen = 1000 + DataXferRawService.RESPONSE_OKAY_LEN;
+		// We expect to receive response packets containing at most
+		// udpPayloadSize() payload bytes
+		int packetLen = DataXferRawService.udpPayloadSize(NetBase.theNetBase()
+				.config()) + DataXferRawService.RESPONSE_OKAY_LEN;
 		byte[] receiveBuf = new byte[packetLen];
 		DatagramPacket receivePacket = new DatagramPacket(receiveBuf,
 				receiveBuf.length);
@@ -201,10 +241,9 @@ public class DataXferRaw extends NetLoadableConsoleApp implements
 				// }
 
 				// Copy the payload into the buffer
-				for (int i = payloadStart; i < receivePacket.getLength(); i++) {
-					responseBuf[read] = receivePacket.getData()[i];
-					read++;
-				}
+				System.arraycopy(receivePacket.getData(), payloadStart,
+						responseBuf, read, payloadLen);
+				read += payloadLen;
 			} while (receivePacket.getLength() == packetLen
 					&& read < xferLength);
 			// Verify that the correct number of packets were read
@@ -334,4 +373,208 @@ public class DataXferRaw extends NetLoadableConsoleApp implements
 		return TransferRate.get("tcp");
 	}
 
+	/**
+	 * Transfers xferLength bytes over TCP, like tcpDataXfer(), but counts the
+	 * data as it arrives instead of returning it, so the transfer can be larger
+	 * than will fit in memory.
+	 * 
+	 * @return The number of payload bytes received
+	 */
+	public long tcpDataXferStream(byte[] header, String hostIP, int tcpPort,
+			int socketTimeout, long xferLength) throws IOException {
+		Socket tcpSocket = new Socket(hostIP, tcpPort);
+		tcpSocket.setSoTimeout(socketTimeout);
+		long read = 0;
+		try {
+			InputStream is = tcpSocket.getInputStream();
+			OutputStream os = tcpSocket.getOutputStream();
+
+			// Send the header
+			os.write(header);
+			tcpSocket.shutdownOutput();
+
+			// Read and verify the response header
+			byte[] responseHeader = new byte[DataXferRawService.RESPONSE_OKAY_LEN];
+			int len = 0;
+			while (len < responseHeader.length) {
+				int res = is.read(responseHeader, len, responseHeader.length - len);
+				if (res == -1)
+					throw new IOException("Bad response header length: got "
+							+ len + " but expected " + responseHeader.length);
+				len += res;
+			}
+			String headerStr = new String(responseHeader);
+			if (!headerStr
+					.equalsIgnoreCase(DataXferRawService.RESPONSE_OKAY_STR))
+				throw new IOException("Bad response header: got '" + headerStr
+						+ "' but expected '"
+						+ DataXferRawService.RESPONSE_OKAY_STR + "'");
+
+			// Read the payload in large chunks, into a buffer that's reused
+			byte[] buf = new byte[64 * 1024];
+			while (read < xferLength) {
+				int res = is.read(buf, 0,
+						(int) Math.min(buf.length, xferLength - read));
+				if (res == -1)
+					throw new IOException("Bad response length: got " + read
+							+ "bytes but expected " + xferLength + " bytes.");
+				read += res;
+			}
+		} finally {
+			tcpSocket.close();
+		}
+		return read;
+	}
+
+	/**
+	 * Performs nTrials trials of tcpDataXferStream().
+	 */
+	public TransferRateInterval tcpDataXferStreamRate(byte[] header,
+			String hostIP, int tcpPort, int socketTimeout, long xferLength,
+			int nTrials) {
+
+		for (int trial = 0; trial < nTrials; trial++) {
+			try {
+				TransferRate.start("tcp");
+				tcpDataXferStream(header, hostIP, tcpPort, socketTimeout,
+						xferLength);
+				TransferRate.stop("tcp", xferLength);
+			} catch (Exception e) {
+				TransferRate.abort("tcp", xferLength);
+			}
+		}
+		return TransferRate.get("tcp");
+	}
+
+	/**
+	 * Creates the socket for a UDP transfer. Its receive buffer size is
+	 * dataxferraw.client.udp.rcvbuf, if set.
+	 */
+	private DatagramSocket openUdpSocket(int socketTimeout)
+			throws IOException {
+		DatagramSocket socket = new DatagramSocket();
+		socket.setSoTimeout(socketTimeout); // wait at most a bounded time when
+											// receiving on this socket
+		int rcvBuf = NetBase.theNetBase().config()
+				.getAsInt("dataxferraw.client.udp.rcvbuf", 0, 0);
+		if (rcvBuf > 0)
+			socket.setReceiveBufferSize(rcvBuf);
+		return socket;
+	}
+
+	/**
+	 * Performs one UDP transfer and reports which datagrams were lost. The
+	 * server puts each datagram's sequence number in its first four payload
+	 * bytes. The sequence numbers are divided into (up to) ten equal ranges,
+	 * and the result lists how many datagrams were lost in each, e.g.
+	 * "[0-99] 0 [100-199] 12 ... (57/1000 lost)". Loss concentrated in the
+	 * later ranges means the sender is overflowing a buffer; raising the
+	 * pacing rate until that starts shows the highest rate the path sustains.
+	 */
+	public String udpLoss(byte[] header, String hostIP, int udpPort,
+			int socketTimeout, int xferLength) throws IOException {
+		int payloadSize = DataXferRawService.udpPayloadSize(NetBase
+				.theNetBase().config());
+		int nPackets = (xferLength + payloadSize - 1) / payloadSize;
+		BitSet received = new BitSet(nPackets);
+
+		DatagramSocket socket = openUdpSocket(socketTimeout);
+		try {
+			socket.send(new DatagramPacket(header, header.length,
+					new InetSocketAddress(hostIP, udpPort)));
+			byte[] receiveBuf = new byte[payloadSize
+					+ DataXferRawService.RESPONSE_OKAY_LEN];
+			DatagramPacket receivePacket = new DatagramPacket(receiveBuf,
+					receiveBuf.length);
+			ByteBuffer receiveBB = ByteBuffer.wrap(receiveBuf);
+			int seq = -1;
+			// Read until the last datagram arrives or nothing more does
+			while (seq < nPackets - 1) {
+				try {
+					socket.receive(receivePacket);
+				} catch (SocketTimeoutException e) {
+					break;
+				}
+				int payloadLen = receivePacket.getLength()
+						- DataXferRawService.RESPONSE_OKAY_LEN;
+				if (payloadLen >= 4) {
+					seq = receiveBB.getInt(DataXferRawService.RESPONSE_OKAY_LEN);
+				} else {
+					// Too short to carry a sequence number, so the last one
+					seq = nPackets - 1;
+				}
+				if (seq >= 0 && seq < nPackets)
+					received.set(seq);
+			}
+		} finally {
+			socket.close();
+		}
+
+		StringBuilder sb = new StringBuilder();
+		int rangeLen = Math.max(1, (nPackets + 9) / 10);
+		for (int start = 0; start < nPackets; start += rangeLen) {
+			int end = Math.min(nPackets, start + rangeLen);
+			int lost = (end - start)
+					- received.get(start, end).cardinality();
+			sb.append("[").append(start).append("-").append(end - 1)
+					.append("] ").append(lost).append(" ");
+		}
+		sb.append("(").append(nPackets - received.cardinality()).append("/")
+				.append(nPackets).append(" lost)");
+		return sb.toString();
+	}
+
+	private void printReliableStats(TransferRateInterval rudpStats) {
+		System.out.println("\nReliable UDP: xfer rate = "
+				+ String.format("%9.0f", rudpStats.mean() * 1000.0)
+				+ " bytes/sec.");
+		System.out.println("Reliable UDP: failure rate = "
+				+ String.format("%5.1f", rudpStats.failureRate()) + " ["
+				+ rudpStats.nAborted() + "/" + rudpStats.nTrials() + "]");
+	}
+
+	/**
+	 * Transfers xferLength bytes using the reliable UDP protocol (see
+	 * ReliableUDP). If dest is null, the data is counted rather than stored,
+	 * so the transfer can be larger than will fit in memory.
+	 * 
+	 * @return The number of payload bytes received
+	 */
+	public long rudpDataXfer(byte[] header, String hostIP, int udpPort,
+			int socketTimeout, long xferLength, byte[] dest) throws IOException {
+		ConfigManager config = NetBase.theNetBase().config();
+		return ReliableUDP.receive(header, new InetSocketAddress(hostIP,
+				udpPort), xferLength, DataXferRawService
+				.reliablePayloadSize(config), config.getAsInt(
+				"dataxferraw.client.reliable.window", 256, 1), socketTimeout,
+				dest, config.getAsInt("dataxferraw.client.udp.rcvbuf", 0, 0));
+	}
+
+	/**
+	 * Performs nTrials trials of rudpDataXfer(). Transfers up to
+	 * dataxferraw.client.maxbuffered bytes are stored, like the other
+	 * transfers; larger ones are counted.
+	 */
+	public TransferRateInterval rudpDataXferRate(byte[] header, String hostIP,
+			int udpPort, int socketTimeout, long xferLength, int nTrials) {
+		long maxBuffered = NetBase.theNetBase().config()
+				.getAsInt("dataxferraw.client.maxbuffered", 16 << 20, 0);
+		for (int trial = 0; trial < nTrials; trial++) {
+			try {
+				byte[] dest = xferLength <= maxBuffered ? new byte[(int) xferLength]
+						: null;
+				TransferRate.start("rudp");
+				long read = rudpDataXfer(header, hostIP, udpPort,
+						socketTimeout, xferLength, dest);
+				if (read != xferLength)
+					throw new IOException("Bad response length: got " + read
+							+ "bytes but expected " + xferLength + " bytes.");
+				TransferRate.stop("rudp", xferLength);
+			} catch (Exception e) {
+				TransferRate.abort("rudp", xferLength);
+			}
+		}
+		return TransferRate.get("rudp");
+	}
+
 }
@@ -0,0 +1,258 @@
+package edu.uw.cs.cse461.consoleapps.solution;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import edu.uw.cs.cse461.util.ConfigManager;
+import edu.uw.cs.cse461.util.Log;
+import edu.uw.cs.cse461.util.SampledStatistic.ElapsedTime;
+import edu.uw.cs.cse461.util.SampledStatistic.ElapsedTimeInterval;
+import edu.uw.cs.cse461.util.SampledStatistic.TransferRate;
+import edu.uw.cs.cse461.util.SampledStatistic.TransferRateInterval;
+
+/**
+ * Drives an operation (one ping, say) from many threads at once, to measure latency under load.
+ * <p>
+ * Closed loop: N virtual clients each issue the operation, wait for it to finish, and immediately issue the next.
+ * Throughput is whatever the server sustains, and latency is measured from issue to completion.
+ * <p>
+ * Open loop: operations are issued at a fixed rate, whether or not earlier ones have finished, by a pool of worker
+ * threads. Operation i is intended to start at start + i/rate. If no worker is free at that time it starts late, and
+ * its latency is measured from the intended start, not the actual one. That corrects for coordinated omission: a
+ * stalled server can't hide its stall by holding back the requests that would have measured it. The uncorrected
+ * (service time) latency is recorded too, under the key with "_service" appended.
+ * <p>
+ * Each run has a warmup phase, whose operations aren't measured, then a measurement phase. Only operations that
+ * start (or, in open loop, are intended to start) in the measurement phase count. Latencies are recorded as
+ * SampledStatistic.ElapsedTime samples, and throughput as a TransferRate whose data amount is the number of
+ * operations completed, so its mean is operations per msec.
+ */
+public class LoadGenerator {
+    private static final String TAG = "LoadGenerator";
+
+    /**
+     * The operation to generate load with. Called from many threads at once.
+     */
+    public interface Operation {
+        public void call() throws Exception;
+    }
+
+    /**
+     * The outcome of one run
+     */
+    public static class Result {
+        public final String key;
+        public final String label;
+        public final ElapsedTimeInterval latency;
+        public final TransferRateInterval throughput;
+
+        Result(String key, String label) {
+            this.key = key;
+            this.label = label;
+            this.latency = ElapsedTime.get(key);
+            this.throughput = TransferRate.get(key);
+        }
+
+        /**
+         * Operations completed per second during the measurement phase
+         */
+        public double opsPerSec() {
+            return throughput == null ? 0.0 : throughput.mean() * 1000.0;
+        }
+
+        @Override
+        public String toString() {
+            if (latency == null || latency.nSamples() == 0) {
+                return String.format("%-14s no operations completed", label);
+            }
+            return String.format("%-14s %10.1f ops/sec  mean %8.3f  %s  (%d failed)", label, opsPerSec(),
+                    latency.mean(), latency.percentileString(), latency.nAborted());
+        }
+    }
+
+    private final String mName;
+    private final Operation mOperation;
+    private final long mWarmupNsec;
+    private final long mDurationNsec;
+
+    /**
+     * @param name
+     *            Prefix for the SampledStatistic keys
+     * @param operation
+     *            What to run
+     * @param warmupMsec
+     *            Length of the warmup phase
+     * @param durationMsec
+     *            Length of the measurement phase
+     */
+    public LoadGenerator(String name, Operation operation, int warmupMsec, int durationMsec) {
+        mName = name;
+        mOperation = operation;
+        mWarmupNsec = TimeUnit.MILLISECONDS.toNanos(warmupMsec);
+        mDurationNsec = TimeUnit.MILLISECONDS.toNanos(durationMsec);
+    }
+
+    /**
+     * Runs nClients virtual clients, each issuing the operation back to back.
+     */
+    public Result closedLoop(int nClients) throws InterruptedException {
+        final String key = mName + "_closed_" + nClients;
+        final long measureStart = System.nanoTime() + mWarmupNsec;
+        final long end = measureStart + mDurationNsec;
+        final AtomicLong completed = new AtomicLong();
+
+        Thread[] clients = new Thread[nClients];
+        for (int i = 0; i < nClients; i++) {
+            clients[i] = new Thread(mName + "-client-" + i) {
+                @Override
+                public void run() {
+                    long start;
+                    while ((start = System.nanoTime()) < end) {
+                        boolean ok = invoke();
+                        long finish = System.nanoTime();
+                        if (start >= measureStart) {
+                            record(key, ok, finish - start);
+                            if (ok && finish <= end) {
+                                completed.incrementAndGet();
+                            }
+                        }
+                    }
+                }
+            };
+        }
+        return run(clients, key, nClients + " clients", measureStart, completed);
+    }
+
+    /**
+     * Issues the operation rate times a second, using up to maxOutstanding threads.
+     */
+    public Result openLoop(final double rate, int maxOutstanding) throws InterruptedException {
+        final String key = mName + "_open_" + (long) rate;
+        final String serviceKey = key + "_service";
+        final long start = System.nanoTime();
+        final long measureStart = start + mWarmupNsec;
+        final long end = measureStart + mDurationNsec;
+        final double intervalNsec = 1.0e9 / rate;
+        final AtomicLong nextOp = new AtomicLong();
+        final AtomicLong completed = new AtomicLong();
+
+        Thread[] workers = new Thread[maxOutstanding];
+        for (int i = 0; i < maxOutstanding; i++) {
+            workers[i] = new Thread(mName + "-worker-" + i) {
+                @Override
+                public void run() {
+                    while (true) {
+                        long intended = start + (long) (nextOp.getAndIncrement() * intervalNsec);
+                        if (intended >= end) {
+                            return;
+                        }
+                        long now;
+                        while ((now = System.nanoTime()) < intended) {
+                            LockSupport.parkNanos(intended - now);
+                        }
+                        boolean ok = invoke();
+                        long finish = System.nanoTime();
+                        if (intended >= measureStart) {
+                            record(key, ok, finish - intended);
+                            record(serviceKey, ok, finish - now);
+                            if (ok && finish <= end) {
+                                completed.incrementAndGet();
+                            }
+                        }
+                    }
+                }
+            };
+        }
+        return run(workers, key, (long) rate + "/sec", measureStart, completed);
+    }
+
+    private Result run(Thread[] threads, String key, String label, long measureStart, AtomicLong completed)
+            throws InterruptedException {
+        for (Thread t : threads) {
+            t.setDaemon(true);
+            t.start();
+        }
+        long wait = measureStart - System.nanoTime();
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        TransferRate.start(key);
+        TimeUnit.NANOSECONDS.sleep(mDurationNsec);
+        // The throughput is measured over exactly the measurement phase, so it's recorded before the stragglers finish
+        long done = completed.get();
+        TransferRate.stop(key, done);
+        for (Thread t : threads) {
+            t.join();
+        }
+        return new Result(key, label);
+    }
+
+    private boolean invoke() {
+        try {
+            mOperation.call();
+            return true;
+        } catch (Exception e) {
+            Log.d(TAG, mName + " operation failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static void record(String key, boolean ok, long nsec) {
+        if (ok) {
+            ElapsedTime.record(key, nsec);
+        } else {
+            ElapsedTime.recordAbort(key);
+        }
+    }
+
+    /**
+     * Runs the load tests configured by the &lt;prefix&gt;.load.* config entries, printing a line per run:
+     * <pre>
+     *   &lt;prefix&gt;.load.mode      closed or open; anything else means no load test
+     *   &lt;prefix&gt;.load.clients   closed: the numbers of clients to run with, e.g. "1 4 16 64"
+     *                                  open: the number of worker threads (default 64)
+     *   &lt;prefix&gt;.load.rates     open: the rates to run at, in operations/sec., e.g. "100 1000 5000"
+     *   &lt;prefix&gt;.load.warmup    warmup phase length, msec (default 2000)
+     *   &lt;prefix&gt;.load.duration  measurement phase length, msec (default 10000)
+     * </pre>
+     * @return false if no load test is configured
+     */
+    public static boolean runConfigured(ConfigManager config, String prefix, String name, Operation operation)
+            throws InterruptedException {
+        String mode = config.getProperty(prefix + ".load.mode", "none");
+        if (!mode.equals("closed") && !mode.equals("open")) {
+            return false;
+        }
+        LoadGenerator generator = new LoadGenerator(name, operation, config.getAsInt(prefix + ".load.warmup", 2000, 0),
+                config.getAsInt(prefix + ".load.duration", 10000, 1));
+        String[] clients = config.getAsStringVec(prefix + ".load.clients");
+
+        System.out.println(name + " " + mode + " loop load test (latencies in msec.):");
+        if (mode.equals("closed")) {
+            if (clients == null || clients.length == 0 || clients[0].length() == 0) {
+                clients = new String[] { "1", "4", "16", "64" };
+            }
+            for (String n : clients) {
+                System.out.println(generator.closedLoop(Integer.parseInt(n)));
+            }
+        } else {
+            int workers = clients == null || clients.length == 0 || clients[0].length() == 0 ? 64 : Integer
+                    .parseInt(clients[0]);
+            String[] rates = config.getAsStringVec(prefix + ".load.rates");
+            if (rates == null || rates.length == 0 || rates[0].length() == 0) {
+                rates = new String[] { "100", "1000" };
+            }
+            for (String rate : rates) {
+                Result result = generator.openLoop(Double.parseDouble(rate), workers);
+                System.out.println(result);
+                ElapsedTimeInterval service = ElapsedTime.get(result.key + "_service");
+                if (service != null && service.nSamples() > 0) {
+                    System.out.println(String.format("%-14s %10s %-9s mean %8.3f  %s", "", "", "(service)",
+                            service.mean(), service.percentileString()));
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -16,6 +16,7 @@ import edu.uw.cs.cse461.util.ConfigManager;
 import edu.uw.cs.cse461.util.Log;
 import edu.uw.cs.cse461.util.SampledStatistic.ElapsedTime;
 import edu.uw.cs.cse461.util.SampledStatistic.ElapsedTimeInterval;
+import edu.uw.cs.cse461.util.SampledStatistic.TransferRate;
 
 public class PingRPC extends NetLoadableConsoleApp implements PingRPCInterface {
     private static final String TAG = "PingRPC";
@@ -52,12 +53,27 @@ public class PingRPC extends NetLoadableConsoleApp implements PingRPCInterface {
             }
             int targetRPCPort = Integer.parseInt(targetTCPPortStr);
 
+            final JSONObject header = new JSONObject().put(EchoRPCService.HEADER_TAG_KEY, EchoServiceBase.HEADER_STR);
+
+            // pingrpc.load.mode=closed|open turns the trials into a load test; see LoadGenerator.runConfigured
+            final String ip = targetIP;
+            final int port = targetRPCPort;
+            final int callTimeout = timeout;
+            ElapsedTime.clear();
+            TransferRate.clear();
+            if (LoadGenerator.runConfigured(config, "pingrpc", "PingRPC", new LoadGenerator.Operation() {
+                @Override
+                public void call() throws Exception {
+                    pingOnce(header, ip, port, callTimeout);
+                }
+            })) {
+                return;
+            }
+
             System.out.print("Enter number of trials: ");
             String trialStr = console.readLine();
             int nTrials = Integer.parseInt(trialStr);
 
-            JSONObject header = new JSONObject().put(EchoRPCService.HEADER_TAG_KEY, EchoServiceBase.HEADER_STR);
-
             ElapsedTime.clear();
             ElapsedTimeInterval result = ping(header, targetIP, targetRPCPort, timeout, nTrials);
 
@@ -68,6 +84,7 @@ public class PingRPC extends NetLoadableConsoleApp implements PingRPCInterface {
             	System.out.println(String.format(
                         "Raw timing info: PingRPC_invoke: [ %.2f,  %.2f,  %.2f] (%d samples, %d aborted)\n",
                         result.mean(), result.min(), result.max(), result.nTrials(), result.nAborted()));
+                System.out.println("Percentiles (msec.): " + result.percentileString());
             	
                 
             }
@@ -87,24 +104,7 @@ public class PingRPC extends NetLoadableConsoleApp implements PingRPCInterface {
             for (int i = 0; i < nTrials; i++) {
                 Log.d(TAG, "Starting ping trial " + i);
                 ElapsedTime.start("PingRPC_Total");
-
-                // send message
-                JSONObject args = new JSONObject().put(EchoRPCService.HEADER_KEY, header).put(
-                        EchoRPCService.PAYLOAD_KEY, MESSAGE);
-                Log.d(TAG, "Sending RPC: " + args);
-                JSONObject response = RPCCall.invoke(targetIP, targetRPCPort, "echorpc", "echo", args, timeout);
-                if (response == null) {
-                    throw new IOException("RPC failed; response is null");
-                }
-                Log.d(TAG, "RPC response received: " + response);
-
-                // Since the tester implements an incorrect echo service, we don't validate the response content here.
-
-                if (!response.has(EchoRPCService.PAYLOAD_KEY)
-                        || !response.getString(EchoRPCService.PAYLOAD_KEY).equals(MESSAGE)) {
-                    throw new Exception("Incorrect message");
-                }
-
+                pingOnce(header, targetIP, targetRPCPort, timeout);
                 ElapsedTime.stop("PingRPC_Total");
             }
         } catch (Exception e) {
@@ -114,4 +114,26 @@ public class PingRPC extends NetLoadableConsoleApp implements PingRPCInterface {
 
         return ElapsedTime.get("PingRPC_Total");
     }
+
+    /**
+     * One echo RPC, shared by ping() and the load generator.
+     */
+    private static void pingOnce(JSONObject header, String targetIP, int targetRPCPort, int timeout) throws Exception {
+        // send message
+        JSONObject args = new JSONObject().put(EchoRPCService.HEADER_KEY, header).put(
+                EchoRPCService.PAYLOAD_KEY, MESSAGE);
+        Log.d(TAG, "Sending RPC: " + args);
+        JSONObject response = RPCCall.invoke(targetIP, targetRPCPort, "echorpc", "echo", args, timeout);
+        if (response == null) {
+            throw new IOException("RPC failed; response is null");
+        }
+        Log.d(TAG, "RPC response received: " + response);
+
+        // Since the tester implements an incorrect echo service, we don't validate the response content here.
+
+        if (!response.has(EchoRPCService.PAYLOAD_KEY)
+                || !response.getString(EchoRPCService.PAYLOAD_KEY).equals(MESSAGE)) {
+            throw new Exception("Incorrect message");
+        }
+    }
 }
@@ -19,6 +19,7 @@ import edu.uw.cs.cse461.util.ConfigManager;
 import edu.uw.cs.cse461.util.Log;
 import edu.uw.cs.cse461.util.SampledStatistic.ElapsedTime;
 import edu.uw.cs.cse461.util.SampledStatistic.ElapsedTimeInterval;
+import edu.uw.cs.cse461.util.SampledStatistic.TransferRate;
 
 /**
  * Raw sockets version of ping client.
@@ -79,12 +80,18 @@ public class PingRaw extends NetLoadableConsoleApp implements PingRawInterface {
 				else
 					targetTCPPort = Integer.parseInt(targetTCPPortStr);
 
+				int socketTimeout = config.getAsInt("net.timeout.socket", 5000);
+
+				// pingraw.load.mode=closed|open turns trials into a load test against the TCP port (the UDP one
+				// if there's no TCP port); see LoadGenerator.runConfigured
+				if (loadTest(config, targetIP, targetUDPPort, targetTCPPort,
+						socketTimeout))
+					return;
+
 				System.out.print("Enter number of trials: ");
 				String trialStr = console.readLine();
 				int nTrials = Integer.parseInt(trialStr);
 
-				int socketTimeout = config.getAsInt("net.timeout.socket", 5000);
-
 				System.out.println("Host: " + targetIP);
 				System.out.println("udp port: " + targetUDPPort);
 				System.out.println("tcp port: " + targetTCPPort);
@@ -109,14 +116,18 @@ public class PingRaw extends NetLoadableConsoleApp implements PingRawInterface {
 							targetTCPPort, socketTimeout, nTrials);
 				}
 
-				if (udpResult != null)
+				if (udpResult != null) {
 					System.out.println("UDP: "
 							+ String.format("%.2f msec (%d failures)",
 									udpResult.mean(), udpResult.nAborted()));
-				if (tcpResult != null)
+					System.out.println("UDP: " + udpResult.percentileString());
+				}
+				if (tcpResult != null) {
 					System.out.println("TCP: "
 							+ String.format("%.2f msec (%d failures)",
 									tcpResult.mean(), tcpResult.nAborted()));
+					System.out.println("TCP: " + tcpResult.percentileString());
+				}
 
 			} catch (Exception e) {
 				System.out.println("Exception: " + e.getMessage());
@@ -127,6 +138,39 @@ public class PingRaw extends NetLoadableConsoleApp implements PingRawInterface {
 		}
 	}
 
+	/**
+	 * Runs the configured load test, if any.  Returns false if none is
+	 * configured.
+	 */
+	private boolean loadTest(ConfigManager config, final String targetIP,
+			final int targetUDPPort, final int targetTCPPort,
+			final int socketTimeout) throws InterruptedException {
+		LoadGenerator.Operation ping;
+		String name;
+		if (targetTCPPort != 0) {
+			name = "PingRaw_TCP";
+			ping = new LoadGenerator.Operation() {
+				@Override
+				public void call() throws Exception {
+					tcpPingOnce(EchoServiceBase.HEADER_BYTES, targetIP,
+							targetTCPPort, socketTimeout);
+				}
+			};
+		} else {
+			name = "PingRaw_UDP";
+			ping = new LoadGenerator.Operation() {
+				@Override
+				public void call() throws Exception {
+					udpPingOnce(EchoServiceBase.HEADER_BYTES, targetIP,
+							targetUDPPort, socketTimeout);
+				}
+			};
+		}
+		ElapsedTime.clear();
+		TransferRate.clear();
+		return LoadGenerator.runConfigured(config, "pingraw", name, ping);
+	}
+
 	/**
 	 * Pings the host/port named by the arguments the number of times named by
 	 * the arguments. Returns the mean ping time of the trials.
@@ -137,47 +181,7 @@ public class PingRaw extends NetLoadableConsoleApp implements PingRawInterface {
 		try {
 			for (int i = 0; i < nTrials; i++) {
 				ElapsedTime.start("PingRaw_UDPTotalDelay");
-
-				DatagramSocket socket = new DatagramSocket();
-				socket.setSoTimeout(socketTimeout); // wait at most a bounded
-													// time when receiving on
-													// this socket
-
-				int dataLength = header.length;
-				if (dataLength > 1400)
-					throw new Exception("Data is too long for UDP echo");
-				ByteBuffer bufBB = ByteBuffer.wrap(header);
-				bufBB.put(header);
-				DatagramPacket packet = new DatagramPacket(header,
-						header.length, new InetSocketAddress(hostIP, udpPort));
-				socket.send(packet); // tell the server we're here. The server
-										// will get our IP and port from the
-										// received packet.
-
-				// we're supposed to get back what we sent (but with header
-				// contents changed),
-				// so the amount of buffer we need is equal to size of what we
-				// sent.
-				byte[] receiveBuf = new byte[dataLength];
-				DatagramPacket receivePacket = new DatagramPacket(receiveBuf,
-						receiveBuf.length);
-				try {
-					socket.receive(receivePacket);
-					String rcvdHeader = new String(receiveBuf, 0,
-							EchoServiceBase.RESPONSE_LEN);
-					if (!rcvdHeader
-							.equalsIgnoreCase(EchoServiceBase.RESPONSE_OKAY_STR))
-						throw new Exception("Bad returned header: got '"
-								+ rcvdHeader + "' but wanted '"
-								+ EchoServiceBase.RESPONSE_OKAY_STR);
-				} catch (SocketTimeoutException e) {
-					// This exception is thrown if we wait on receive() longer
-					// than the timeout
-					throw new Exception("UDP socket timeout");
-				} finally {
-					socket.close();
-				}
-
+				udpPingOnce(header, hostIP, udpPort, socketTimeout);
 				ElapsedTime.stop("PingRaw_UDPTotalDelay");
 			}
 		} catch (Exception e) {
@@ -198,35 +202,7 @@ public class PingRaw extends NetLoadableConsoleApp implements PingRawInterface {
 		try {
 			for (int i = 0; i < nTrials; i++) {
 				ElapsedTime.start("PingRaw_TCPTotal");
-
-				Socket tcpSocket = new Socket(hostIP, tcpPort);
-				tcpSocket.setSoTimeout(socketTimeout);
-				InputStream is = tcpSocket.getInputStream();
-				OutputStream os = tcpSocket.getOutputStream();
-
-				// send header
-				os.write(header);
-				tcpSocket.shutdownOutput();
-
-				// read the header. Either the entire header arrives in one
-				// chunk, or we
-				// (mistakenly) reject it.
-				byte[] headerBuf = new byte[EchoServiceBase.RESPONSE_LEN];
-				try {
-					int len = is.read(headerBuf);
-					if (len <= 0)
-						throw new Exception("Bad response header length: got "
-								+ len + " but expected >0");
-					String headerStr = new String(headerBuf);
-					if (!headerStr
-							.equalsIgnoreCase(EchoServiceBase.RESPONSE_OKAY_STR))
-						throw new Exception("Bad response header: got '"
-								+ headerStr + "' but expected '"
-								+ EchoServiceBase.RESPONSE_OKAY_STR + "'");
-				} finally {
-					tcpSocket.close();
-				}
-
+				tcpPingOnce(header, hostIP, tcpPort, socketTimeout);
 				ElapsedTime.stop("PingRaw_TCPTotal");
 			}
 		} catch (Exception e) {
@@ -236,4 +212,84 @@ public class PingRaw extends NetLoadableConsoleApp implements PingRawInterface {
 
 		return ElapsedTime.get("PingRaw_TCPTotal");
 	}
+
+	/**
+	 * One UDP ping, shared by udpPing() and the load generator.
+	 */
+	private static void udpPingOnce(byte[] header, String hostIP, int udpPort,
+			int socketTimeout) throws Exception {
+		DatagramSocket socket = new DatagramSocket();
+		socket.setSoTimeout(socketTimeout); // wait at most a bounded
+											// time when receiving on
+											// this socket
+
+		int dataLength = header.length;
+		if (dataLength > 1400)
+			throw new Exception("Data is too long for UDP echo");
+		ByteBuffer bufBB = ByteBuffer.wrap(header);
+		bufBB.put(header);
+		DatagramPacket packet = new DatagramPacket(header,
+				header.length, new InetSocketAddress(hostIP, udpPort));
+		socket.send(packet); // tell the server we're here. The server
+								// will get our IP and port from the
+								// received packet.
+
+		// we're supposed to get back what we sent (but with header
+		// contents changed),
+		// so the amount of buffer we need is equal to size of what we
+		// sent.
+		byte[] receiveBuf = new byte[dataLength];
+		DatagramPacket receivePacket = new DatagramPacket(receiveBuf,
+				receiveBuf.length);
+		try {
+			socket.receive(receivePacket);
+			String rcvdHeader = new String(receiveBuf, 0,
+					EchoServiceBase.RESPONSE_LEN);
+			if (!rcvdHeader
+					.equalsIgnoreCase(EchoServiceBase.RESPONSE_OKAY_STR))
+				throw new Exception("Bad returned header: got '"
+						+ rcvdHeader + "' but wanted '"
+						+ EchoServiceBase.RESPONSE_OKAY_STR);
+		} catch (SocketTimeoutException e) {
+			// This exception is thrown if we wait on receive() longer
+			// than the timeout
+			throw new Exception("UDP socket timeout");
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * One TCP ping, shared by tcpPing() and the load generator.
+	 */
+	private static void tcpPingOnce(byte[] header, String hostIP, int tcpPort,
+			int socketTimeout) throws Exception {
+		Socket tcpSocket = new Socket(hostIP, tcpPort);
+		tcpSocket.setSoTimeout(socketTimeout);
+		InputStream is = tcpSocket.getInputStream();
+		OutputStream os = tcpSocket.getOutputStream();
+
+		// send header
+		os.write(header);
+		tcpSocket.shutdownOutput();
+
+		// read the header. Either the entire header arrives in one
+		// chunk, or we
+		// (mistakenly) reject it.
+		byte[] headerBuf = new byte[EchoServiceBase.RESPONSE_LEN];
+		try {
+			int len = is.read(headerBuf);
+			if (len <= 0)
+				throw new Exception("Bad response header length: got "
+						+ len + " but expected >0");
+			String headerStr = new String(headerBuf);
+			if (!headerStr
+					.equalsIgnoreCase(EchoServiceBase.RESPONSE_OKAY_STR))
+				throw new Exception("Bad response header: got '"
+						+ headerStr + "' but expected '"
+						+ EchoServiceBase.RESPONSE_OKAY_STR + "'");
+		} finally {
+			tcpSocket.close();
+		}
+	}
 }
@@ -0,0 +1,135 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A list of calls to one RPC server, to be sent together by RPCCall.invokeBatch():
+ * <pre>
+ *   RPCBatch batch = new RPCBatch();
+ *   RPCFuture a = batch.add("lookup", "find", argsA);
+ *   RPCFuture b = batch.add("lookup", "find", argsB);
+ *   RPCCall.invokeBatch(ip, port, batch);
+ *   JSONObject resultA = a.await();
+ * </pre>
+ * The calls go in one message, and their results come back in one, so a batch costs one round trip however
+ * many calls it holds.  The server runs the calls concurrently, and each call succeeds or fails on its own: each
+ * has its own future, which completes, or fails, as the call would have if it had been made with invokeAsync().
+ * If the whole batch fails (it times out, say, or the connection fails) every call fails with the same exception.
+ * <p>
+ * A batch can only be sent once.
+ */
+public class RPCBatch {
+
+	/**
+	 * One call of the batch
+	 */
+	static final class Call {
+		final String serviceName;
+		final String method;
+		final JSONObject args;
+		final RPCFuture future = new RPCFuture();
+
+		Call(String serviceName, String method, JSONObject args) {
+			this.serviceName = serviceName;
+			this.method = method;
+			this.args = args;
+		}
+	}
+
+	private final List<Call> calls = new ArrayList<Call>();
+	private boolean sent;
+
+	/**
+	 * Adds a call to the batch.
+	 * @return The call's future, which completes once the batch has been sent and its response received
+	 */
+	public synchronized RPCFuture add(String serviceName, String method, JSONObject args) {
+		if (sent) throw new IllegalStateException("Can't add to an RPC batch that's been sent");
+		Call call = new Call(serviceName, method, args);
+		calls.add(call);
+		return call.future;
+	}
+
+	public synchronized int size() {
+		return calls.size();
+	}
+
+	/**
+	 * Returns the calls' futures, in the order the calls were added.
+	 */
+	public synchronized List<RPCFuture> futures() {
+		List<RPCFuture> futures = new ArrayList<RPCFuture>(calls.size());
+		for (Call call : calls) futures.add(call.future);
+		return futures;
+	}
+
+	/**
+	 * Marks the batch sent, and returns its calls.
+	 */
+	synchronized List<Call> send() {
+		if (sent) throw new IllegalStateException("RPC batch has already been sent");
+		sent = true;
+		return new ArrayList<Call>(calls);
+	}
+
+	/**
+	 * Completes each call's future from the outcome of the batch: a future whose value holds the "results" of an
+	 * RPCBatchResponseMessage, or that failed.
+	 */
+	static void complete(List<Call> sentCalls, RPCFuture outcome) {
+		IOException failure = outcome.getFailure();
+		JSONArray results = null;
+		if (failure == null) {
+			try {
+				results = outcome.await().getJSONArray("results");
+			} catch (IOException e) {
+				failure = e;
+			} catch (JSONException e) {
+				failure = new IOException("Malformed RPC batch response: " + e.getMessage());
+			}
+		}
+		for (int i = 0; i < sentCalls.size(); i++) {
+			RPCFuture future = sentCalls.get(i).future;
+			if (failure != null) {
+				future.fail(failure);
+			} else if (i >= results.length()) {
+				future.fail(new IOException("RPC batch response has no result for call " + i));
+			} else {
+				JSONObject result = results.optJSONObject(i);
+				if (result == null) {
+					future.fail(new IOException("RPC batch response has a malformed result for call " + i));
+				} else if (result.has("error")) {
+					String message = result.optString("error");
+					long retryAfter = result.optLong("retryafter", -1);
+					if (retryAfter >= 0) future.fail(new RPCOverloadException("RPC server error : " + message, retryAfter));
+					else future.fail(new IOException("RPC server error : " + message));
+				} else {
+					future.complete(result.optJSONObject("value"));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Completes to as from completes.  For sending a batch's calls one at a time, to a server that doesn't
+	 * accept batches.
+	 */
+	static void chain(RPCFuture from, final RPCFuture to) {
+		from.addListener(new RPCFuture.Listener() {
+			@Override
+			public void onComplete(RPCFuture f) {
+				try {
+					to.complete(f.await(), f.maxAge());
+				} catch (IOException e) {
+					to.fail(e);
+				}
+			}
+		});
+	}
+}
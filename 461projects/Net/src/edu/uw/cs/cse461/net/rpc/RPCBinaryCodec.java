@@ -0,0 +1,395 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Converts RPCMessages to and from the bytes carried in one TCPMessageHandler message.
+ * <p>
+ * Two encodings are supported.  "json" is the original one: the message's JSONObject, as text.
+ * "binary" is negotiated by the connect control message (option "encoding":"binary", echoed in the
+ * OK response's value if the server agrees).  Once both sides agree, every later message on the connection,
+ * in both directions, is encoded as:
+ * <pre>
+ *   type     1 byte: 1=control, 2=invoke, 3=OK, 4=ERROR, 5=streamed OK, 6=invoke with timeout,
+ *            7=ERROR with retry-after, 8=cacheable OK, 9=batch, 10=batch response
+ *   id       varint
+ *   host     name
+ *   control: action (name), options (json)
+ *   invoke:  app (name), method (name), args (json)
+ *   invoke with timeout: app (name), method (name), args (json), timeout (varint)
+ *   OK:      callid (varint), value (json)
+ *   ERROR:   callid (varint), message (string), callargs (json)
+ *   ERROR with retry-after: callid (varint), message (string), callargs (json), retryafter (varint)
+ *   streamed OK: callid (varint), value (json), streamlength (varint)
+ *   cacheable OK: callid (varint), value (json), maxage (varint)
+ *   batch:   count (varint), count times: app (name), method (name), args (json); then timeout (varint, 0 if none)
+ *   batch response: callid (varint), count (varint), count times: 0 and value (json), or
+ *            1, message (string) and retryafter (varint, 0 if none, else the value plus one)
+ * </pre>
+ * A varint is an unsigned value, 7 bits per byte, low order first.  A string is a varint length
+ * followed by that many bytes of UTF-8.  A json field is a varint of 0 if absent, otherwise the length
+ * of the JSON text plus one, followed by the text.  A name is a varint: n &gt; 0 refers to the (n-1)'th name
+ * already sent in this direction on this connection; 0 is followed by a string, which is added to the table.
+ * So after the first call, a call to a service sends neither its host, service, nor method name.
+ * <p>
+ * A codec holds the name tables for one connection.  Messages must be encoded in the order they're written
+ * to the connection, and decoded in the order they're read, so callers must do each under the lock that
+ * orders their writes (reads).
+ * <p>
+ * Decoding accepts either encoding, whatever was negotiated: a JSON message always starts with '{'.
+ * <p>
+ * Types 6, 7 and 8 are only sent to peers that said, in the connect message, that they understand them.
+ * Otherwise the field they add is left out.  Type 9 is only sent to servers that agreed to batches, and type 10
+ * only in response to type 9.
+ */
+class RPCBinaryCodec {
+	/**
+	 * The value of the "encoding" connect option that requests binary encoding
+	 */
+	static final String BINARY = "binary";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int TYPE_CONTROL = 1;
+	private static final int TYPE_INVOKE = 2;
+	private static final int TYPE_OK = 3;
+	private static final int TYPE_ERROR = 4;
+	private static final int TYPE_OK_STREAM = 5;
+	private static final int TYPE_INVOKE_TIMEOUT = 6;
+	private static final int TYPE_ERROR_RETRY = 7;
+	private static final int TYPE_OK_MAXAGE = 8;
+	private static final int TYPE_BATCH = 9;
+	private static final int TYPE_BATCH_RESPONSE = 10;
+
+	/**
+	 * Bounds the size of the name tables.  Names that don't fit are sent as literals.
+	 */
+	private static final int MAX_NAMES = 1024;
+
+	private final boolean binary;
+	private final boolean sendRetryAfter;
+	private final boolean sendMaxAge;
+	private final Map<String, Integer> sentNames = new HashMap<String, Integer>();
+	private final List<String> receivedNames = new ArrayList<String>();
+
+	/**
+	 * @param binary true to encode messages in binary, false to encode them as JSON text
+	 */
+	RPCBinaryCodec(boolean binary) {
+		this(binary, false, false);
+	}
+
+	/**
+	 * @param sendRetryAfter true if the peer understands the binary ERROR with retry-after message
+	 * @param sendMaxAge true if the peer understands the binary cacheable OK message
+	 */
+	RPCBinaryCodec(boolean binary, boolean sendRetryAfter, boolean sendMaxAge) {
+		this.binary = binary;
+		this.sendRetryAfter = sendRetryAfter;
+		this.sendMaxAge = sendMaxAge;
+	}
+
+	boolean isBinary() {
+		return binary;
+	}
+
+	//---------------------------------------------------------
+	// Encoding
+	//---------------------------------------------------------
+
+	byte[] encode(RPCMessage message) throws JSONException {
+		if (!binary) return message.toJSONString().getBytes();
+
+		JSONObject obj = message.mObject;
+		Output out = new Output();
+		String type = message.type();
+		if (type.equals("control")) {
+			out.write(TYPE_CONTROL);
+			writeHeader(out, message);
+			writeName(out, obj.getString("action"));
+			out.writeJSON(obj.optJSONObject("options"));
+		} else if (type.equals("invoke")) {
+			// Only sent to servers that agreed to receive timeouts, so older ones never see the new type
+			boolean timed = obj.has("timeout");
+			out.write(timed ? TYPE_INVOKE_TIMEOUT : TYPE_INVOKE);
+			writeHeader(out, message);
+			writeName(out, obj.getString("app"));
+			writeName(out, obj.getString("method"));
+			out.writeJSON(obj.optJSONObject("args"));
+			if (timed) out.writeVarlong(obj.getLong("timeout"));
+		} else if (type.equals("OK")) {
+			boolean streamed = obj.has("streamlength");
+			boolean cacheable = !streamed && sendMaxAge && obj.has("maxage");
+			out.write(streamed ? TYPE_OK_STREAM : cacheable ? TYPE_OK_MAXAGE : TYPE_OK);
+			writeHeader(out, message);
+			out.writeVarint(obj.getInt("callid"));
+			out.writeJSON(obj.optJSONObject("value"));
+			if (streamed) out.writeVarlong(obj.getLong("streamlength"));
+			if (cacheable) out.writeVarlong(obj.getLong("maxage"));
+		} else if (type.equals("ERROR")) {
+			boolean retry = sendRetryAfter && obj.has("retryafter");
+			out.write(retry ? TYPE_ERROR_RETRY : TYPE_ERROR);
+			writeHeader(out, message);
+			out.writeVarint(obj.getInt("callid"));
+			out.writeString(obj.getString("message"));
+			out.writeJSON(obj.optJSONObject("callargs"));
+			if (retry) out.writeVarlong(obj.getLong("retryafter"));
+		} else if (type.equals("batch")) {
+			out.write(TYPE_BATCH);
+			writeHeader(out, message);
+			JSONArray calls = obj.getJSONArray("calls");
+			out.writeVarint(calls.length());
+			for (int i = 0; i < calls.length(); i++) {
+				JSONObject call = calls.getJSONObject(i);
+				writeName(out, call.getString("app"));
+				writeName(out, call.getString("method"));
+				out.writeJSON(call.optJSONObject("args"));
+			}
+			out.writeVarlong(obj.optLong("timeout", 0));
+		} else if (type.equals("BATCH")) {
+			out.write(TYPE_BATCH_RESPONSE);
+			writeHeader(out, message);
+			out.writeVarint(obj.getInt("callid"));
+			JSONArray results = obj.getJSONArray("results");
+			out.writeVarint(results.length());
+			for (int i = 0; i < results.length(); i++) {
+				JSONObject result = results.getJSONObject(i);
+				if (result.has("error")) {
+					out.write(1);
+					out.writeString(result.getString("error"));
+					out.writeVarlong(result.has("retryafter") ? result.getLong("retryafter") + 1 : 0);
+				} else {
+					out.write(0);
+					out.writeJSON(result.optJSONObject("value"));
+				}
+			}
+		} else {
+			throw new JSONException("Can't encode message of type " + type);
+		}
+		return out.toByteArray();
+	}
+
+	private void writeHeader(Output out, RPCMessage message) {
+		out.writeVarint(message.id());
+		writeName(out, message.host());
+	}
+
+	private void writeName(Output out, String name) {
+		Integer index = sentNames.get(name);
+		if (index != null) {
+			out.writeVarint(index + 1);
+			return;
+		}
+		out.writeVarint(0);
+		out.writeString(name);
+		if (sentNames.size() < MAX_NAMES) sentNames.put(name, sentNames.size());
+	}
+
+	/**
+	 * A ByteArrayOutputStream that knows how to write the primitive fields.
+	 */
+	private static class Output extends ByteArrayOutputStream {
+		Output() {
+			super(64);
+		}
+
+		void writeVarint(int value) {
+			while ((value & ~0x7f) != 0) {
+				write((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			write(value);
+		}
+
+		void writeVarlong(long value) {
+			while ((value & ~0x7fL) != 0) {
+				write((int) (value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			write((int) value);
+		}
+
+		void writeString(String str) {
+			byte[] bytes = str.getBytes(UTF8);
+			writeVarint(bytes.length);
+			write(bytes, 0, bytes.length);
+		}
+
+		void writeJSON(JSONObject obj) {
+			if (obj == null) {
+				writeVarint(0);
+				return;
+			}
+			byte[] bytes = obj.toString().getBytes(UTF8);
+			writeVarint(bytes.length + 1);
+			write(bytes, 0, bytes.length);
+		}
+	}
+
+	//---------------------------------------------------------
+	// Decoding
+	//---------------------------------------------------------
+
+	RPCMessage decode(byte[] buf) throws IOException {
+		if (buf.length == 0) throw new IOException("Empty RPC message");
+		if (buf[0] == '{') return RPCMessage.unmarshall(new String(buf));
+
+		Input in = new Input(buf);
+		try {
+			int type = in.readByte();
+			int id = in.readVarint();
+			String host = readName(in);
+			JSONObject obj = new JSONObject();
+			switch (type) {
+			case TYPE_CONTROL:
+				obj.put("type", "control");
+				obj.put("action", readName(in));
+				obj.putOpt("options", in.readJSON());
+				break;
+			case TYPE_INVOKE:
+			case TYPE_INVOKE_TIMEOUT:
+				obj.put("type", "invoke");
+				obj.put("app", readName(in));
+				obj.put("method", readName(in));
+				obj.putOpt("args", in.readJSON());
+				if (type == TYPE_INVOKE_TIMEOUT) obj.put("timeout", in.readVarlong());
+				break;
+			case TYPE_OK:
+			case TYPE_OK_STREAM:
+			case TYPE_OK_MAXAGE:
+				obj.put("type", "OK");
+				obj.put("callid", in.readVarint());
+				obj.putOpt("value", in.readJSON());
+				if (type == TYPE_OK_STREAM) obj.put("streamlength", in.readVarlong());
+				if (type == TYPE_OK_MAXAGE) obj.put("maxage", in.readVarlong());
+				break;
+			case TYPE_ERROR:
+			case TYPE_ERROR_RETRY:
+				obj.put("type", "ERROR");
+				obj.put("callid", in.readVarint());
+				obj.put("message", in.readString());
+				obj.putOpt("callargs", in.readJSON());
+				if (type == TYPE_ERROR_RETRY) obj.put("retryafter", in.readVarlong());
+				break;
+			case TYPE_BATCH: {
+				obj.put("type", "batch");
+				int count = in.readVarint();
+				JSONArray calls = new JSONArray();
+				for (int i = 0; i < count; i++) {
+					JSONObject call = new JSONObject();
+					call.put("app", readName(in));
+					call.put("method", readName(in));
+					call.putOpt("args", in.readJSON());
+					calls.put(call);
+				}
+				obj.put("calls", calls);
+				long timeout = in.readVarlong();
+				if (timeout > 0) obj.put("timeout", timeout);
+				break;
+			}
+			case TYPE_BATCH_RESPONSE: {
+				obj.put("type", "BATCH");
+				obj.put("callid", in.readVarint());
+				int count = in.readVarint();
+				JSONArray results = new JSONArray();
+				for (int i = 0; i < count; i++) {
+					JSONObject result = new JSONObject();
+					if (in.readByte() == 1) {
+						result.put("error", in.readString());
+						long retryAfter = in.readVarlong();
+						if (retryAfter > 0) result.put("retryafter", retryAfter - 1);
+					} else {
+						result.putOpt("value", in.readJSON());
+					}
+					results.put(result);
+				}
+				obj.put("results", results);
+				break;
+			}
+			default:
+				throw new IOException("Got unrecognized type in binary message: " + type);
+			}
+			return RPCMessage.unmarshall(host, id, obj);
+		} catch (JSONException e) {
+			throw new IOException("Unparsable binary message: " + e.getMessage());
+		}
+	}
+
+	private String readName(Input in) throws IOException {
+		int index = in.readVarint();
+		if (index > 0) {
+			if (index > receivedNames.size()) throw new IOException("Binary message refers to unknown name " + index);
+			return receivedNames.get(index - 1);
+		}
+		String name = in.readString();
+		if (receivedNames.size() < MAX_NAMES) receivedNames.add(name);
+		return name;
+	}
+
+	/**
+	 * Reads the primitive fields from a received message.
+	 */
+	private static class Input {
+		private final byte[] buf;
+		private int pos;
+
+		Input(byte[] buf) {
+			this.buf = buf;
+		}
+
+		int readByte() throws IOException {
+			if (pos >= buf.length) throw new IOException("Truncated binary message");
+			return buf[pos++] & 0xff;
+		}
+
+		int readVarint() throws IOException {
+			int result = 0;
+			for (int shift = 0; shift < 35; shift += 7) {
+				int b = readByte();
+				result |= (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) return result;
+			}
+			throw new IOException("Malformed varint in binary message");
+		}
+
+		long readVarlong() throws IOException {
+			long result = 0;
+			for (int shift = 0; shift < 70; shift += 7) {
+				int b = readByte();
+				result |= (long) (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) return result;
+			}
+			throw new IOException("Malformed varint in binary message");
+		}
+
+		private int readLength(int length) throws IOException {
+			if (length < 0 || length > buf.length - pos) throw new IOException("Truncated binary message");
+			int start = pos;
+			pos += length;
+			return start;
+		}
+
+		String readString() throws IOException {
+			int length = readVarint();
+			int start = readLength(length);
+			return new String(buf, start, length, UTF8);
+		}
+
+		JSONObject readJSON() throws IOException, JSONException {
+			int length = readVarint();
+			if (length == 0) return null;
+			int start = readLength(length - 1);
+			return new JSONObject(new String(buf, start, length - 1, UTF8));
+		}
+	}
+}
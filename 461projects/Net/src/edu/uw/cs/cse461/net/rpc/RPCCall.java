@@ -1,18 +1,16 @@
 package edu.uw.cs.cse461.net.rpc;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.List;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.net.base.NetLoadable.NetLoadableService;
+import edu.uw.cs.cse461.util.ConfigManager;
 import edu.uw.cs.cse461.util.Log;
 
 /**
@@ -23,8 +21,11 @@ import edu.uw.cs.cse461.util.Log;
  * <p>
  * This class is responsible for implementing persistent connections. 
  * (What you might think of as the actual remote call code is in RCPCallerSocket.java.)
- * Implementing persistence requires keeping a cache that must be cleaned periodically.
- * We do that using a cleaner thread.
+ * They're kept in an RPCConnectionPool, which may hold several connections to each
+ * remote service, and which closes them once they go unused.
+ * <p>
+ * If rpc.cache.entries is set, responses from methods the server registered as cacheable are kept
+ * in an RPCResponseCache, and invoke() and invokeAsync() answer identical calls from it until they expire.
  * 
  * @author zahorjan
  *
@@ -45,7 +46,8 @@ public class RPCCall extends NetLoadableService {
 	 * @param serviceName Name of service to be invoked
 	 * @param method Name of method of the service to invoke
 	 * @param userRequest Arguments to call
-	 * @param socketTimeout Maximum time to wait for a response, in msec.
+	 * @param socketTimeout Maximum time for the whole call, in msec.  If this thread is handling an RPC call
+	 * itself, the call also ends no later than that call's deadline (see RPCDeadline).
 	 * @return Returns whatever the remote method returns.
 	 * @throws JSONException
 	 * @throws IOException
@@ -60,7 +62,7 @@ public class RPCCall extends NetLoadableService {
 			) throws JSONException, IOException {
 		RPCCall rpcCallObj =  (RPCCall)NetBase.theNetBase().getService( "rpccall" );
 		if ( rpcCallObj == null ) throw new IOException("RPCCall.invoke() called but the RPCCall service isn't loaded");
-		return rpcCallObj._invoke(ip, port, serviceName, method, userRequest, socketTimeout, true);
+		return rpcCallObj.cachedInvoke(ip, port, serviceName, method, userRequest, deadline(socketTimeout));
 	}
 	
 	/**
@@ -78,213 +80,425 @@ public class RPCCall extends NetLoadableService {
 		int socketTimeout  = NetBase.theNetBase().config().getAsInt("net.timeout.socket", 2000);
 		return invoke(ip, port, serviceName, method, userRequest, socketTimeout);
 	}
+	
+	/**
+	 * Invokes method() on serviceName located on remote host ip:port, without waiting for the result.
+	 * Any number of calls may be outstanding at once; they share the connection to ip:port.
+	 * @param ip Remote host's ip address
+	 * @param port RPC service port on remote host
+	 * @param serviceName Name of service to be invoked
+	 * @param method Name of method of the service to invoke
+	 * @param userRequest Arguments to call
+	 * @param socketTimeout Time after which the call fails with a SocketTimeoutException, in msec.
+	 * @return A future that completes with whatever the remote method returns, or fails with the 
+	 * IOException invoke() would have thrown.
+	 */
+	public static RPCFuture invokeAsync(
+			String ip,				  // ip or dns name of remote host
+			int port,                 // port that RPC is listening on on the remote host
+			String serviceName,       // name of the remote service
+			String method,            // name of that service's method to invoke
+			JSONObject userRequest,   // arguments to send to remote method,
+			int socketTimeout         // timeout for this call, in msec.
+			) {
+		RPCCall rpcCallObj =  (RPCCall)NetBase.theNetBase().getService( "rpccall" );
+		if ( rpcCallObj == null ) return RPCFuture.failed(new IOException("RPCCall.invokeAsync() called but the RPCCall service isn't loaded"));
+		return rpcCallObj.cachedInvokeAsync(ip, port, serviceName, method, userRequest, deadline(socketTimeout));
+	}
+	
+	/**
+	 * A convenience implementation of invokeAsync() that uses the net.timeout.socket timeout.
+	 */
+	public static RPCFuture invokeAsync(
+			String ip,				  // ip or dns name of remote host
+			int port,                 // port that RPC is listening on on the remote host
+			String serviceName,       // name of the remote service
+			String method,            // name of that service's method to invoke
+			JSONObject userRequest    // arguments to send to remote method,
+			) {
+		int socketTimeout  = NetBase.theNetBase().config().getAsInt("net.timeout.socket", 2000);
+		return invokeAsync(ip, port, serviceName, method, userRequest, socketTimeout);
+	}
+
+	/**
+	 * Invokes a method that streams its response (see RPCStreamingResponse).  The bytes of the body are written
+	 * to sink as they arrive, so they never have to be held in memory all at once.  (If the method returns a
+	 * plain response, nothing is written to sink.)  The sink is written to by another thread, but all writes
+	 * have been done by the time this method returns.
+	 * @param sink Where to write the response body
+	 * @param socketTimeout Maximum time to wait for the response, including all of its body, in msec.
+	 * @return The response's value
+	 */
+	public static JSONObject invokeStream(
+			String ip,				  // ip or dns name of remote host
+			int port,                 // port that RPC is listening on on the remote host
+			String serviceName,       // name of the remote service
+			String method,            // name of that service's method to invoke
+			JSONObject userRequest,   // arguments to send to remote method,
+			OutputStream sink,        // destination for the streamed body
+			int socketTimeout         // timeout for this call, in msec.
+			) throws JSONException, IOException {
+		RPCCall rpcCallObj =  (RPCCall)NetBase.theNetBase().getService( "rpccall" );
+		if ( rpcCallObj == null ) throw new IOException("RPCCall.invokeStream() called but the RPCCall service isn't loaded");
+		// A call that fails part way through its body can't be repeated, as the sink already has some of it.
+		// _invokeAsync() only repeats calls that couldn't be sent.
+		return rpcCallObj._invokeAsync(ip, port, serviceName, method, userRequest, sink, deadline(socketTimeout), true).await();
+	}
+	
+	/**
+	 * Invokes all the calls of batch on the RPC service at ip:port, in one message, without waiting for the results.
+	 * The server runs them concurrently, and returns all their results in one message.  If the server doesn't accept
+	 * batches, the calls are sent one at a time, pipelined, with the same results.
+	 * @param batch The calls.  It can't be added to once it's been sent.
+	 * @param socketTimeout Time after which every call still outstanding fails with a SocketTimeoutException, in msec.
+	 * @return The batch's futures, one per call, in the order the calls were added
+	 */
+	public static List<RPCFuture> invokeBatch(
+			String ip,				  // ip or dns name of remote host
+			int port,                 // port that RPC is listening on on the remote host
+			RPCBatch batch,           // the calls to make
+			int socketTimeout         // timeout for the whole batch, in msec.
+			) {
+		List<RPCBatch.Call> calls = batch.send();
+		RPCCall rpcCallObj =  (RPCCall)NetBase.theNetBase().getService( "rpccall" );
+		if ( rpcCallObj == null ) {
+			RPCBatch.complete(calls, RPCFuture.failed(new IOException("RPCCall.invokeBatch() called but the RPCCall service isn't loaded")));
+		} else {
+			rpcCallObj._invokeBatch(ip, port, calls, deadline(socketTimeout), true);
+		}
+		return batch.futures();
+	}
+	
+	/**
+	 * A convenience implementation of invokeBatch() that uses the net.timeout.socket timeout.
+	 */
+	public static List<RPCFuture> invokeBatch(String ip, int port, RPCBatch batch) {
+		int socketTimeout  = NetBase.theNetBase().config().getAsInt("net.timeout.socket", 2000);
+		return invokeBatch(ip, port, batch, socketTimeout);
+	}
+	
+	/**
+	 * Returns the deadline of a call with the given timeout: socketTimeout msec from now, or the deadline of the
+	 * call this thread is handling, if that's sooner.
+	 */
+	private static RPCDeadline deadline(int socketTimeout) {
+		return RPCDeadline.after(socketTimeout).min(RPCDeadline.current());
+	}
 
 	//-------------------------------------------------------------------------------------------
 	//-------------------------------------------------------------------------------------------
 
 	/**
-	 * Maps a host address to a cached socket to that host. This field is used
-	 * as a lock on the cache.
+	 * The persistent connections, shared by all calls
 	 */
-	private Map<HostAddress, RPCCallerSocket> socketCache;
-
+	private RPCConnectionPool pool;
+	
 	/**
-	 * Maps a host address to the last time (in milliseconds) that socket was
-	 * used. Lock socketCache before accessing.
+	 * Enforces the deadlines of calls on all connections
 	 */
-	private Map<HostAddress, Long> socketLastUsed;
+	private RPCTimerWheel timerWheel;
 	
 	/**
-	 * A timer, which periodically evicts sockets from the cache
+	 * Responses to calls to cacheable methods, or null if caching is off
 	 */
-	private Timer timer;
+	private RPCResponseCache cache;
 	
 	/**
 	 * The infrastructure requires a public constructor taking no arguments.  Plus, we need a constructor.
 	 */
 	public RPCCall() {
 		super("rpccall");
+		ConfigManager config = NetBase.theNetBase().config();
 
-		// Construct the socket cache
-		socketCache = new HashMap<HostAddress, RPCCallerSocket>();
-		socketLastUsed = new HashMap<HostAddress, Long>();
+		// Start the timer wheel.  Timeouts fire up to one tick late.
+		int tick = config.getAsInt("rpc.timer.tick", 10, 1);
+		int slots = config.getAsInt("rpc.timer.slots", 512, 1);
+		timerWheel = new RPCTimerWheel(tick, slots);
+
+		// Start the connection pool
+		int persistenceTimeout = config.getAsInt("rpc.persistence.timeout", 30000);
+		int minConnections = config.getAsInt("rpc.pool.min", 1, 0);
+		int maxConnections = config.getAsInt("rpc.pool.max", 4, 1);
+		int maxPending = config.getAsInt("rpc.pool.maxpending", 16, 1);
+		int idleTimeout = config.getAsInt("rpc.pool.idletimeout", 5000, 0);
+		int checkInterval = config.getAsInt("rpc.pool.checkinterval", 1000, 1);
+		int connectTimeout = config.getAsInt("net.timeout.socket", 2000);
+		pool = new RPCConnectionPool(minConnections, maxConnections, maxPending, idleTimeout,
+									 persistenceTimeout, checkInterval, connectTimeout, timerWheel);
+		
+		// The response cache is off unless it's given a size
+		int cacheEntries = config.getAsInt("rpc.cache.entries", 0, 0);
+		int cacheMaxAge = config.getAsInt("rpc.cache.maxage", 60000, 0);
+		if (cacheEntries > 0) cache = new RPCResponseCache(cacheEntries, cacheMaxAge);
+	}
+	
+	/**
+	 * Makes a call, answering it from the cache if there's a response there, and otherwise making it, or joining
+	 * an identical call that's already being made.
+	 */
+	private JSONObject cachedInvoke(String ip, int port, String serviceName, String method, JSONObject userRequest,
+			RPCDeadline deadline) throws JSONException, IOException {
+		if (cache == null) return _invoke(ip, port, serviceName, method, userRequest, deadline, true).await();
+		
+		String target = RPCResponseCache.target(ip, port, serviceName, method);
+		if (!cache.isCacheable(target)) {
+			RPCFuture call = _invoke(ip, port, serviceName, method, userRequest, deadline, true);
+			if (call.maxAge() > 0) cache.leave(cache.key(target, userRequest), call, null);
+			return call.await();
+		}
+		RPCResponseCache.Key key = cache.key(target, userRequest);
+		JSONObject value = cache.get(key);
+		if (value != null) return value;
+		RPCFuture leader = cache.join(key);
+		if (leader != null) return follow(leader, deadline).await();
+		
+		RPCFuture call = null;
+		IOException failure = null;
+		try {
+			call = _invoke(ip, port, serviceName, method, userRequest, deadline, true);
+		} catch (IOException e) {
+			failure = e;
+			throw e;
+		} finally {
+			// Always called, so identical calls waiting for this one are never stranded
+			cache.leave(key, call, failure != null ? failure : new IOException("RPC call failed"));
+		}
+		return call.await();
+	}
+	
+	/**
+	 * The asynchronous version of cachedInvoke().
+	 */
+	private RPCFuture cachedInvokeAsync(String ip, int port, String serviceName, String method,
+			JSONObject userRequest, RPCDeadline deadline) {
+		if (cache == null) return _invokeAsync(ip, port, serviceName, method, userRequest, null, deadline, true);
 		
-		// Start the cache evictor
-		int persistenceTimeout = NetBase.theNetBase().config().getAsInt("rpc.persistence.timeout", 30000);
-		timer = new Timer();
-		timer.scheduleAtFixedRate(new CacheEvictor(persistenceTimeout), persistenceTimeout, persistenceTimeout);
+		final String target = RPCResponseCache.target(ip, port, serviceName, method);
+		if (!cache.isCacheable(target)) {
+			final JSONObject args = userRequest;
+			RPCFuture call = _invokeAsync(ip, port, serviceName, method, userRequest, null, deadline, true);
+			call.addListener(new RPCFuture.Listener() {
+				@Override
+				public void onComplete(RPCFuture f) {
+					if (f.maxAge() <= 0) return;
+					try {
+						cache.leave(cache.key(target, args), f, null);
+					} catch (Exception e) {
+						Log.w(TAG, "Caching RPC response failed: " + e.getMessage());
+					}
+				}
+			});
+			return call;
+		}
+		
+		final RPCResponseCache.Key key;
+		try {
+			key = cache.key(target, userRequest);
+			JSONObject value = cache.get(key);
+			if (value != null) return RPCFuture.completed(value);
+		} catch (JSONException e) {
+			return RPCFuture.failed(new IOException("RPC message error: " + e.getMessage()));
+		}
+		RPCFuture leader = cache.join(key);
+		if (leader != null) return follow(leader, deadline);
+		
+		RPCFuture call = _invokeAsync(ip, port, serviceName, method, userRequest, null, deadline, true);
+		call.addListener(new RPCFuture.Listener() {
+			@Override
+			public void onComplete(RPCFuture f) {
+				try {
+					cache.leave(key, f, null);
+				} catch (Exception e) {
+					Log.w(TAG, "Caching RPC response failed: " + e.getMessage());
+				}
+			}
+		});
+		// The caller gets a future of its own, so cancelling it doesn't cancel the call for others waiting on it
+		return follow(call, null);
+	}
+	
+	/**
+	 * Returns a future that completes with a copy of shared's value, or fails as shared does, or by the deadline.
+	 * @param deadline If not null, the time at which the returned future fails, if shared hasn't completed
+	 */
+	private RPCFuture follow(RPCFuture shared, RPCDeadline deadline) {
+		final RPCFuture future = new RPCFuture();
+		if (deadline != null) {
+			future.setTimeout(timerWheel.schedule(deadline.remaining(), new Runnable() {
+				@Override
+				public void run() {
+					future.fail(new SocketTimeoutException("Timed out waiting for RPC response"));
+				}
+			}));
+		}
+		shared.addListener(new RPCFuture.Listener() {
+			@Override
+			public void onComplete(RPCFuture f) {
+				try {
+					JSONObject value = f.await();
+					future.complete(value == null ? null : RPCResponseCache.copy(value), f.maxAge());
+				} catch (IOException e) {
+					future.fail(e);
+				} catch (JSONException e) {
+					future.fail(new IOException("RPC message error: " + e.getMessage()));
+				}
+			}
+		});
+		return future;
 	}
 	
 	/**
 	 * This private method performs the actual invocation, including the management of persistent connections.
-	 * Note that because we may issue the call twice, we  may (a) cause it to be executed twice at the server(!),
-	 * and (b) may end up blocking the caller for around twice the timeout specified in the call. (!)
+	 * Note that because we may issue the call twice, we  may cause it to be executed twice at the server(!).
+	 * Both tries, including any connecting, share the one deadline.
+	 * The call is re-issued only if the connection it was sent on failed; a call that simply times out
+	 * is not repeated, as the connection may still be carrying other callers' calls.
 	 * 
 	 * @param ip
 	 * @param port
 	 * @param serviceName
 	 * @param method
 	 * @param userRequest
-	 * @param socketTimeout Max time to wait for this call
+	 * @param deadline Time by which the call must complete
 	 * @param tryAgain Set to true if you want to repeat call if a socket error occurs; e.g., persistent socket is no good when you use it
-	 * @return
+	 * @return The completed call
 	 * @throws JSONException
 	 * @throws IOException
 	 */
-	private JSONObject _invoke(
+	private RPCFuture _invoke(
 			String ip,				  // ip or dns name of remote host
 			int port,                 // port that RPC is listening on on the remote host
 			String serviceName,       // name of the remote service
 			String method,            // name of that service's method to invoke
 			JSONObject userRequest,   // arguments to send to remote method
-			int socketTimeout,        // max time to wait for reply
+			RPCDeadline deadline,     // time by which the whole call must complete
 			boolean tryAgain          // true if an invocation failure on a persistent connection should cause a re-try of the call, false to give up
 			) throws JSONException, IOException {
 		
-		RPCCallerSocket socket = getSocket(ip, port);
-		JSONObject result;
+		RPCCallerSocket socket = pool.checkout(ip, port, deadline);
+		RPCFuture call;
 		
 		try {
-			result = socket.invoke(serviceName, method, userRequest, socketTimeout);
+			call = socket.invokeAsync(serviceName, method, userRequest, null, deadline);
+			call.await();
 		} catch (IOException e) {
-			// If the previous invocation failed, re-try once with a new socket
-			if (tryAgain) {
-				synchronized (socketCache) {
-					HostAddress key = new HostAddress(ip, port);
-					socketCache.remove(key);
-					socketLastUsed.remove(key);
-				}
-				return _invoke(ip, port, serviceName, method, userRequest, socketTimeout, false);
+			// If the connection failed, re-try once with a new socket
+			if (tryAgain && !socket.isAlive()) {
+				pool.evict(ip, port, socket);
+				return _invoke(ip, port, serviceName, method, userRequest, deadline, false);
 			} else {
 				throw e;
 			}
+		} finally {
+			// A socket the server wouldn't keep alive is good for just this one call
+			if (!socket.isPersistent()) socket.discard();
 		}
-		return result;
-	}
-	
-	/**
-	 * Returns a socket to the given host. Returns a cached socket if possible,
-	 * otherwise creates a new socket.
-	 * 
-	 * @param hostname
-	 *            the destination ip address
-	 * @param port
-	 *            the destination port
-	 * @return a socket to the specified host
-	 * @throws IOException
-	 *             if errors are encountered when communicating with the host
-	 * @throws JSONException
-	 *             if errors are encountered when parsing JSON messages to or
-	 *             from host
-	 */
-	private RPCCallerSocket getSocket(String hostname, int port) throws IOException, JSONException {
-		synchronized(socketCache) {
-			HostAddress key = new HostAddress(hostname, port);
-			if (socketCache.containsKey(key)) {
-				return socketCache.get(key);
-			}
-			RPCCallerSocket newSocket = new RPCCallerSocket(hostname, port, true);
-			
-			if (newSocket.isPersistent()) {
-				socketCache.put(key, newSocket);
-				socketLastUsed.put(key, System.currentTimeMillis());
-			}
-			
-			return newSocket;
-		}
-	}
-	
-	@Override
-	public void shutdown() {
-		timer.cancel();
-	}
-	
-	@Override
-	public String dumpState() {
-		synchronized (socketCache) {
-			StringBuilder builder = new StringBuilder();
-			builder.append("Current persistent connections are:\n");
-			
-			for (HostAddress key : socketCache.keySet()) {
-				builder.append("    Socket '" + key + "' last used at " + socketLastUsed.get(key) + "\n");
-			}
-			
-			return builder.toString();
-		}
+		return call;
 	}
 	
 	/**
-	 * A HostAddress is a hostname/port pair. Used to uniquely identify sockets in the cache.
+	 * The asynchronous version of _invoke().  Only a call whose connection had already failed, so that the
+	 * invocation was never sent, is re-tried.  Connection set-up, when the pool needs another connection,
+	 * is still synchronous.
 	 */
-	private class HostAddress {
-		private String hostname;
-		private int port;
-		
-		public HostAddress(String hostname, int port) {
-			this.hostname = hostname;
-			this.port = port;
-		}
-		
-		@Override
-		public int hashCode() {
-			return hostname.hashCode() * port;
+	private RPCFuture _invokeAsync(
+			String ip,
+			int port,
+			String serviceName,
+			String method,
+			JSONObject userRequest,
+			OutputStream sink,
+			RPCDeadline deadline,
+			boolean tryAgain
+			) {
+		final RPCCallerSocket socket;
+		RPCFuture future;
+		try {
+			socket = pool.checkout(ip, port, deadline);
+			future = socket.invokeAsync(serviceName, method, userRequest, sink, deadline);
+		} catch (IOException e) {
+			return RPCFuture.failed(e);
+		} catch (JSONException e) {
+			return RPCFuture.failed(new IOException("RPC message error: " + e.getMessage()));
 		}
 		
-		@Override
-		public boolean equals(Object other) {
-			if (! (other instanceof HostAddress))
-				return false;
-			
-			HostAddress cast = (HostAddress) other;
-			return port == cast.port && hostname.equals(cast.hostname);
+		if (tryAgain && future.isDone() && !socket.isAlive()) {
+			pool.evict(ip, port, socket);
+			return _invokeAsync(ip, port, serviceName, method, userRequest, sink, deadline, false);
 		}
 		
-		@Override
-		public String toString() {
-			return hostname + ":" + port;
+		// A socket the server wouldn't keep alive is good for just this one call
+		if (!socket.isPersistent()) {
+			future.addListener(new RPCFuture.Listener() {
+				@Override
+				public void onComplete(RPCFuture f) {
+					socket.discard();
+				}
+			});
 		}
+		return future;
 	}
 	
 	/**
-	 * A task that periodically evicts old sockets
+	 * Sends a batch of calls, completing their futures when the response arrives.  The batch is sent again only if
+	 * its connection had already failed, so that it was never sent.  The response cache isn't consulted: the calls
+	 * are going to the server together anyway.
 	 */
-	private class CacheEvictor extends TimerTask {
-		private static final String TAG = "RPCCall:CacheEvictor";
-
-		private int evictionTime;
+	private void _invokeBatch(
+			String ip,
+			int port,
+			final List<RPCBatch.Call> calls,
+			RPCDeadline deadline,
+			boolean tryAgain
+			) {
+		if (calls.isEmpty()) return;
 		
-		public CacheEvictor(int evictionTime) {
-			this.evictionTime = evictionTime;
+		final RPCCallerSocket socket;
+		RPCFuture outcome;
+		try {
+			socket = pool.checkout(ip, port, deadline);
+			if (!socket.acceptsBatches()) {
+				// An older server: make the calls one by one, on the pool's connections
+				if (!socket.isPersistent()) socket.discard();
+				for (RPCBatch.Call call : calls) {
+					RPCBatch.chain(_invokeAsync(ip, port, call.serviceName, call.method, call.args, null, deadline, true), call.future);
+				}
+				return;
+			}
+			outcome = socket.invokeBatch(calls, deadline);
+		} catch (IOException e) {
+			RPCBatch.complete(calls, RPCFuture.failed(e));
+			return;
+		} catch (JSONException e) {
+			RPCBatch.complete(calls, RPCFuture.failed(new IOException("RPC message error: " + e.getMessage())));
+			return;
 		}
 		
-		/**
-		 * Removes any sockets older than evictionTime from the cache
-		 */
-		@Override
-		public void run() {
-			synchronized (socketCache) {
-				long now = System.currentTimeMillis();
-				Log.d(TAG, "Beginning cache eviction at " + now);
-				
-				// Iterate over the cached sockets, and remove those that were used more than
-				// evictionTime milliseconds ago
-				Iterator<Entry<HostAddress, Long>> iter = socketLastUsed.entrySet().iterator();
-				while (iter.hasNext()) {
-					Entry<HostAddress, Long> entry = iter.next();
-					HostAddress key = entry.getKey();
-					long lastUsed = entry.getValue();
-					
-					if (lastUsed + evictionTime < now) {
-						// Remove the socket from the cache, and close it
-						iter.remove();
-						socketCache.get(key).discard();
-						socketCache.remove(key);
-						Log.d(TAG, "Discarded socket '" + key + "' last used at " + lastUsed);
-					}
-				}
-				
-				Log.d(TAG, "Cache eviction complete");
+		if (tryAgain && outcome.isDone() && !socket.isAlive()) {
+			pool.evict(ip, port, socket);
+			_invokeBatch(ip, port, calls, deadline, false);
+			return;
+		}
+		
+		outcome.addListener(new RPCFuture.Listener() {
+			@Override
+			public void onComplete(RPCFuture f) {
+				// A socket the server wouldn't keep alive is good for just this one batch
+				if (!socket.isPersistent()) socket.discard();
+				RPCBatch.complete(calls, f);
 			}
-		}	
+		});
+	}
+	
+	@Override
+	public void shutdown() {
+		pool.shutdown();
+		timerWheel.stop();
+	}
+	
+	@Override
+	public String dumpState() {
+		if (cache == null) return pool.dumpState();
+		return pool.dumpState() + cache.dumpState();
 	}
 }
@@ -2,7 +2,7 @@ package edu.uw.cs.cse461.net.rpc;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 
 import org.json.JSONObject;
@@ -13,46 +13,123 @@ import edu.uw.cs.cse461.util.Log;
  * An object of this type represents an RPC callable method.  You'll have one
  * object of this type for each method you expose by RPC.
  * <p>
- * The parameterized type, T, is the class exposing the method.
+ * It can name the method reflectively, as an object and a method name, or be given
+ * an RPCHandler to call directly.  Either way, the work of finding the method is done
+ * once, here in the constructor, so a call is just a call.
  * <p>
  * See the source in EchoRPCService.java for an example of its use.
  * @author zahorjan
  *
- * @param <T>
  */
 public class RPCCallableMethod {
 	private static final String TAG="RPCCallableMethod";
-	
-	Object service;
-	Method method;
+
+	private final RPCHandler handler;
+	private final String description;
+
 	/**
 	 * Constructor.
 	 * @param serviceObject The Java instance of the object that will field the RPC
 	 * @param methodName The name of the Java method to invoke on that object, as a String
 	 * @throws NoSuchMethodException
 	 */
-	public RPCCallableMethod(Object serviceObject, String methodName) throws NoSuchMethodException { 
-		service = serviceObject; 
-		Class<? extends Object> serviceClass = (Class<? extends Object>)service.getClass();
-		method = serviceClass.getMethod(methodName, JSONObject.class);
+	public RPCCallableMethod(Object serviceObject, String methodName) throws NoSuchMethodException {
+		Class<? extends Object> serviceClass = (Class<? extends Object>)serviceObject.getClass();
+		Method method = serviceClass.getMethod(methodName, JSONObject.class);
+		handler = new ReflectiveHandler(serviceObject, method);
+		description = serviceClass.getName() + "." + methodName + "()";
+	}
+
+	/**
+	 * Constructor, for a method implemented by handler.  No reflection is involved.
+	 */
+	public RPCCallableMethod(RPCHandler handler) {
+		this(handler, handler.getClass().getName());
+	}
+
+	/**
+	 * Constructor, for subclasses that wrap a handler of their own around another method.
+	 */
+	RPCCallableMethod(RPCHandler handler, String description) {
+		this.handler = handler;
+		this.description = description;
 	}
+
+	RPCHandler handler() {
+		return handler;
+	}
+
 	/**
 	 * This method is called to actually invoke the method that handles the RPC.
 	 * @param args  The arguments to pass on this call
-	 * @return The JSONObject returned by the RPC handling method of the service
+	 * @return The JSONObject returned by the RPC handling method of the service.  If it returned an
+	 * RPCStreamingResponse, the response's value.
 	 * @throws Exception
 	 */
 	public JSONObject handleCall(JSONObject args) throws Exception {
+		Object result = invoke(args);
+		if ( result instanceof RPCStreamingResponse ) return ((RPCStreamingResponse)result).value();
+		return (JSONObject)result;
+	}
+
+	/**
+	 * Invokes the method, returning whatever it returns: a JSONObject, or an RPCStreamingResponse.
+	 * Exceptions thrown by the method are rethrown as they are, not wrapped.  If it returns anything
+	 * else, an IllegalStateException is thrown, so that only this call fails.
+	 */
+	Object invoke(JSONObject args) throws Exception {
 		try {
-			return (JSONObject)method.invoke(service, args);
+			Object result = handler.handleCall(args);
+			if ( result != null && !(result instanceof JSONObject) && !(result instanceof RPCStreamingResponse) ) {
+				throw new IllegalStateException(description + " returned a " + result.getClass().getName()
+						+ ", not a JSONObject or RPCStreamingResponse");
+			}
+			return result;
+		} catch (RuntimeException e) {
+			// Most likely a bug in the method, so it's worth the stack trace
+			StringWriter trace = new StringWriter();
+			e.printStackTrace(new PrintWriter(trace));
+			Log.e(TAG, description + " threw " + e + "\n" + trace);
+			throw e;
 		} catch (Exception e) {
-			final Writer trace = new StringWriter();
-			final PrintWriter printWriter = new PrintWriter(trace);
-			e.printStackTrace(printWriter);
-			Log.e(TAG, "Caught Exception: " + e.getMessage() + "\n" + trace.toString());
-			printWriter.close();
-			trace.close();
+			// The method reporting an error to its caller, which is routine
+			Log.d(TAG, description + " threw " + e);
 			throw e;
 		}
 	}
+
+	@Override
+	public String toString() {
+		return description;
+	}
+
+	/**
+	 * Calls a Method found by reflection.  Access checks are done once, by setAccessible(), rather than on each call.
+	 */
+	private static class ReflectiveHandler implements RPCHandler {
+		private final Object service;
+		private final Method method;
+
+		ReflectiveHandler(Object service, Method method) {
+			this.service = service;
+			this.method = method;
+			try {
+				method.setAccessible(true);
+			} catch (SecurityException e) {
+				Log.w(TAG, "Can't suppress access checks for " + method + ": " + e.getMessage());
+			}
+		}
+
+		@Override
+		public Object handleCall(JSONObject args) throws Exception {
+			try {
+				return method.invoke(service, args);
+			} catch (InvocationTargetException e) {
+				Throwable cause = e.getCause();
+				if ( cause instanceof Exception ) throw (Exception)cause;
+				if ( cause instanceof Error ) throw (Error)cause;
+				throw e;
+			}
+		}
+	}
 }
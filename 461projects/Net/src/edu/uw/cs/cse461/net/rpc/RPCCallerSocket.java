@@ -1,21 +1,40 @@
 package edu.uw.cs.cse461.net.rpc;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import edu.uw.cs.cse461.net.base.NetBase;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCBatchMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCControlMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCInvokeMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCBatchResponseMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCErrorResponseMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCNormalResponseMessage;
+import edu.uw.cs.cse461.net.tcpmessagehandler.MessageCompressor;
 import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandler;
 import edu.uw.cs.cse461.util.Log;
+import edu.uw.cs.cse461.util.Log.DebugLevel;
 
 /**
  * Implements a Socket to use in sending remote RPC invocations.  (It must engage
  * in the RPC handshake before sending the invocation request.)
+ * <p>
+ * Calls are pipelined: any number of threads may invoke() concurrently, each sending its
+ * invocation without waiting for earlier ones to complete.  A reader thread matches the
+ * responses, which the server may send in any order, to the waiting callers by callid.
+ * Nothing blocks waiting for a particular response: each call's deadline is enforced by a
+ * shared timer wheel, so a single thread can have any number of invokeAsync() calls outstanding.
  * @author zahorjan
  *
  */
@@ -32,6 +51,42 @@ import edu.uw.cs.cse461.util.Log;
 	 */
 	private boolean persistent;
 	
+	/**
+	 * Calls that have been sent but not yet responded to, keyed by the id of the invoke message.
+	 */
+	private final Map<Integer, RPCFuture> pendingCalls = new ConcurrentHashMap<Integer, RPCFuture>();
+	
+	/**
+	 * Enforces the deadlines of pending calls.
+	 */
+	private final RPCTimerWheel timerWheel;
+	
+	/**
+	 * Encodes invocations and decodes responses, in whichever encoding was negotiated.
+	 * Encoding is done while holding the messageHandler lock; decoding is done by the reader thread.
+	 */
+	private RPCBinaryCodec codec;
+	
+	/**
+	 * Set once the connection has failed or been discarded.  No further calls can be made on this socket.
+	 */
+	private volatile IOException closedCause;
+	
+	/**
+	 * When the last call was sent on this socket, or it was connected (System.currentTimeMillis())
+	 */
+	private volatile long lastUsed = System.currentTimeMillis();
+	
+	/**
+	 * Whether the server agreed to receive calls' deadlines
+	 */
+	private boolean sendDeadlines;
+	
+	/**
+	 * Whether the server agreed to receive batches of calls
+	 */
+	private boolean sendBatches;
+	
 	/**
 	 * Create a socket for sending RPC invocations, connecting it to the specified remote ip and port.
 	 * @param Remote host's name. In Project 3, it's not terribly meaningful - repeat the ip.
@@ -39,24 +94,38 @@ import edu.uw.cs.cse461.util.Log;
 	 * @param ip  Remote system IP address.
 	 * @param port Remote RPC service's port.
 	 * @param wantPersistent True if caller wants to try to establish a persistent connection, false otherwise
+	 * @param timerWheel Timer used to enforce call deadlines
+	 * @param timeout Maximum time to wait to connect, and for each read of the handshake, in msec.
 	 * @throws IOException
 	 * @throws JSONException
 	 */
-	RPCCallerSocket(String ip, int port, boolean wantPersistent) throws IOException, JSONException {
-		super(ip, port);
+	RPCCallerSocket(String ip, int port, boolean wantPersistent, RPCTimerWheel timerWheel, int timeout) throws IOException, JSONException {
+		super();
+		this.timerWheel = timerWheel;
+		connect(new InetSocketAddress(ip, port), timeout);
 		
 		// Useful when debugging:
 		// Log.setLevel(Log.DebugLevel.DEBUG.toInt());
 		
-		// Create the message handler for this socket. Uses a default timeout, since the client has not had an
-		// opportunity to set one themselves
+		// Create the message handler for this socket.
 		messageHandler = new TCPMessageHandler(this);
-		messageHandler.setTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.socket", 2000));
+		messageHandler.setTimeout(timeout);
 		
 		// Handshake with the remote service
 		JSONObject options = new JSONObject();
 		if (wantPersistent)
 			options.put("connection", "keep-alive");
+		boolean wantBinary = RPCBinaryCodec.BINARY.equals(
+				NetBase.theNetBase().config().getProperty("rpc.encoding", RPCBinaryCodec.BINARY));
+		if (wantBinary)
+			options.put("encoding", RPCBinaryCodec.BINARY);
+		options.put("deadline", "yes");
+		options.put("retryafter", "yes");
+		options.put("maxage", "yes");
+		options.put("batch", "yes");
+		boolean wantCompression = "yes".equals(NetBase.theNetBase().config().getProperty("rpc.compress", "no"));
+		if (wantCompression)
+			options.put("compress", "yes");
 		
 		RPCMessage connectMessage = new RPCControlMessage("connect", options);
 		Log.d(TAG, "Sending connection message");
@@ -88,41 +157,134 @@ import edu.uw.cs.cse461.util.Log;
 			Log.d(TAG, "Server and client agree to use persistence");
 			persistent = true;
 		}
+		
+		// Determine whether the server understands the binary encoding, and call deadlines.  Older servers just
+		// ignore the options.
+		codec = new RPCBinaryCodec(wantBinary && RPCBinaryCodec.BINARY.equals(value.optString("encoding")));
+		sendDeadlines = "yes".equals(value.optString("deadline"));
+		sendBatches = "yes".equals(value.optString("batch"));
+		
+		// Messages are compressed from here on, in both directions, if the server agrees.  It turns compression
+		// on as soon as it's sent its response.
+		if (wantCompression && "yes".equals(value.optString("compress"))) {
+			Log.d(TAG, "Server and client agree to compress messages");
+			messageHandler.setCompressor(new MessageCompressor());
+		}
+		
+		// From here on, responses are read by the reader thread.  It waits for them with no timeout, as a
+		// TCPMessageHandler read that times out part way through a message loses its place in the stream.
+		// Calls' deadlines are enforced by the timer wheel, and discard() stops the reader by closing the socket.
+		messageHandler.setTimeout(0);
+		Thread reader = new Thread(new ResponseReader(), "RPCCallerSocket " + ip + ":" + port);
+		reader.setDaemon(true);
+		reader.start();
 	}
 	
-	synchronized public JSONObject invoke(String serviceName, String method, JSONObject userRequest, int timeout) 
+	/**
+	 * Sends an invocation and waits for its response.  Other threads may send invocations on this
+	 * socket while this one waits.
+	 * @param deadline Time by which the response must arrive
+	 * @return The value returned by the remote method
+	 * @throws SocketTimeoutException If no response arrives by the deadline
+	 * @throws IOException If the server returns an error, or the connection fails
+	 */
+	public JSONObject invoke(String serviceName, String method, JSONObject userRequest, RPCDeadline deadline) 
 			throws IOException, JSONException {
-		messageHandler.setTimeout(timeout);
-		
-		// Send the invocation message
+		return invokeAsync(serviceName, method, userRequest, null, deadline).await();
+	}
+	
+	/**
+	 * Sends an invocation, without waiting for its response.
+	 * @param timeout Time after which the call fails with a SocketTimeoutException, in msec.
+	 * @return A future that completes when the response arrives.  It has already failed if the invocation
+	 * couldn't be sent.
+	 */
+	public RPCFuture invokeAsync(String serviceName, String method, JSONObject userRequest, int timeout) 
+			throws JSONException {
+		return invokeAsync(serviceName, method, userRequest, null, RPCDeadline.after(timeout));
+	}
+	
+	/**
+	 * Sends an invocation, without waiting for its response.  If the response is streamed (see RPCStreamingResponse),
+	 * its body is written to sink by the reader thread as it arrives, and the future completes once all of it has
+	 * been written.
+	 * @param sink Destination for a streamed response body.  May be null, in which case any body is discarded.
+	 * @param deadline Time at which the call fails with a SocketTimeoutException.  Covers the whole body.
+	 */
+	public RPCFuture invokeAsync(String serviceName, String method, JSONObject userRequest, OutputStream sink,
+			RPCDeadline deadline) throws JSONException {
 		Log.d(TAG, "Sending RPC invocation");
-		RPCInvokeMessage invokeMessage = new RPCInvokeMessage(serviceName, method, userRequest);
-		messageHandler.sendMessage(invokeMessage.marshall());
-		
-		// Read a response from the server
-		Log.d(TAG, "Waiting for invocation response");
-		RPCMessage response = RPCMessage.unmarshall(messageHandler.readMessageAsString());
-		Log.d(TAG, "Invocation response received: " + response.mObject);
+		long timeout = deadline.remaining();
+		if (timeout <= 0) return RPCFuture.failed(new SocketTimeoutException("RPC deadline passed before the call was sent"));
+		RPCInvokeMessage invokeMessage = new RPCInvokeMessage(serviceName, method, userRequest, sendDeadlines ? timeout : 0);
+		return call(invokeMessage, sink, timeout);
+	}
+	
+	/**
+	 * Returns whether the server accepts batches of calls.  If it doesn't, invokeBatch() mustn't be called.
+	 */
+	boolean acceptsBatches() {
+		return sendBatches;
+	}
+	
+	/**
+	 * Sends a batch of calls in one message, without waiting for the response.
+	 * @param calls The batch's calls
+	 * @return A future that completes, when the response arrives, with a JSONObject whose "results" are the calls'
+	 * results (see RPCBatchResponseMessage).  It has already failed if the batch couldn't be sent.
+	 */
+	RPCFuture invokeBatch(List<RPCBatch.Call> calls, RPCDeadline deadline) throws JSONException {
+		Log.d(TAG, "Sending RPC batch of " + calls.size() + " calls");
+		long timeout = deadline.remaining();
+		if (timeout <= 0) return RPCFuture.failed(new SocketTimeoutException("RPC deadline passed before the batch was sent"));
+		RPCBatchMessage batchMessage = new RPCBatchMessage(sendDeadlines ? timeout : 0);
+		for (RPCBatch.Call call : calls) batchMessage.add(call.serviceName, call.method, call.args);
+		return call(batchMessage, null, timeout);
+	}
+	
+	/**
+	 * Sends a call message, and returns the future its response will complete.
+	 * @param timeout Time after which the future fails with a SocketTimeoutException, in msec.
+	 */
+	private RPCFuture call(RPCCallMessage message, OutputStream sink, long timeout) {
+		lastUsed = System.currentTimeMillis();
+		final int id = message.id();
+		final RPCFuture future = new RPCFuture(sink);
+		pendingCalls.put(id, future);
+		future.addListener(new RPCFuture.Listener() {
+			@Override
+			public void onComplete(RPCFuture f) {
+				pendingCalls.remove(id);
+			}
+		});
+		future.setTimeout(timerWheel.schedule(timeout, new Runnable() {
+			@Override
+			public void run() {
+				future.fail(new SocketTimeoutException("Timed out waiting for RPC response"));
+			}
+		}));
 		
-		if ("ERROR".equals(response.type())) {
-			// A server error occurred
-			String message = response.mObject.optString("message");
-			throw new IOException("RPC server error : " + message);
-		} else if (!"OK".equals(response.type())) {
-			// The type is incorrect
-			throw new IOException("RPC server sent incorrect type: " + response.type());
+		try {
+			send(message);
+		} catch (IOException e) {
+			future.fail(e);
 		}
-		
-		// We must have received an OK message. Validate the message id.
-		RPCNormalResponseMessage okResponse = (RPCNormalResponseMessage) response;
-				
-		if (okResponse.callid() != invokeMessage.id()) {
-			throw new IOException("RPC message id's do not match");
+		return future;
+	}
+	
+	/**
+	 * Writes a message to the connection.  Messages from concurrent callers are never interleaved.
+	 */
+	private void send(RPCMessage message) throws IOException {
+		IOException cause = closedCause;
+		if (cause != null) throw new IOException("RPC connection is closed: " + cause.getMessage());
+		try {
+			synchronized (messageHandler) {
+				messageHandler.sendMessage(codec.encode(message));
+			}
+		} catch (JSONException e) {
+			throw new IOException("Can't encode RPC message: " + e.getMessage());
 		}
-		
-		// The message is well-formed. Return the result
-		Log.d(TAG, "Invocation response is valid, returning to client");
-		return okResponse.value();
 	}
 	
 	/**
@@ -133,9 +295,140 @@ import edu.uw.cs.cse461.util.Log;
 	}
 	
 	/**
-	 * Close this socket.
+	 * Returns whether calls can still be made on this socket
+	 */
+	public boolean isAlive() {
+		return closedCause == null;
+	}
+	
+	/**
+	 * Returns the number of calls sent on this socket and still waiting for a response
+	 */
+	int outstanding() {
+		return pendingCalls.size();
+	}
+	
+	/**
+	 * Returns the message compression counts for this socket, or null if its messages aren't compressed
 	 */
-	synchronized public void discard() {
+	String compressionStats() {
+		MessageCompressor compressor = messageHandler.getCompressor();
+		return compressor == null ? null : compressor.stats();
+	}
+	
+	/**
+	 * Returns when a call was last sent on this socket (or it was connected, if none has been), in msec.
+	 */
+	long lastUsed() {
+		return lastUsed;
+	}
+	
+	/**
+	 * Close this socket.  Calls still waiting for a response fail.
+	 */
+	public void discard() {
+		fail(new IOException("RPC connection discarded"));
+	}
+	
+	/**
+	 * Marks the connection as unusable, closes it, and fails any calls waiting on it.
+	 */
+	private void fail(IOException cause) {
+		synchronized (this) {
+			if (closedCause != null) return;
+			closedCause = cause;
+		}
 		messageHandler.close();
+		for (RPCFuture call : pendingCalls.values()) {
+			call.fail(new IOException("RPC connection failed: " + cause.getMessage()));
+		}
+	}
+	
+	/**
+	 * Reads the body of a streamed response, writing it to the call's sink.  The whole body is read even if
+	 * the call has already completed (timed out, say) or its sink fails, so that the connection stays usable.
+	 * @return The exception the sink threw, if it did
+	 */
+	private IOException receiveStream(RPCFuture call, long length) throws IOException {
+		OutputStream sink = call == null ? null : call.sink();
+		IOException sinkFailure = null;
+		
+		// A timeout part way through a chunk would lose our place in the stream, so only give up if the server 
+		// stalls for a long time, and then give up on the connection
+		int prevTimeout = messageHandler.setTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.socket", 2000));
+		while (length > 0) {
+			byte[] chunk = messageHandler.readMessageAsBytes();
+			if (chunk.length > length) throw new IOException("RPC stream body longer than its declared length");
+			if (sink != null && sinkFailure == null && !call.isDone()) {
+				try {
+					sink.write(chunk);
+				} catch (IOException e) {
+					sinkFailure = e;
+				}
+			}
+			length -= chunk.length;
+		}
+		messageHandler.setTimeout(prevTimeout);
+		return sinkFailure;
+	}
+	
+	/**
+	 * Reads responses from the connection and completes the call each is for.  Listeners on
+	 * the calls' futures run on this thread.
+	 */
+	private class ResponseReader implements Runnable {
+		@Override
+		public void run() {
+			try {
+				while (closedCause == null) {
+					byte[] msg = messageHandler.readMessageAsBytes();
+					
+					RPCMessage response = codec.decode(msg);
+					if (!(response instanceof RPCResponseMessage)) {
+						throw new IOException("RPC server sent incorrect type: " + response.type());
+					}
+					
+					int callid = ((RPCResponseMessage) response).callid();
+					RPCFuture call = pendingCalls.get(callid);
+					
+					// A streamed body has to be read off the connection whether or not anyone's waiting for it
+					IOException sinkFailure = null;
+					if (response instanceof RPCNormalResponseMessage) {
+						long streamLength = ((RPCNormalResponseMessage) response).streamLength();
+						if (streamLength >= 0) sinkFailure = receiveStream(call, streamLength);
+					}
+					
+					if (call != null && sinkFailure != null) {
+						call.fail(sinkFailure);
+					} else if (call != null) {
+						if (Log.isLoggable(TAG, DebugLevel.DEBUG)) Log.d(TAG, "Invocation response received: " + response);
+						if ("ERROR".equals(response.type())) {
+							// A server error occurred
+							String message = response.mObject.optString("message");
+							long retryAfter = ((RPCErrorResponseMessage) response).retryAfter();
+							if (retryAfter >= 0) call.fail(new RPCOverloadException("RPC server error : " + message, retryAfter));
+							else call.fail(new IOException("RPC server error : " + message));
+						} else if (response instanceof RPCBatchResponseMessage) {
+							call.complete(new JSONObject().put("results", ((RPCBatchResponseMessage) response).results()));
+						} else if (!"OK".equals(response.type())) {
+							// The type is incorrect
+							call.fail(new IOException("RPC server sent incorrect type: " + response.type()));
+						} else {
+							RPCNormalResponseMessage ok = (RPCNormalResponseMessage) response;
+							call.complete(ok.value(), ok.maxAge());
+						}
+					} else {
+						// The caller gave up waiting
+						Log.d(TAG, "Discarding response to abandoned call " + callid);
+					}
+				}
+			} catch (IOException e) {
+				Log.d(TAG, "Response reader exiting: " + e.getMessage());
+				fail(e);
+			} catch (JSONException e) {
+				Log.d(TAG, "Response reader exiting: " + e.getMessage());
+				fail(new IOException("Malformed RPC response: " + e.getMessage()));
+			}
+		}
 	}
 }
@@ -0,0 +1,151 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An adaptive limit on the number of calls to one RPC method that the server holds at once, queued or running.
+ * Calls beyond the limit are refused straight away, rather than queued behind calls that are already late.
+ * <p>
+ * The limit follows the calls' latency, measured from admission to completion, in the style of a gradient limiter.
+ * Once per window, of at least windowMsec and MIN_SAMPLES calls, it compares the window's average latency to a slowly
+ * moving average over past windows. While the window's average is within TOLERANCE times the long term one, the
+ * limit grows by about its square root each window. Beyond that, queues are building, and the limit shrinks in
+ * proportion, by at most half a window. The limit doesn't grow while less than half of it is in use, so a lightly
+ * loaded method doesn't build up a limit it hasn't shown it can handle.
+ * <p>
+ * Admission is a compare and set. The adjustment takes the limit's lock, briefly, once per completed call.
+ */
+class RPCConcurrencyLimit {
+
+    private static final double TOLERANCE = 2.0;
+    private static final double SMOOTHING = 0.2;
+    private static final int MIN_SAMPLES = 10;
+
+    /**
+     * The number of windows the long term average latency is taken over
+     */
+    private static final int LONG_WINDOWS = 100;
+
+    private final int mMinLimit;
+    private final int mMaxLimit;
+    private final long mWindowNanos;
+
+    private volatile double mLimit;
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    private final AtomicLong mRejected = new AtomicLong();
+
+    /**
+     * The average latency of the last full window, in nsec.
+     */
+    private volatile double mShortLatency;
+
+    // The current window, and the long term average. Guarded by this.
+    private long mWindowStart = System.nanoTime();
+    private long mWindowSum;
+    private int mWindowCount;
+    private int mWindowMaxInFlight;
+    private double mLongLatency;
+
+    /**
+     * @param initialLimit
+     *            The limit until the first window's latency is known
+     * @param minLimit
+     *            The least the limit falls to
+     * @param maxLimit
+     *            The most the limit grows to
+     * @param windowMsec
+     *            The shortest window the limit is adjusted after (msec.)
+     */
+    RPCConcurrencyLimit(int initialLimit, int minLimit, int maxLimit, int windowMsec) {
+        mMinLimit = Math.max(1, minLimit);
+        mMaxLimit = Math.max(mMinLimit, maxLimit);
+        mLimit = Math.max(mMinLimit, Math.min(mMaxLimit, initialLimit));
+        mWindowNanos = windowMsec * 1000000L;
+    }
+
+    /**
+     * Admits a call, if there's room for it. An admitted call must be passed to release() or cancel() when it's done.
+     */
+    boolean tryAcquire() {
+        while (true) {
+            int inFlight = mInFlight.get();
+            if (inFlight >= (int) mLimit) {
+                mRejected.incrementAndGet();
+                return false;
+            }
+            if (mInFlight.compareAndSet(inFlight, inFlight + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Records the completion of an admitted call.
+     *
+     * @param startNanos
+     *            When the call was admitted, by System.nanoTime()
+     */
+    void release(long startNanos) {
+        int inFlight = mInFlight.getAndDecrement();
+        long now = System.nanoTime();
+        update(now - startNanos, inFlight, now);
+    }
+
+    /**
+     * Records that an admitted call was refused after all, without being run. It doesn't count toward the latency.
+     */
+    void cancel() {
+        mInFlight.decrementAndGet();
+    }
+
+    private synchronized void update(long latency, int inFlight, long now) {
+        mWindowSum += latency;
+        mWindowCount++;
+        mWindowMaxInFlight = Math.max(mWindowMaxInFlight, inFlight);
+        if (mWindowCount < MIN_SAMPLES || now - mWindowStart < mWindowNanos) {
+            return;
+        }
+
+        double shortLatency = (double) mWindowSum / mWindowCount;
+        if (mLongLatency == 0) {
+            mLongLatency = shortLatency;
+        } else {
+            mLongLatency += (shortLatency - mLongLatency) / LONG_WINDOWS;
+        }
+        // Once latency is well below the long term average, the queues have drained. Let the average come down
+        // faster than it otherwise would, so it doesn't hide the next overload.
+        if (mLongLatency > 2 * shortLatency) {
+            mLongLatency *= 0.95;
+        }
+
+        double limit = mLimit;
+        double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * mLongLatency / shortLatency));
+        double target = limit * gradient + Math.sqrt(limit);
+        if (target > limit && mWindowMaxInFlight < limit / 2) {
+            target = limit;
+        }
+        limit = limit * (1 - SMOOTHING) + target * SMOOTHING;
+        mLimit = Math.max(mMinLimit, Math.min(mMaxLimit, limit));
+        mShortLatency = shortLatency;
+
+        mWindowStart = now;
+        mWindowSum = 0;
+        mWindowCount = 0;
+        mWindowMaxInFlight = 0;
+    }
+
+    /**
+     * Returns how long a refused caller should wait before trying again, in msec.: the recent average latency, which
+     * is about how long it takes a call in progress to finish and make room.
+     */
+    long retryAfter() {
+        return Math.max(1, (long) (mShortLatency / 1000000L));
+    }
+
+    @Override
+    public String toString() {
+        return "limit " + (int) mLimit + ", in flight " + mInFlight.get() + ", refused " + mRejected.get()
+                + ", latency " + String.format("%.3f", mShortLatency / 1000000L) + " msec";
+    }
+}
@@ -0,0 +1,379 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import org.json.JSONException;
+
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * The caller side's persistent connections: for each remote RPC service (endpoint), a set of RPCCallerSockets
+ * that calls are spread over.
+ * <p>
+ * Checking out a connection doesn't lock: each endpoint's connections are an array that's replaced, not
+ * modified, and a call goes on the one with the fewest calls outstanding.  When every connection has
+ * maxPending calls outstanding, the call still goes on the least loaded one, and another connection is
+ * opened in the background, up to maxConnections.  Only a caller that finds no connection at all connects
+ * and does the handshake itself, holding no locks, so a slow server delays only its own callers.
+ * <p>
+ * A maintenance thread checks the connections every checkInterval msec.  It drops dead ones.  It closes
+ * idle connections beyond minConnections once they haven't been used for idleTimeout msec.  Once an
+ * endpoint hasn't been called for persistenceTimeout msec, it closes all of that endpoint's idle
+ * connections.  Otherwise it opens connections as needed to keep minConnections, in the background, so
+ * an unreachable endpoint doesn't hold up the others.
+ * <p>
+ * A connection is dead once its reader thread has seen it fail: closed or reset by the server, or sent
+ * something malformed.  The pool doesn't probe idle connections, so one whose server has vanished without
+ * closing it is found out only when a call on it times out.
+ */
+class RPCConnectionPool implements Runnable {
+	private static final String TAG = "RPCConnectionPool";
+
+	private final int minConnections;
+	private final int maxConnections;
+	private final int maxPending;
+	private final long idleTimeout;
+	private final long persistenceTimeout;
+	private final long checkInterval;
+	private final int connectTimeout;
+	private final RPCTimerWheel timerWheel;
+
+	private final ConcurrentHashMap<HostAddress, Endpoint> endpoints = new ConcurrentHashMap<HostAddress, Endpoint>();
+	private final Thread maintainer;
+	private final ExecutorService connector;
+	private volatile boolean stopped;
+
+	/**
+	 * @param minConnections Connections kept open to an endpoint while it's in use
+	 * @param maxConnections The most connections opened to an endpoint, except when none is usable
+	 * @param maxPending Outstanding calls on each of an endpoint's connections before another is opened
+	 * @param idleTimeout Time after which a connection beyond the minimum, with no calls outstanding, is closed (msec.)
+	 * @param persistenceTimeout Time after which all the connections to an unused endpoint are closed (msec.)
+	 * @param checkInterval How often the connections are checked (msec.)
+	 * @param connectTimeout Time allowed to open a connection in the background (msec.)
+	 * @param timerWheel Enforces the deadlines of calls on the pool's connections
+	 */
+	RPCConnectionPool(int minConnections, int maxConnections, int maxPending, long idleTimeout,
+			long persistenceTimeout, long checkInterval, int connectTimeout, RPCTimerWheel timerWheel) {
+		this.minConnections = minConnections;
+		this.maxConnections = Math.max(1, Math.max(minConnections, maxConnections));
+		this.maxPending = maxPending;
+		this.idleTimeout = idleTimeout;
+		this.persistenceTimeout = persistenceTimeout;
+		this.checkInterval = checkInterval;
+		this.connectTimeout = connectTimeout;
+		this.timerWheel = timerWheel;
+
+		connector = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, TAG + " connect");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		maintainer = new Thread(this, TAG);
+		maintainer.setDaemon(true);
+		maintainer.start();
+	}
+
+	/**
+	 * Returns a connection to ip:port to make a call on.  The connection isn't reserved for the caller: other
+	 * calls may be made on it at the same time.  If the server wouldn't agree to a persistent connection, the
+	 * returned socket isn't pooled, and the caller should discard it after its call.
+	 * @param deadline If there's no connection, the time by which one must be opened
+	 */
+	RPCCallerSocket checkout(String ip, int port, RPCDeadline deadline) throws IOException, JSONException {
+		HostAddress key = new HostAddress(ip, port);
+		while (true) {
+			Endpoint endpoint = endpoints.get(key);
+			if (endpoint == null) {
+				Endpoint created = new Endpoint(key);
+				endpoint = endpoints.putIfAbsent(key, created);
+				if (endpoint == null) endpoint = created;
+			}
+
+			RPCCallerSocket socket = endpoint.leastLoaded();
+			if (socket != null) {
+				endpoint.lastUsed = System.currentTimeMillis();
+				if (socket.outstanding() >= maxPending) openInBackground(endpoint);
+				return socket;
+			}
+			if (endpoint.reserve(true) == Reservation.RESERVED) return endpoint.connect(deadline);
+			// The endpoint was retired by the maintenance thread between the lookup and now
+		}
+	}
+
+	/**
+	 * Opens a connection to the endpoint on a connector thread, if it has fewer than maxConnections.
+	 * @return Whether a connection is being opened
+	 */
+	private boolean openInBackground(final Endpoint endpoint) {
+		if (stopped || endpoint.reserve(false) != Reservation.RESERVED) return false;
+		try {
+			connector.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						RPCCallerSocket socket = endpoint.connect(RPCDeadline.after(connectTimeout));
+						// Nobody's waiting for it, so it's no use unless it's pooled
+						if (!socket.isPersistent()) socket.discard();
+						else if (stopped) evict(endpoint.address.hostname, endpoint.address.port, socket);
+					} catch (Exception e) {
+						Log.w(TAG, "Connecting to " + endpoint.address + " failed: " + e.getMessage());
+					}
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			// Shut down
+			endpoint.unreserve();
+			return false;
+		}
+	}
+
+	/**
+	 * Removes a connection from the pool, and closes it.
+	 */
+	void evict(String ip, int port, RPCCallerSocket socket) {
+		Endpoint endpoint = endpoints.get(new HostAddress(ip, port));
+		if (endpoint != null) endpoint.remove(socket);
+		socket.discard();
+	}
+
+	/**
+	 * Stops the maintenance thread and closes every connection.
+	 */
+	void shutdown() {
+		stopped = true;
+		maintainer.interrupt();
+		connector.shutdownNow();
+		for (Endpoint endpoint : endpoints.values()) {
+			for (RPCCallerSocket socket : endpoint.connections) socket.discard();
+		}
+		endpoints.clear();
+	}
+
+	String dumpState() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("Current persistent connections are:\n");
+		for (Endpoint endpoint : endpoints.values()) {
+			builder.append("    Socket '" + endpoint.address + "' last used at " + endpoint.lastUsed);
+			builder.append(", " + endpoint.connections.length + " connections, calls outstanding:");
+			for (RPCCallerSocket socket : endpoint.connections) builder.append(" " + socket.outstanding());
+			builder.append("\n");
+			for (RPCCallerSocket socket : endpoint.connections) {
+				String stats = socket.compressionStats();
+				if (stats != null) builder.append("        " + stats + "\n");
+			}
+		}
+		return builder.toString();
+	}
+
+	//-------------------------------------------------------------------------------------------
+	// Maintenance
+	//-------------------------------------------------------------------------------------------
+
+	@Override
+	public void run() {
+		while (!stopped) {
+			try {
+				Thread.sleep(checkInterval);
+			} catch (InterruptedException e) {
+				continue;
+			}
+			for (Endpoint endpoint : endpoints.values()) {
+				try {
+					maintain(endpoint);
+				} catch (Exception e) {
+					Log.w(TAG, "Maintaining connections to " + endpoint.address + " failed: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	private void maintain(Endpoint endpoint) {
+		long now = System.currentTimeMillis();
+		boolean endpointIdle = now - endpoint.lastUsed > persistenceTimeout;
+
+		List<RPCCallerSocket> doomed = new ArrayList<RPCCallerSocket>();
+		int keep = endpointIdle ? 0 : minConnections;
+		int live = 0;
+		for (RPCCallerSocket socket : endpoint.connections) {
+			if (!socket.isAlive()) {
+				doomed.add(socket);
+			} else {
+				live++;
+			}
+		}
+		for (RPCCallerSocket socket : endpoint.connections) {
+			if (live <= keep) break;
+			if (socket.isAlive() && socket.outstanding() == 0
+					&& (endpointIdle || now - socket.lastUsed() > idleTimeout)) {
+				doomed.add(socket);
+				live--;
+			}
+		}
+		for (RPCCallerSocket socket : doomed) {
+			endpoint.remove(socket);
+			socket.discard();
+			Log.d(TAG, "Discarded connection to '" + endpoint.address + "' last used at " + socket.lastUsed());
+		}
+
+		if (endpointIdle) {
+			endpoint.retireIfEmpty();
+		} else {
+			for (int n = endpoint.size(); n < minConnections; n++) {
+				if (!openInBackground(endpoint)) break;
+			}
+		}
+	}
+
+	//-------------------------------------------------------------------------------------------
+	// Endpoints
+	//-------------------------------------------------------------------------------------------
+
+	private enum Reservation { RESERVED, FULL, RETIRED }
+
+	/**
+	 * The connections to one remote RPC service.  The array is replaced under the endpoint's lock, and read
+	 * without it.
+	 */
+	private class Endpoint {
+		final HostAddress address;
+		volatile RPCCallerSocket[] connections = new RPCCallerSocket[0];
+		volatile long lastUsed = System.currentTimeMillis();
+		private int opening;                // connects under way; guarded by this
+		private boolean retired;            // removed from endpoints; guarded by this
+
+		Endpoint(HostAddress address) {
+			this.address = address;
+		}
+
+		/**
+		 * Returns the live connection with the fewest calls outstanding, or null if there's none.
+		 */
+		RPCCallerSocket leastLoaded() {
+			RPCCallerSocket best = null;
+			int bestLoad = Integer.MAX_VALUE;
+			for (RPCCallerSocket socket : connections) {
+				if (!socket.isAlive()) continue;
+				int load = socket.outstanding();
+				if (load < bestLoad) {
+					best = socket;
+					bestLoad = load;
+					if (load == 0) break;
+				}
+			}
+			return best;
+		}
+
+		/**
+		 * Reserves the right to open a connection.  If force is true, it's granted even if the endpoint has the
+		 * most connections it should, as the caller has none it can use.
+		 */
+		synchronized Reservation reserve(boolean force) {
+			if (retired) return Reservation.RETIRED;
+			if (!force && connections.length + opening >= maxConnections) return Reservation.FULL;
+			opening++;
+			lastUsed = System.currentTimeMillis();
+			return Reservation.RESERVED;
+		}
+
+		/**
+		 * Gives up a reservation without opening a connection.
+		 */
+		synchronized void unreserve() {
+			opening--;
+		}
+
+		/**
+		 * Returns the number of connections, counting those being opened.
+		 */
+		synchronized int size() {
+			return connections.length + opening;
+		}
+
+		/**
+		 * Opens a connection, having reserved the right to, and adds it to the pool if it's persistent.
+		 */
+		RPCCallerSocket connect(RPCDeadline deadline) throws IOException, JSONException {
+			RPCCallerSocket socket = null;
+			try {
+				long timeout = deadline.remaining();
+				if (timeout <= 0) throw new SocketTimeoutException("RPC deadline passed before connecting to " + address);
+				socket = new RPCCallerSocket(address.hostname, address.port, true, timerWheel, (int) Math.min(timeout, Integer.MAX_VALUE));
+				return socket;
+			} finally {
+				synchronized (this) {
+					opening--;
+					if (socket != null && socket.isPersistent()) {
+						RPCCallerSocket[] grown = new RPCCallerSocket[connections.length + 1];
+						System.arraycopy(connections, 0, grown, 0, connections.length);
+						grown[connections.length] = socket;
+						connections = grown;
+					}
+				}
+			}
+		}
+
+		synchronized void remove(RPCCallerSocket socket) {
+			List<RPCCallerSocket> remaining = new ArrayList<RPCCallerSocket>(connections.length);
+			for (RPCCallerSocket s : connections) {
+				if (s != socket) remaining.add(s);
+			}
+			if (remaining.size() != connections.length) {
+				connections = remaining.toArray(new RPCCallerSocket[remaining.size()]);
+			}
+		}
+
+		/**
+		 * Removes this endpoint from the pool, if it has no connections and none are being opened.
+		 */
+		synchronized void retireIfEmpty() {
+			if (connections.length > 0 || opening > 0) return;
+			retired = true;
+			endpoints.remove(address, this);
+		}
+	}
+
+	/**
+	 * A HostAddress is a hostname/port pair. Used to uniquely identify endpoints.
+	 */
+	private static class HostAddress {
+		private final String hostname;
+		private final int port;
+
+		public HostAddress(String hostname, int port) {
+			this.hostname = hostname;
+			this.port = port;
+		}
+
+		@Override
+		public int hashCode() {
+			return hostname.hashCode() * 31 + port;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (! (other instanceof HostAddress))
+				return false;
+
+			HostAddress cast = (HostAddress) other;
+			return port == cast.port && hostname.equals(cast.hostname);
+		}
+
+		@Override
+		public String toString() {
+			return hostname + ":" + port;
+		}
+	}
+}
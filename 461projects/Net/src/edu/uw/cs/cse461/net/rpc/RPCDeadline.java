@@ -0,0 +1,80 @@
+package edu.uw.cs.cse461.net.rpc;
+
+/**
+ * The time by which an RPC call must complete.
+ * <p>
+ * A call's deadline bounds all of it: connecting, the handshake, waiting for the response, and the retry
+ * RPCCall makes if the connection fails.  It's also sent to the server, as the time remaining, so
+ * the server can skip a call whose caller has already given up.  (Hosts' clocks aren't synchronized, so the
+ * time remaining travels, not the time of day.  The server counts it from when the call arrives, which is
+ * later than the caller counted from, so it never gives up before the caller does.)
+ * <p>
+ * While a method is handling a call, current() returns that call's deadline.  Calls the method makes
+ * inherit it: each gets the earlier of its own timeout and the deadline, so a chain of calls shares one
+ * budget.  A method doing lengthy work can check it too.
+ */
+public final class RPCDeadline {
+	private static final ThreadLocal<RPCDeadline> current = new ThreadLocal<RPCDeadline>();
+
+	/**
+	 * The deadline, as a System.nanoTime() value
+	 */
+	private final long nanos;
+
+	private RPCDeadline(long nanos) {
+		this.nanos = nanos;
+	}
+
+	/**
+	 * Returns the deadline msec from now.
+	 */
+	public static RPCDeadline after(long msec) {
+		return new RPCDeadline(System.nanoTime() + msec * 1000000L);
+	}
+
+	/**
+	 * Returns the time remaining, in msec.  Zero or less once the deadline has passed.
+	 */
+	public long remaining() {
+		return (nanos - System.nanoTime()) / 1000000L;
+	}
+
+	public boolean expired() {
+		return nanos - System.nanoTime() <= 0;
+	}
+
+	/**
+	 * Returns whichever of this deadline and other is earlier.  Other may be null.
+	 */
+	public RPCDeadline min(RPCDeadline other) {
+		if (other == null || nanos - other.nanos <= 0) return this;
+		return other;
+	}
+
+	/**
+	 * Returns the deadline of the call this thread is handling, or null if it isn't handling one, or the
+	 * caller didn't send a deadline.
+	 */
+	public static RPCDeadline current() {
+		return current.get();
+	}
+
+	/**
+	 * Makes deadline the current one, returning the previous one, to restore with exit().
+	 */
+	static RPCDeadline enter(RPCDeadline deadline) {
+		RPCDeadline previous = current.get();
+		current.set(deadline);
+		return previous;
+	}
+
+	static void exit(RPCDeadline previous) {
+		if (previous == null) current.remove();
+		else current.set(previous);
+	}
+
+	@Override
+	public String toString() {
+		return remaining() + " msec from now";
+	}
+}
@@ -0,0 +1,160 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable map from (service, method) name pairs to their registered RPCCallableMethods.
+ * <p>
+ * Registering or unregistering a handler builds a new table (see with() and without()), which RPCService publishes
+ * through a volatile field. So a lookup reads one reference and probes a table that can't change under it: it never
+ * locks, and never waits for a registration. Registration is rare, and the tables are small, so copying is cheap.
+ * <p>
+ * The table is open addressed, at most half full, and hashed on both names together, so a lookup usually takes one
+ * probe. The hash is computed from the names' String hash codes, which the Strings cache, and doesn't build a
+ * combined key, so a lookup allocates nothing.
+ */
+class RPCDispatchTable {
+
+    static final RPCDispatchTable EMPTY = new RPCDispatchTable(new Entry[0]);
+
+    /**
+     * One registration
+     */
+    static final class Entry {
+        final String service;
+        final String method;
+        final RPCCallableMethod callable;
+        /**
+         * Limits the calls to the method the server holds at once, or null for no limit
+         */
+        final RPCConcurrencyLimit limit;
+        /**
+         * How long callers may cache the method's responses, in msec., or 0 if they may not
+         */
+        final long maxAge;
+        final int hash;
+
+        Entry(String service, String method, RPCCallableMethod callable, RPCConcurrencyLimit limit, long maxAge) {
+            // Interned, so a lookup with interned names (literals, say) is settled by identity, without equals()
+            this.service = service.intern();
+            this.method = method.intern();
+            this.callable = callable;
+            this.limit = limit;
+            this.maxAge = maxAge;
+            this.hash = hash(service, method);
+        }
+
+        boolean matches(String service, String method) {
+            return (this.service == service || this.service.equals(service))
+                    && (this.method == method || this.method.equals(method));
+        }
+    }
+
+    /**
+     * The registrations, in the order they were made (for dumpState())
+     */
+    private final Entry[] mEntries;
+
+    /**
+     * The open addressed hash table. Its length is a power of two, at least twice the number of entries.
+     */
+    private final Entry[] mSlots;
+
+    private RPCDispatchTable(Entry[] entries) {
+        mEntries = entries;
+        int size = 2;
+        while (size < 2 * entries.length) {
+            size <<= 1;
+        }
+        mSlots = new Entry[size];
+        int mask = size - 1;
+        for (Entry e : entries) {
+            int i = e.hash & mask;
+            while (mSlots[i] != null) {
+                i = (i + 1) & mask;
+            }
+            mSlots[i] = e;
+        }
+    }
+
+    private static int hash(String service, String method) {
+        int h = service.hashCode() * 31 + method.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Returns the registration for service.method, or null if there's none.
+     */
+    RPCCallableMethod get(String service, String method) {
+        Entry e = entry(service, method);
+        return e == null ? null : e.callable;
+    }
+
+    /**
+     * Returns the entry for service.method, or null if there's none.
+     */
+    Entry entry(String service, String method) {
+        int mask = mSlots.length - 1;
+        int i = hash(service, method) & mask;
+        Entry e;
+        while ((e = mSlots[i]) != null) {
+            if (e.matches(service, method)) {
+                return e;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Returns a table like this one, but with service.method registered to callable, with no concurrency limit,
+     * replacing any registration it had.
+     */
+    RPCDispatchTable with(String service, String method, RPCCallableMethod callable) {
+        return with(service, method, callable, null, 0);
+    }
+
+    /**
+     * Returns a table like this one, but with service.method registered to callable, with its calls limited by limit
+     * (which may be null), and its responses cacheable for maxAge msec (0 if they aren't), replacing any
+     * registration it had.
+     */
+    RPCDispatchTable with(String service, String method, RPCCallableMethod callable, RPCConcurrencyLimit limit,
+            long maxAge) {
+        List<Entry> entries = new ArrayList<Entry>(mEntries.length + 1);
+        for (Entry e : mEntries) {
+            if (!e.matches(service, method)) {
+                entries.add(e);
+            }
+        }
+        entries.add(new Entry(service, method, callable, limit, maxAge));
+        return new RPCDispatchTable(entries.toArray(new Entry[entries.size()]));
+    }
+
+    /**
+     * Returns a table like this one, but with no registration for service.method, or this table if it has none.
+     */
+    RPCDispatchTable without(String service, String method) {
+        if (get(service, method) == null) {
+            return this;
+        }
+        List<Entry> entries = new ArrayList<Entry>(mEntries.length);
+        for (Entry e : mEntries) {
+            if (!e.matches(service, method)) {
+                entries.add(e);
+            }
+        }
+        return new RPCDispatchTable(entries.toArray(new Entry[entries.size()]));
+    }
+
+    /**
+     * Returns the registrations, in the order they were made.
+     */
+    List<Entry> entries() {
+        List<Entry> entries = new ArrayList<Entry>(mEntries.length);
+        Collections.addAll(entries, mEntries);
+        return entries;
+    }
+}
@@ -0,0 +1,251 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.json.JSONObject;
+
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * The result of an RPC call made with RPCCall.invokeAsync().
+ * <p>
+ * The future completes with the value returned by the remote method, or fails with the IOException
+ * the blocking invoke() would have thrown: a SocketTimeoutException if no response arrived before the call's
+ * deadline, or an IOException for a server error or failed connection.
+ * <p>
+ * Callers can block for the result, using get() or await(), or register a Listener to be told when the call completes.
+ * Listeners run on the thread that completes the call -- the connection's response reader, or the timer thread --
+ * so they must not block.  A listener that needs to make further RPC calls should use invokeAsync().
+ */
+public class RPCFuture implements Future<JSONObject> {
+	private static final String TAG = "RPCFuture";
+
+	/**
+	 * Callback interface for completion of an RPCFuture.
+	 */
+	public interface Listener {
+		/**
+		 * Called exactly once, when the future completes, fails, or is cancelled.
+		 */
+		public void onComplete(RPCFuture future);
+	}
+
+	private JSONObject value;
+	private long maxAge = -1;
+	private IOException failure;
+	private boolean done;
+	private boolean cancelled;
+
+	/**
+	 * Listeners waiting for completion.  Null once the future is done.
+	 */
+	private List<Listener> listeners = new ArrayList<Listener>(2);
+
+	/**
+	 * The call's deadline, cancelled when the call completes.
+	 */
+	private RPCTimerWheel.Timeout timeout;
+
+	/**
+	 * Where the body of a streamed response goes, or null
+	 */
+	private final OutputStream sink;
+
+	RPCFuture() {
+		this(null);
+	}
+
+	RPCFuture(OutputStream sink) {
+		this.sink = sink;
+	}
+
+	OutputStream sink() {
+		return sink;
+	}
+
+	/**
+	 * Creates a future that has already failed.
+	 */
+	static RPCFuture failed(IOException failure) {
+		RPCFuture future = new RPCFuture();
+		future.fail(failure);
+		return future;
+	}
+
+	/**
+	 * Creates a future that has already completed.
+	 */
+	static RPCFuture completed(JSONObject value) {
+		RPCFuture future = new RPCFuture();
+		future.complete(value);
+		return future;
+	}
+
+	/**
+	 * Completes the call with the remote method's return value.
+	 * @return false if the future had already completed.
+	 */
+	boolean complete(JSONObject value) {
+		return complete(value, -1);
+	}
+
+	/**
+	 * Completes the call with the remote method's return value, which the server says may be cached for
+	 * maxAge msec.  (-1 if it may not be.)
+	 * @return false if the future had already completed.
+	 */
+	boolean complete(JSONObject value, long maxAge) {
+		synchronized (this) {
+			if (done) return false;
+			this.value = value;
+			this.maxAge = maxAge;
+		}
+		finish();
+		return true;
+	}
+
+	/**
+	 * Returns how long the value may be cached, in msec., or -1 if it may not be, or the call hasn't succeeded.
+	 */
+	synchronized long maxAge() {
+		return maxAge;
+	}
+
+	/**
+	 * Fails the call.
+	 * @return false if the future had already completed.
+	 */
+	boolean fail(IOException failure) {
+		synchronized (this) {
+			if (done) return false;
+			this.failure = failure;
+		}
+		finish();
+		return true;
+	}
+
+	/**
+	 * Sets the deadline to cancel when the call completes.
+	 */
+	synchronized void setTimeout(RPCTimerWheel.Timeout timeout) {
+		if (done) timeout.cancel();
+		else this.timeout = timeout;
+	}
+
+	/**
+	 * Marks the future done, wakes any waiters, and runs the listeners.
+	 */
+	private void finish() {
+		List<Listener> toRun;
+		synchronized (this) {
+			done = true;
+			toRun = listeners;
+			listeners = null;
+			if (timeout != null) timeout.cancel();
+			notifyAll();
+		}
+		for (Listener listener : toRun) {
+			runListener(listener);
+		}
+	}
+
+	private void runListener(Listener listener) {
+		try {
+			listener.onComplete(this);
+		} catch (RuntimeException e) {
+			Log.w(TAG, "RPCFuture listener threw " + e);
+		}
+	}
+
+	/**
+	 * Registers a listener to run when the future completes.  If it already has, the listener runs immediately,
+	 * on the calling thread.
+	 */
+	public void addListener(Listener listener) {
+		synchronized (this) {
+			if (!done) {
+				listeners.add(listener);
+				return;
+			}
+		}
+		runListener(listener);
+	}
+
+	/**
+	 * Cancelling a future doesn't stop the remote call, which has already been sent; it just abandons the response.
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		synchronized (this) {
+			if (done) return false;
+			cancelled = true;
+			failure = new InterruptedIOException("RPC call cancelled");
+		}
+		finish();
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Returns the failure, or null if the call succeeded or is still outstanding.
+	 */
+	public synchronized IOException getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Waits for the call to complete, then returns its value, or throws the exception that failed it.
+	 * This is the blocking RPCCall.invoke(), in other words.
+	 */
+	public synchronized JSONObject await() throws IOException {
+		try {
+			while (!done) wait();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted waiting for RPC response");
+		}
+		if (failure != null) throw failure;
+		return value;
+	}
+
+	@Override
+	public synchronized JSONObject get() throws InterruptedException, ExecutionException {
+		while (!done) wait();
+		return result();
+	}
+
+	@Override
+	public synchronized JSONObject get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+			TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (!done) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) throw new TimeoutException();
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return result();
+	}
+
+	private JSONObject result() throws ExecutionException {
+		if (cancelled) throw new CancellationException();
+		if (failure != null) throw new ExecutionException(failure);
+		return value;
+	}
+}
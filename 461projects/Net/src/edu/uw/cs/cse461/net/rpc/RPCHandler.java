@@ -0,0 +1,24 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import org.json.JSONObject;
+
+/**
+ * The code that handles calls to one RPC method, for registering without reflection:
+ * <pre>
+ *   rpcService.registerHandler("echorpc", "echo", new RPCHandler() {
+ *       public Object handleCall(JSONObject args) throws Exception {
+ *           return _echo(args);
+ *       }
+ *   });
+ * </pre>
+ * It's called directly, with no Method.invoke() on the way.
+ */
+public interface RPCHandler {
+	/**
+	 * Handles one call.
+	 * @param args The arguments of the call
+	 * @return A JSONObject (which may be null), or an RPCStreamingResponse
+	 * @throws Exception The exception's message is sent to the caller, in the error response
+	 */
+	public Object handleCall(JSONObject args) throws Exception;
+}
@@ -0,0 +1,202 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+/**
+ * An RPC callable method that remembers its results.  For a method that's expensive, and is called with the same
+ * args by many callers:
+ * <pre>
+ *   rpcService.registerHandler("lookup", "find",
+ *       new RPCMemoizedMethod(new RPCCallableMethod(this, "_find"), 4096, 10000));
+ * </pre>
+ * Results are keyed by the args, in a canonical form (keys sorted, at every level), so args that are equal as
+ * JSON share a result whatever order they were built in.  At most maxEntries results are kept, and the least
+ * recently used is evicted to make room.  A result is kept for at most maxAge msec, if maxAge isn't 0.
+ * <p>
+ * Identical calls that arrive while the method is computing a result wait for that result, rather than
+ * computing it again.  If the method throws, each of them gets the exception, and nothing is remembered.
+ * A waiting call gives up at its deadline (RPCDeadline.current()), if it has one.
+ * <p>
+ * Results are shared by every call that gets them, so neither the method nor its callers may change them.
+ * Streamed responses (RPCStreamingResponse) can only be sent once, so they're never remembered.
+ */
+public class RPCMemoizedMethod extends RPCCallableMethod {
+
+	/**
+	 * @param method The method whose results are remembered
+	 * @param maxEntries The most results kept
+	 * @param maxAge How long a result is kept, in msec., or 0 to keep it until it's evicted
+	 */
+	public RPCMemoizedMethod(RPCCallableMethod method, int maxEntries, long maxAge) {
+		super(new Memo(method, maxEntries, maxAge), method + " (memoized)");
+	}
+
+	/**
+	 * Returns the hits, misses and size of the memo, for RPCService.dumpState().
+	 */
+	String stats() {
+		return ((Memo) handler()).stats();
+	}
+
+	/**
+	 * The memo itself, as a handler wrapped around the method's.
+	 */
+	private static class Memo implements RPCHandler {
+		private final RPCCallableMethod method;
+		private final int maxEntries;
+		private final long maxAgeNanos;
+
+		/**
+		 * The results, least recently used first.  Guarded by this.
+		 */
+		private final LinkedHashMap<String, Result> results;
+
+		/**
+		 * The computations in progress, by key.  Guarded by this.
+		 */
+		private final Map<String, Flight> flights = new HashMap<String, Flight>();
+
+		private final AtomicLong hits = new AtomicLong();
+		private final AtomicLong misses = new AtomicLong();
+		private final AtomicLong waits = new AtomicLong();
+
+		Memo(RPCCallableMethod method, final int maxEntries, long maxAge) {
+			this.method = method;
+			this.maxEntries = Math.max(1, maxEntries);
+			this.maxAgeNanos = maxAge * 1000000L;
+			results = new LinkedHashMap<String, Result>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+					return size() > Memo.this.maxEntries;
+				}
+			};
+		}
+
+		@Override
+		public Object handleCall(JSONObject args) throws Exception {
+			String key = args == null ? "" : RPCResponseCache.canonical(args);
+
+			Flight flight;
+			boolean leader = false;
+			synchronized (this) {
+				Result result = results.get(key);
+				if (result != null) {
+					if (maxAgeNanos == 0 || System.nanoTime() - result.computed < maxAgeNanos) {
+						hits.incrementAndGet();
+						return result.value;
+					}
+					results.remove(key);
+				}
+				flight = flights.get(key);
+				if (flight == null) {
+					flight = new Flight();
+					flights.put(key, flight);
+					leader = true;
+					misses.incrementAndGet();
+				} else {
+					waits.incrementAndGet();
+				}
+			}
+
+			if (!leader) {
+				Object value = flight.await();
+				return value == Flight.UNSHARED ? method.invoke(args) : value;
+			}
+
+			Object value = null;
+			Exception failure = null;
+			boolean completed = false;
+			try {
+				value = method.invoke(args);
+				completed = true;
+				return value;
+			} catch (Exception e) {
+				failure = e;
+				throw e;
+			} finally {
+				boolean shared = completed && !(value instanceof RPCStreamingResponse);
+				synchronized (this) {
+					flights.remove(key);
+					if (shared) results.put(key, new Result(value, System.nanoTime()));
+				}
+				if (shared) {
+					flight.finish(value, null);
+				} else if (failure != null) {
+					flight.finish(null, failure);
+				} else {
+					// A stream can only be sent once, so the waiting calls compute their own
+					flight.finish(Flight.UNSHARED, null);
+				}
+			}
+		}
+
+		synchronized String stats() {
+			long h = hits.get();
+			long m = misses.get();
+			long w = waits.get();
+			long total = h + m + w;
+			return "memoized " + results.size() + " of " + maxEntries + " results, " + h + " hits, " + w
+					+ " waited, " + m + " misses"
+					+ (total == 0 ? "" : String.format(" (%.1f%% hit)", 100.0 * (h + w) / total));
+		}
+
+		/**
+		 * A remembered result
+		 */
+		private static final class Result {
+			final Object value;
+			/**
+			 * When it was computed, as a System.nanoTime() value
+			 */
+			final long computed;
+
+			Result(Object value, long computed) {
+				this.value = value;
+				this.computed = computed;
+			}
+		}
+
+		/**
+		 * A computation in progress, which identical calls wait for.
+		 */
+		private static final class Flight {
+			/**
+			 * The value of a computation whose result can't be shared
+			 */
+			static final Object UNSHARED = new Object();
+
+			private boolean done;
+			private Object value;
+			private Exception failure;
+
+			synchronized void finish(Object value, Exception failure) {
+				this.value = value;
+				this.failure = failure;
+				done = true;
+				notifyAll();
+			}
+
+			synchronized Object await() throws Exception {
+				RPCDeadline deadline = RPCDeadline.current();
+				while (!done) {
+					if (deadline == null) {
+						wait();
+					} else {
+						long remaining = deadline.remaining();
+						if (remaining <= 0) throw new Exception("Deadline passed waiting for an identical call to complete");
+						wait(remaining);
+					}
+				}
+				if (failure != null) throw failure;
+				return value;
+			}
+		}
+	}
+}
@@ -1,13 +1,18 @@
 package edu.uw.cs.cse461.net.rpc;
 
 import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import edu.uw.cs.cse461.net.base.NetBase;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCBatchMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCControlMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCInvokeMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCBatchResponseMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCErrorResponseMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCNormalResponseMessage;
 import edu.uw.cs.cse461.util.Log;
@@ -16,81 +21,153 @@ import edu.uw.cs.cse461.util.Log;
  * The message class hierarchy facilitates marshalling (encoding into the on-the-wire format)
  * and unmarshalling (decoding from the on-the-wire back to a Java object).  (This is also
  * called serialization, and is related to Java's specific notion of serialization.)
+ * <p>
+ * A message built to be sent holds its fields in a JSONObject, except for the host and id, which
+ * are the same for, or simply counted over, all messages.  A received message is a view of the
+ * JSONObject it was decoded into: the accessors read it, and it isn't copied.
  * @author zahorjan
  *
  */
 class RPCMessage {
 	private static final String TAG="RPCMessage";
-	static int mNextRPCId = 0;
+	private static final AtomicInteger mNextRPCId = new AtomicInteger();
 	
-	protected JSONObject mObject;
-
-	private static synchronized int _nextRequestId() {
-		return ++mNextRPCId;
-	}
+	/**
+	 * The JSON text of the host field, and the start of the id field, for messages sent by this host.  It's the same
+	 * for every message, so it's built once, and again only if the host name changes.
+	 */
+	private static volatile HostSuffix mHostSuffix;
 	
-	protected RPCMessage() throws JSONException {
-		mObject = new JSONObject().put("host", NetBase.theNetBase().hostname())
-                                  .put("id", _nextRequestId());
+	private final String mHost;
+	private final int mId;
+	
+	/**
+	 * The message's fields other than host and id.  For a received message, this is the decoded JSONObject itself:
+	 * the message is a view of it, not a copy.
+	 */
+	protected final JSONObject mObject;
+
+	protected RPCMessage() {
+		mHost = NetBase.theNetBase().hostname();
+		mId = mNextRPCId.incrementAndGet();
+		mObject = new JSONObject();
 	}
 	
-	protected RPCMessage(JSONObject obj) throws JSONException {
-		mObject = new JSONObject().put("host", obj.getString("host"))
-                                  .put("id", obj.getInt("id"));
+	protected RPCMessage(String host, int id, JSONObject obj) {
+		mHost = host;
+		mId = id;
+		mObject = obj;
 	}
 
-	int id() throws JSONException {
-		return mObject.getInt("id");
+	int id() {
+		return mId;
 	}
 	
 	String type() throws JSONException {
 		return mObject.getString("type");
 	}
 	
-	String host() throws JSONException {
-		return mObject.getString("host");
+	String host() {
+		return mHost;
+	}
+	
+	/**
+	 * Returns the whole message as a new JSONObject.  Messages are sent with toJSONString(), which doesn't need one.
+	 */
+	JSONObject marshall() throws JSONException {
+		return new JSONObject(mObject, JSONObject.getNames(mObject)).put("host", mHost).put("id", mId);
+	}
+	
+	/**
+	 * Returns the message as JSON text: the text of its other fields, with the host and id fields appended.
+	 */
+	String toJSONString() throws JSONException {
+		StringWriter out = new StringWriter(64);
+		mObject.write(out);
+		StringBuffer text = out.getBuffer();
+		text.setLength(text.length() - 1);	// the closing brace
+		if (text.length() > 1) text.append(',');
+		return text.append(hostSuffix(mHost)).append(mId).append('}').toString();
 	}
 	
-	JSONObject marshall() {
-		return mObject;
+	private static String hostSuffix(String host) {
+		HostSuffix suffix = mHostSuffix;
+		if (suffix == null || !suffix.host.equals(host)) {
+			suffix = new HostSuffix(host);
+			mHostSuffix = suffix;
+		}
+		return suffix.text;
+	}
+	
+	private static class HostSuffix {
+		final String host;
+		final String text;
+		
+		HostSuffix(String host) {
+			this.host = host;
+			this.text = "\"host\":" + JSONObject.quote(host) + ",\"id\":";
+		}
 	}
 	
 	@Override
 	public String toString() {
-		return mObject.toString();
+		try {
+			return toJSONString();
+		} catch (JSONException e) {
+			return mObject.toString();
+		}
 	}
 	
 	static RPCMessage unmarshall(String jsonFormatString) throws IOException {
 		if ( jsonFormatString == null ) throw new IOException("RPCMessage.stringToMessage was passed null");
 
 		try {
-			JSONObject jsonObj = new JSONObject(jsonFormatString);
-			
-			String type = jsonObj.getString("type"); 
-			if ( type.equalsIgnoreCase("control") ) return new RPCControlMessage(jsonObj);
-			if ( type.equalsIgnoreCase("invoke") )  return new RPCInvokeMessage(jsonObj);
-			if ( type.equalsIgnoreCase("OK") )      return new RPCNormalResponseMessage(jsonObj);
-			if ( type.equalsIgnoreCase("ERROR") )   return new RPCErrorResponseMessage(jsonObj);
-			String msg = "Got unrecognized type in message: " + type + " [" + jsonFormatString + "]"; 
-			Log.e(TAG, msg );
-			throw new IOException(msg);
-
+			return unmarshall(new JSONObject(jsonFormatString));
 		} catch (JSONException je) {
 			throw new IOException("Unparsable message: '" + jsonFormatString + "'");
 		}
 		
 	}
 	
+	/**
+	 * Builds the message object from a parsed JSON message.  The message takes over jsonObj.
+	 */
+	static RPCMessage unmarshall(JSONObject jsonObj) throws IOException, JSONException {
+		String host = jsonObj.getString("host");
+		int id = jsonObj.getInt("id");
+		jsonObj.remove("host");
+		jsonObj.remove("id");
+		return unmarshall(host, id, jsonObj);
+	}
+	
+	/**
+	 * Builds the message object from its decoded fields: its host and id, and a JSONObject holding the rest, which
+	 * the message takes over.  Used by RPCBinaryCodec, as well as unmarshall(JSONObject).
+	 */
+	static RPCMessage unmarshall(String host, int id, JSONObject jsonObj) throws IOException, JSONException {
+		String type = jsonObj.getString("type"); 
+		if ( type.equalsIgnoreCase("control") ) return new RPCControlMessage(host, id, jsonObj);
+		if ( type.equalsIgnoreCase("invoke") )  return new RPCInvokeMessage(host, id, jsonObj);
+		if ( type.equalsIgnoreCase("OK") )      return new RPCNormalResponseMessage(host, id, jsonObj);
+		if ( type.equalsIgnoreCase("ERROR") )   return new RPCErrorResponseMessage(host, id, jsonObj);
+		// Case matters from here on: a batch of calls, and the response to one
+		if ( type.equals("batch") )             return new RPCBatchMessage(host, id, jsonObj);
+		if ( type.equals("BATCH") )             return new RPCBatchResponseMessage(host, id, jsonObj);
+		String msg = "Got unrecognized type in message: " + type + " [" + jsonObj + "]"; 
+		Log.e(TAG, msg );
+		throw new IOException(msg);
+	}
+	
 	//---------------------------------------------------------
 	// Call message classes
 	//---------------------------------------------------------
 
 	static class RPCCallMessage extends RPCMessage {
-		RPCCallMessage() throws JSONException {
+		RPCCallMessage() {
 		}
 		
-		RPCCallMessage(JSONObject jsonObj) throws JSONException {
-			super(jsonObj);
+		RPCCallMessage(String host, int id, JSONObject jsonObj) {
+			super(host, id, jsonObj);
 		}
 
 		public JSONObject args() throws JSONException {
@@ -115,11 +192,12 @@ class RPCMessage {
 				if ( options != null ) mObject.put("options", options);
 			}
 			
-			RPCControlMessage(JSONObject jsonObject) throws JSONException {
-				super(jsonObject);
+			RPCControlMessage(String host, int id, JSONObject jsonObject) throws JSONException {
+				super(host, id, jsonObject);
 				mObject.put("type", "control");
-				mObject.put("action", jsonObject.get("action"));
-				if ( jsonObject.has("options") ) mObject.put("options", jsonObject.getJSONObject("options"));
+				// Reading the fields the accessors will read rejects a malformed message now, rather than later
+				mObject.get("action");
+				if ( mObject.has("options") ) mObject.getJSONObject("options");
 			}
 			
 			public String action() throws JSONException {
@@ -139,19 +217,51 @@ class RPCMessage {
 		 *
 		 */
 		static public class RPCInvokeMessage extends RPCCallMessage {
+			/**
+			 * For a received call that carried a timeout, when the caller will give up on it; otherwise null
+			 */
+			private final RPCDeadline deadline;
+			
 			RPCInvokeMessage(String service, String method, JSONObject args) throws JSONException {
+				this(service, method, args, 0);
+			}
+			
+			/**
+			 * @param timeout The time the caller will wait for the response, in msec., sent so the server can skip
+			 * the call once the caller has given up.  0 to send none.
+			 */
+			RPCInvokeMessage(String service, String method, JSONObject args, long timeout) throws JSONException {
 				mObject.put("type", "invoke")
 					   .put("app", service)
 					   .put("method", method);
 				if ( args != null ) mObject.put("args", args);
+				if ( timeout > 0 ) mObject.put("timeout", timeout);
+				deadline = null;
 			}
 			
-			RPCInvokeMessage(JSONObject jsonObject) throws JSONException {
-				super(jsonObject);
-				mObject.put("type", "invoke")
-				       .put("app", jsonObject.getString("app"))
-				       .put("method", jsonObject.getString("method"));
-				if ( jsonObject.has("args") ) mObject.put("args", jsonObject.getJSONObject("args"));
+			RPCInvokeMessage(String host, int id, JSONObject jsonObject) throws JSONException {
+				this(host, id, jsonObject,
+					 // Counted from now, when the call arrived, which is no earlier than when the caller started counting
+					 jsonObject.has("timeout") ? RPCDeadline.after(jsonObject.getLong("timeout")) : null);
+			}
+			
+			/**
+			 * A received call whose deadline is already known: one of the calls of a batch.
+			 */
+			RPCInvokeMessage(String host, int id, JSONObject jsonObject, RPCDeadline deadline) throws JSONException {
+				super(host, id, jsonObject);
+				mObject.put("type", "invoke");
+				mObject.getString("app");
+				mObject.getString("method");
+				if ( mObject.has("args") ) mObject.getJSONObject("args");
+				this.deadline = deadline;
+			}
+			
+			/**
+			 * Returns the time by which the caller needs the response, or null if it didn't say.
+			 */
+			RPCDeadline deadline() {
+				return deadline;
 			}
 			
 			String app() throws JSONException {
@@ -162,6 +272,68 @@ class RPCMessage {
 				return mObject.getString("method");
 			}
 		}
+		
+		/**
+		 * A batch of invocations, sent in one message.  The server runs them concurrently, and returns all of
+		 * their results in one RPCBatchResponseMessage.  Only sent to servers that said, in the connect message,
+		 * that they understand batches.
+		 */
+		static public class RPCBatchMessage extends RPCCallMessage {
+			/**
+			 * For a received batch that carried a timeout, when the caller will give up on it; otherwise null
+			 */
+			private final RPCDeadline deadline;
+			
+			/**
+			 * @param timeout The time the caller will wait for the response, in msec.  0 to send none.
+			 */
+			RPCBatchMessage(long timeout) throws JSONException {
+				mObject.put("type", "batch")
+					   .put("calls", new JSONArray());
+				if ( timeout > 0 ) mObject.put("timeout", timeout);
+				deadline = null;
+			}
+			
+			RPCBatchMessage(String host, int id, JSONObject jsonObject) throws JSONException {
+				super(host, id, jsonObject);
+				JSONArray calls = mObject.getJSONArray("calls");
+				for ( int i = 0; i < calls.length(); i++ ) {
+					JSONObject call = calls.getJSONObject(i);
+					call.getString("app");
+					call.getString("method");
+					if ( call.has("args") ) call.getJSONObject("args");
+				}
+				deadline = mObject.has("timeout") ? RPCDeadline.after(mObject.getLong("timeout")) : null;
+			}
+			
+			/**
+			 * Adds a call to the batch.
+			 */
+			void add(String service, String method, JSONObject args) throws JSONException {
+				JSONObject call = new JSONObject().put("app", service).put("method", method);
+				if ( args != null ) call.put("args", args);
+				mObject.getJSONArray("calls").put(call);
+			}
+			
+			int size() throws JSONException {
+				return mObject.getJSONArray("calls").length();
+			}
+			
+			/**
+			 * Returns the index'th call, as an invoke message from the batch's host, whose id is its index in the
+			 * batch, and whose deadline is the batch's.
+			 */
+			RPCInvokeMessage call(int index) throws JSONException {
+				return new RPCInvokeMessage(host(), index, mObject.getJSONArray("calls").getJSONObject(index), deadline);
+			}
+			
+			/**
+			 * Returns the time by which the caller needs the response, or null if it didn't say.
+			 */
+			RPCDeadline deadline() {
+				return deadline;
+			}
+		}
 	}
 	
 	
@@ -176,9 +348,9 @@ class RPCMessage {
 			mObject.put("callid", id);
 		}
 		
-		RPCResponseMessage(JSONObject jsonObj) throws JSONException {
-			super(jsonObj);
-			mObject.put("callid", jsonObj.getInt("callid") );
+		RPCResponseMessage(String host, int id, JSONObject jsonObj) throws JSONException {
+			super(host, id, jsonObj);
+			mObject.getInt("callid");
 		}
 		
 		int callid() throws JSONException {
@@ -192,17 +364,60 @@ class RPCMessage {
 				if ( retval != null ) mObject.put("value", retval);
 			}
 			
-			RPCNormalResponseMessage(JSONObject jsonObj ) throws JSONException {
-				super(jsonObj);
+			/**
+			 * A response the caller may cache.
+			 * @param maxAge How long the caller may cache it, in msec.
+			 */
+			RPCNormalResponseMessage(int callid, JSONObject retval, long maxAge) throws JSONException {
+				this(callid, retval);
+				mObject.put("maxage", maxAge);
+			}
+			
+			RPCNormalResponseMessage(String host, int id, JSONObject jsonObj ) throws JSONException {
+				super(host, id, jsonObj);
 				mObject.put("type", "OK");
-				// JSONObject throws an exception for almost every kind of read if the key exists but the value is null
-				if ( jsonObj.has("value") && jsonObj.get("value") != null ) mObject.put("value", jsonObj.getJSONObject("value"));
+				if ( mObject.has("value") ) mObject.getJSONObject("value");
+				if ( mObject.has("streamlength") ) mObject.getLong("streamlength");
+				if ( mObject.has("maxage") ) mObject.getLong("maxage");
 			}
 			
 			public JSONObject value() throws JSONException {
 				if ( mObject.has("value") ) return mObject.getJSONObject("value");
 				return null;
 			}
+			
+			/**
+			 * Returns the number of raw bytes following this response on the connection, or -1 if it isn't
+			 * a streamed response.
+			 */
+			long streamLength() {
+				return mObject.optLong("streamlength", -1);
+			}
+			
+			/**
+			 * Returns how long the caller may cache this response, in msec., or -1 if it may not.
+			 */
+			long maxAge() {
+				return mObject.optLong("maxage", -1);
+			}
+		}
+		
+		/**
+		 * The response to a call whose method returned an RPCStreamingResponse.  Only ever sent: the receiver
+		 * unmarshalls it as an RPCNormalResponseMessage with a streamLength().
+		 */
+		static public class RPCStreamResponseMessage extends RPCNormalResponseMessage {
+			private final RPCStreamSource source;
+			
+			RPCStreamResponseMessage(int callid, RPCStreamingResponse response) throws JSONException {
+				super(callid, response.value());
+				source = response.body();
+				mObject.put("streamlength", source.length());
+			}
+			
+			RPCStreamSource source() {
+				return source;
+			}
 		}
 
 		static public class RPCErrorResponseMessage extends RPCResponseMessage {
@@ -218,11 +433,77 @@ class RPCMessage {
 				else mObject.put("callargs", "unrecognizable");
 			}
 			
-			RPCErrorResponseMessage(JSONObject jsonObj) throws JSONException {
-				super(jsonObj);
+			/**
+			 * A refusal of a call the server is too busy to run.
+			 * @param retryAfter How long the caller should wait before trying again, in msec.
+			 */
+			RPCErrorResponseMessage(int callid, String msg, long retryAfter) throws JSONException {
+				super(callid);
+				mObject.put("type", "ERROR");
+				mObject.put("message", msg);
+				mObject.put("retryafter", retryAfter);
+			}
+			
+			/**
+			 * Returns how long the server asked the caller to wait before trying again, in msec., or -1 if it didn't.
+			 */
+			long retryAfter() {
+				return mObject.optLong("retryafter", -1);
+			}
+			
+			RPCErrorResponseMessage(String host, int id, JSONObject jsonObj) throws JSONException {
+				super(host, id, jsonObj);
 				mObject.put("type", "ERROR");
-				mObject.put("message", jsonObj.getString("message") );
-				if ( jsonObj.has("callargs") ) mObject.put("callargs", jsonObj.getJSONObject("callargs"));
+				mObject.getString("message");
+				if ( mObject.has("callargs") ) mObject.getJSONObject("callargs");
+				if ( mObject.has("retryafter") ) mObject.getLong("retryafter");
+			}
+		}
+
+		/**
+		 * The response to an RPCBatchMessage: the results of its calls, in order.  Each result is an object
+		 * holding the call's "value" (absent if it returned null), or an "error" message, and for a call the server
+		 * was too busy to run, how long to wait before trying again ("retryafter").
+		 */
+		static public class RPCBatchResponseMessage extends RPCResponseMessage {
+			/**
+			 * @param responses The responses to the batch's calls, each an RPCNormalResponseMessage or an
+			 * RPCErrorResponseMessage
+			 */
+			RPCBatchResponseMessage(int callid, RPCMessage[] responses) throws JSONException {
+				super(callid);
+				mObject.put("type", "BATCH");
+				JSONArray results = new JSONArray();
+				for ( RPCMessage response : responses ) {
+					JSONObject result = new JSONObject();
+					if ( response instanceof RPCErrorResponseMessage ) {
+						result.put("error", response.mObject.getString("message"));
+						long retryAfter = ((RPCErrorResponseMessage) response).retryAfter();
+						if ( retryAfter >= 0 ) result.put("retryafter", retryAfter);
+					} else {
+						result.putOpt("value", ((RPCNormalResponseMessage) response).value());
+					}
+					results.put(result);
+				}
+				mObject.put("results", results);
+			}
+			
+			RPCBatchResponseMessage(String host, int id, JSONObject jsonObj) throws JSONException {
+				super(host, id, jsonObj);
+				JSONArray results = mObject.getJSONArray("results");
+				for ( int i = 0; i < results.length(); i++ ) {
+					JSONObject result = results.getJSONObject(i);
+					if ( result.has("value") ) result.getJSONObject("value");
+					if ( result.has("error") ) result.getString("error");
+					if ( result.has("retryafter") ) result.getLong("retryafter");
+				}
+			}
+			
+			/**
+			 * Returns the calls' results, in the order the calls were made.
+			 */
+			JSONArray results() throws JSONException {
+				return mObject.getJSONArray("results");
 			}
 		}
 	}
@@ -0,0 +1,719 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+
+import edu.uw.cs.cse461.net.base.NetBase;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCBatchMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCNormalResponseMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCStreamResponseMessage;
+import edu.uw.cs.cse461.net.tcpmessagehandler.DirectBufferPool;
+import edu.uw.cs.cse461.net.tcpmessagehandler.MessageCompressor;
+import edu.uw.cs.cse461.util.ConfigManager;
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * The non-blocking ("nio") implementation of the receiving side of RPC.
+ * <p>
+ * Connections are spread round-robin over a small, fixed set of I/O threads, each of which owns a Selector. The I/O
+ * threads only read and write framed messages (the same 4-byte little endian length prefix TCPMessageHandler uses).
+ * The connect handshake is answered directly on the I/O thread; invocations are handed to the RPCService's worker
+ * pool, whose threads queue their responses back on the connection. Queueing a message never waits, so the I/O thread
+ * can queue one too (a refusal, say) even while a worker is streaming a response body on the same connection.
+ * <p>
+ * As in thread mode, an idle connection is closed once rpc.persistence.timeout (or net.timeout.socket, if the client
+ * did not ask for persistence) has passed since the client was last heard from. Each I/O thread looks for idle
+ * connections every half of the shorter timeout, rather than on every wakeup, so one may stay open for up to half as
+ * long again.
+ */
+class RPCNioServer {
+    private static final String TAG = "RPCNioServer";
+
+    /**
+     * How many chunks of a streamed response body may be queued for writing at once
+     */
+    private static final int STREAM_CHUNKS_QUEUED = 4;
+
+    private final RPCService mService;
+    private final ExecutorService mWorkers;
+    private final ServerSocketChannel mServerChannel;
+    private final IOLoop[] mLoops;
+
+    /**
+     * Index of the I/O thread that will be given the next accepted connection. Used only by the accepting thread.
+     */
+    private int mNextLoop;
+
+    private final AtomicInteger mNumConnections = new AtomicInteger();
+    private final int mMaxConnections;
+
+    private final int mGranularity;
+    private final int mPersistenceTimeout;
+    private final int mNetworkTimeout;
+    private final int mMaxReadLength;
+
+    /**
+     * How often each I/O thread looks for idle connections, in msec.
+     */
+    private final int mSweepInterval;
+
+    /**
+     * Binds the server channel and creates (but does not start) the I/O threads.
+     *
+     * @param service
+     *            The RPCService whose calls this server fields
+     * @param address
+     *            The address to listen on
+     * @param nLoops
+     *            The number of I/O threads
+     * @param workers
+     *            The threads that execute RPC methods
+     * @param maxConnections
+     *            The most connections open at once. Any more are closed as soon as they're accepted.
+     * @throws IOException
+     */
+    RPCNioServer(RPCService service, InetSocketAddress address, int nLoops, ExecutorService workers,
+            int maxConnections) throws IOException {
+        mService = service;
+        mWorkers = workers;
+        mMaxConnections = maxConnections;
+
+        ConfigManager config = NetBase.theNetBase().config();
+        mGranularity = config.getAsInt("net.timeout.granularity", 500);
+        mPersistenceTimeout = config.getAsInt("rpc.persistence.timeout", 25000);
+        mNetworkTimeout = config.getAsInt("net.timeout.socket", 10000);
+        mMaxReadLength = config.getAsInt("tcpmessagehandler.maxmsglength", 2097148);
+        mSweepInterval = Math.max(1, Math.min(mPersistenceTimeout, mNetworkTimeout) / 2);
+
+        mServerChannel = ServerSocketChannel.open();
+        mServerChannel.socket().bind(address);
+        mServerChannel.configureBlocking(false);
+
+        mLoops = new IOLoop[nLoops];
+        for (int i = 0; i < nLoops; i++) {
+            mLoops[i] = new IOLoop(i);
+        }
+        // The first I/O thread also accepts connections
+        mServerChannel.register(mLoops[0].mSelector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * @return The ServerSocket underlying the listening channel
+     */
+    ServerSocket serverSocket() {
+        return mServerChannel.socket();
+    }
+
+    /**
+     * Starts the I/O threads.
+     */
+    void start() {
+        for (IOLoop loop : mLoops) {
+            new Thread(loop, "RPCIOLoop-" + loop.mIndex).start();
+        }
+    }
+
+    /**
+     * Wakes all I/O threads, so that they notice a shutdown promptly.
+     */
+    void wakeup() {
+        for (IOLoop loop : mLoops) {
+            loop.mSelector.wakeup();
+        }
+    }
+
+    String dumpState() {
+        return "NIO mode: " + mLoops.length + " I/O threads, " + mNumConnections.get() + " open connections\n";
+    }
+
+    /**
+     * Accepts all pending connections, assigning each to an I/O thread. Called only by the first I/O thread.
+     */
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = mServerChannel.accept()) != null) {
+            if (mNumConnections.get() >= mMaxConnections) {
+                mService.refuseConnection();
+                channel.close();
+                continue;
+            }
+            Log.d(TAG, "RPC server accepted connection from " + channel.socket().getRemoteSocketAddress());
+            channel.configureBlocking(false);
+            IOLoop loop = mLoops[mNextLoop];
+            mNextLoop = (mNextLoop + 1) % mLoops.length;
+            loop.adopt(new Connection(channel, loop));
+        }
+    }
+
+    // --------------------------------------------------------------------------------------
+    // I/O threads
+    // --------------------------------------------------------------------------------------
+
+    /**
+     * An I/O thread. It owns a Selector, and all reads and writes of the connections registered with it.
+     */
+    private class IOLoop implements Runnable {
+        private final int mIndex;
+        private final Selector mSelector;
+
+        /**
+         * Connections handed to this thread by the accepting thread, waiting to be registered with the selector.
+         */
+        private final Queue<Connection> mNewConnections = new ConcurrentLinkedQueue<Connection>();
+
+        /**
+         * Connections that worker threads have queued responses on.
+         */
+        private final Queue<Connection> mWriteRequests = new ConcurrentLinkedQueue<Connection>();
+
+        private volatile Thread mThread;
+
+        /**
+         * When closeIdleConnections() is next due. Used only by this thread.
+         */
+        private long mNextSweep;
+
+        IOLoop(int index) throws IOException {
+            mIndex = index;
+            mSelector = Selector.open();
+        }
+
+        void adopt(Connection conn) {
+            if (Thread.currentThread() == mThread) {
+                conn.register();
+            } else {
+                mNewConnections.add(conn);
+                mSelector.wakeup();
+            }
+        }
+
+        void requestWrite(Connection conn) {
+            if (Thread.currentThread() == mThread) {
+                conn.write();
+            } else {
+                mWriteRequests.add(conn);
+                mSelector.wakeup();
+            }
+        }
+
+        @Override
+        public void run() {
+            mThread = Thread.currentThread();
+            try {
+                while (!mService.isShutdown()) {
+                    mSelector.select(mGranularity);
+
+                    Connection conn;
+                    while ((conn = mNewConnections.poll()) != null) {
+                        conn.register();
+                    }
+                    while ((conn = mWriteRequests.poll()) != null) {
+                        conn.write();
+                    }
+
+                    Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        try {
+                            if (key.isAcceptable()) {
+                                accept();
+                                continue;
+                            }
+                            conn = (Connection) key.attachment();
+                            if (key.isReadable()) {
+                                conn.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                conn.write();
+                            }
+                        } catch (CancelledKeyException e) {
+                            // The connection was closed by a worker thread
+                        }
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (now >= mNextSweep) {
+                        closeIdleConnections(now);
+                        mNextSweep = now + mSweepInterval;
+                    }
+                }
+                Log.d(TAG, "Encountered stop signal");
+            } catch (Exception e) {
+                Log.w(TAG, "I/O thread exiting due to exception: " + e.getMessage());
+            } finally {
+                for (SelectionKey key : mSelector.keys()) {
+                    if (key.attachment() instanceof Connection) {
+                        ((Connection) key.attachment()).close();
+                    }
+                }
+                try {
+                    mSelector.close();
+                } catch (IOException e) {
+                }
+                if (mIndex == 0) {
+                    try {
+                        mServerChannel.close();
+                    } catch (IOException e) {
+                    }
+                }
+            }
+        }
+
+        /**
+         * Closes connections whose client hasn't been heard from within the persistence timeout, unless a call on
+         * them is still being executed.
+         */
+        private void closeIdleConnections(long now) {
+            for (SelectionKey key : mSelector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    Connection conn = (Connection) key.attachment();
+                    if (!conn.persist(now)) {
+                        Log.d(TAG, "Persistence timeout exceeded");
+                        conn.close();
+                    }
+                }
+            }
+        }
+    }
+
+    // --------------------------------------------------------------------------------------
+    // Connections
+    // --------------------------------------------------------------------------------------
+
+    /**
+     * Per-connection state: the partially read incoming message, and the queue of outgoing messages.
+     */
+    private class Connection {
+        private final SocketChannel mChannel;
+        private final IOLoop mLoop;
+        private SelectionKey mKey;
+
+        private final ByteBuffer mLengthBuf = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        private ByteBuffer mPayload;
+
+        /**
+         * Whether mPayload holds a compressed message
+         */
+        private boolean mPayloadCompressed;
+
+        /**
+         * Compresses and decompresses messages, once the client has agreed to it
+         */
+        private volatile MessageCompressor mCompressor;
+
+        /**
+         * Whether the connect handshake has completed
+         */
+        private boolean mConnected;
+        private boolean mKeepAlive;
+
+        /**
+         * Decodes calls, on the I/O thread, and encodes responses, under the mOrder lock.  Set by the handshake.
+         */
+        private volatile RPCBinaryCodec mCodec;
+        private volatile long mLastUsed = System.currentTimeMillis();
+
+        /**
+         * The number of calls handed to the workers that haven't been responded to yet
+         */
+        private final AtomicInteger mInFlight = new AtomicInteger();
+
+        /**
+         * Framed messages waiting to be written. Filled by any thread, drained by the I/O thread.
+         */
+        private final Queue<ByteBuffer> mOutput = new ConcurrentLinkedQueue<ByteBuffer>();
+        private ByteBuffer mCurrentOutput;
+
+        /**
+         * Held while a message is encoded and queued, so that messages are queued in the order they're encoded. It's
+         * never held while waiting, so the I/O thread may queue messages too.
+         */
+        private final Object mOrder = new Object();
+
+        /**
+         * Whether a streamed response body is being queued. Guarded by mOrder. The body must directly follow its
+         * response, so messages queued meanwhile wait in mDeferred until it's done.
+         */
+        private volatile boolean mStreaming;
+        private final Queue<DeferredMessage> mDeferred = new ConcurrentLinkedQueue<DeferredMessage>();
+
+        /**
+         * The number of bytes in mOutput and mCurrentOutput. A thread streaming a response body waits on mDrained for
+         * it to fall.
+         */
+        private final AtomicLong mQueuedBytes = new AtomicLong();
+        private final Object mDrained = new Object();
+        private volatile boolean mDrainWaiting;
+
+        Connection(SocketChannel channel, IOLoop loop) {
+            mChannel = channel;
+            mLoop = loop;
+        }
+
+        void register() {
+            try {
+                mKey = mChannel.register(mLoop.mSelector, SelectionKey.OP_READ, this);
+                mNumConnections.incrementAndGet();
+            } catch (ClosedChannelException e) {
+                Log.d(TAG, "Connection closed before it could be registered");
+            }
+        }
+
+        boolean persist(long now) {
+            if (mInFlight.get() > 0 || mCurrentOutput != null || mStreaming) {
+                return true;
+            }
+            return mLastUsed + (mKeepAlive ? mPersistenceTimeout : mNetworkTimeout) > now;
+        }
+
+        /**
+         * Reads as much as is available, processing each complete message.
+         */
+        void read() {
+            try {
+                while (true) {
+                    if (mPayload == null) {
+                        if (mChannel.read(mLengthBuf) < 0) {
+                            throw new EOFException("EOF reached on socket when reading length");
+                        }
+                        if (mLengthBuf.hasRemaining()) {
+                            return;
+                        }
+                        mLengthBuf.flip();
+                        int length = mLengthBuf.getInt();
+                        mLengthBuf.clear();
+                        if (length < 0) {
+                            throw new IOException("Negative length");
+                        }
+                        mPayloadCompressed = mCompressor != null && (length & MessageCompressor.COMPRESSED) != 0;
+                        if (mPayloadCompressed) {
+                            length &= ~MessageCompressor.COMPRESSED;
+                        }
+                        if (length > mMaxReadLength) {
+                            throw new IOException("Length larger than tcpmessagehandler.maxmsglength");
+                        }
+                        mPayload = ByteBuffer.allocate(length);
+                    }
+
+                    if (mChannel.read(mPayload) < 0) {
+                        throw new EOFException("EOF reached on socket when reading message");
+                    }
+                    if (mPayload.hasRemaining()) {
+                        return;
+                    }
+                    byte[] message = mPayload.array();
+                    mPayload = null;
+                    if (mPayloadCompressed) {
+                        message = mCompressor.decompress(message, 0, message.length, mMaxReadLength);
+                    }
+
+                    mLastUsed = System.currentTimeMillis();
+                    handleMessage(mConnected ? mCodec.decode(message) : RPCMessage.unmarshall(new String(message)));
+                }
+            } catch (Exception e) {
+                Log.d(TAG, "Caught exception: " + e);
+                close();
+            }
+        }
+
+        private void handleMessage(final RPCMessage message) throws Exception {
+            if (!mConnected) {
+                RPCNormalResponseMessage response = mService.handleConnect(message);
+                mKeepAlive = response.value().has("connection");
+                mConnected = true;
+                queue(response);
+                mCodec = new RPCBinaryCodec(response.value().has("encoding"), response.value().has("retryafter"),
+                        response.value().has("maxage"));
+                if (response.value().has("compress")) {
+                    mCompressor = mService.newCompressor();
+                }
+                return;
+            }
+
+            if (message instanceof RPCBatchMessage) {
+                mInFlight.incrementAndGet();
+                mService.executeBatch((RPCBatchMessage) message, new RPCService.BatchResponder() {
+                    @Override
+                    public void respond(RPCMessage response) {
+                        // May be called on this I/O thread, so queue the response without waiting. A batch response
+                        // is never streamed.
+                        try {
+                            if (response != null) {
+                                queue(response);
+                            }
+                        } catch (Exception e) {
+                            Log.d(TAG, "Caught exception: " + e);
+                            close();
+                        } finally {
+                            mInFlight.decrementAndGet();
+                        }
+                    }
+                });
+                return;
+            }
+
+            // A call that isn't admitted, or that finds the workers' queue full, is refused straight away
+            final RPCService.Admission admission = mService.admit(message);
+            if (admission == null) {
+                queue(mService.refusal(message));
+                return;
+            }
+            mInFlight.incrementAndGet();
+            try {
+                mWorkers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            RPCMessage response;
+                            try {
+                                response = mService.handleInvoke(message);
+                            } finally {
+                                mService.release(admission);
+                            }
+                            if (response != null) {
+                                send(response);
+                            }
+                        } catch (Exception e) {
+                            Log.d(TAG, "Caught exception: " + e);
+                            close();
+                        } finally {
+                            mInFlight.decrementAndGet();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                mInFlight.decrementAndGet();
+                mService.cancel(admission);
+                queue(mService.refusal(message));
+            }
+        }
+
+        /**
+         * Queues a message for sending, and then, if it's a streamed response, its body. May be called from any
+         * thread but the I/O thread, as it waits for the body to be written.
+         */
+        void send(RPCMessage message) throws IOException, JSONException {
+            RPCStreamSource source = encodeAndQueue(message);
+            if (source != null) {
+                sendStreams(source);
+            }
+        }
+
+        /**
+         * Queues a message that isn't a streamed response for sending. Never waits, so the I/O thread may call it.
+         */
+        void queue(RPCMessage message) throws IOException, JSONException {
+            if (message instanceof RPCStreamResponseMessage) {
+                throw new IllegalArgumentException("A streamed response must be sent by send()");
+            }
+            encodeAndQueue(message);
+        }
+
+        /**
+         * Encodes a message and queues it, or defers it if a streamed body is being queued.
+         *
+         * @return The source of the message's body, if it's a streamed response that the caller must now send with
+         *         sendStreams(), or null
+         */
+        private RPCStreamSource encodeAndQueue(RPCMessage message) throws IOException, JSONException {
+            RPCStreamSource source = message instanceof RPCStreamResponseMessage
+                    ? ((RPCStreamResponseMessage) message).source() : null;
+            synchronized (mOrder) {
+                byte[] payload = mCodec == null ? message.toJSONString().getBytes() : mCodec.encode(message);
+                int flag = 0;
+                MessageCompressor compressor = mCompressor;
+                if (compressor != null) {
+                    byte[] compressed = compressor.compress(payload, 0, payload.length);
+                    if (compressed != null) {
+                        payload = compressed;
+                        flag = MessageCompressor.COMPRESSED;
+                    }
+                }
+                ByteBuffer buf = ByteBuffer.allocate(4 + payload.length).order(ByteOrder.LITTLE_ENDIAN);
+                buf.putInt(flag | payload.length).put(payload).flip();
+                if (mStreaming) {
+                    mDeferred.add(new DeferredMessage(buf, source));
+                    return null;
+                }
+                enqueue(buf);
+                if (source != null) {
+                    mStreaming = true;
+                }
+                return source;
+            }
+        }
+
+        /**
+         * Queues a streamed body, then the messages deferred while it was queued. The body of any streamed response
+         * among them is queued in turn, by this thread.
+         */
+        private void sendStreams(RPCStreamSource source) throws IOException {
+            while (source != null) {
+                sendStream(source);
+                synchronized (mOrder) {
+                    source = null;
+                    DeferredMessage next;
+                    while (source == null && (next = mDeferred.poll()) != null) {
+                        enqueue(next.mBuf);
+                        source = next.mSource;
+                    }
+                    if (source == null) {
+                        mStreaming = false;
+                    }
+                }
+            }
+        }
+
+        private void enqueue(ByteBuffer buf) {
+            mQueuedBytes.addAndGet(buf.remaining());
+            mOutput.add(buf);
+            mLoop.requestWrite(this);
+        }
+
+        /**
+         * Queues a streamed response body, one chunk at a time, each in a pooled direct buffer. Pulls the next chunk
+         * from the source only once the I/O thread has written all but a few chunks, so the body is never all in
+         * memory.
+         */
+        private void sendStream(RPCStreamSource source) throws IOException {
+            int chunkSize = mService.streamChunkSize();
+            long remaining = source.length();
+            byte[] chunk = new byte[(int) Math.min(chunkSize, remaining)];
+            while (remaining > 0) {
+                awaitDrained(STREAM_CHUNKS_QUEUED * (long) (chunkSize + 4));
+                int n = source.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+                if (n <= 0) {
+                    throw new IOException("RPC stream source ended " + remaining + " bytes early");
+                }
+                ByteBuffer buf = DirectBufferPool.acquire(4 + n);
+                buf.order(ByteOrder.LITTLE_ENDIAN);
+                buf.putInt(n).put(chunk, 0, n).flip();
+                enqueue(buf);
+                remaining -= n;
+            }
+        }
+
+        /**
+         * Waits until no more than limit bytes are queued for writing.
+         */
+        private void awaitDrained(long limit) throws IOException {
+            synchronized (mDrained) {
+                while (mQueuedBytes.get() > limit) {
+                    if (!mChannel.isOpen()) {
+                        throw new IOException("Connection closed while streaming a response");
+                    }
+                    mDrainWaiting = true;
+                    try {
+                        mDrained.wait(mGranularity);
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException("Interrupted while streaming a response");
+                    }
+                }
+                mDrainWaiting = false;
+            }
+        }
+
+        /**
+         * Called by the I/O thread once a queued buffer has been written.
+         */
+        private void written(ByteBuffer buf) {
+            mQueuedBytes.addAndGet(-buf.limit());
+            if (buf.isDirect()) {
+                DirectBufferPool.release(buf);
+            }
+            if (mDrainWaiting) {
+                synchronized (mDrained) {
+                    mDrained.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Writes queued messages until they're exhausted or the socket buffer is full. Called only by the I/O
+         * thread.
+         */
+        void write() {
+            if (mKey == null || !mKey.isValid()) {
+                return;
+            }
+            try {
+                while (true) {
+                    if (mCurrentOutput == null) {
+                        mCurrentOutput = mOutput.poll();
+                    }
+                    if (mCurrentOutput == null) {
+                        mKey.interestOps(SelectionKey.OP_READ);
+                        return;
+                    }
+                    mChannel.write(mCurrentOutput);
+                    if (mCurrentOutput.hasRemaining()) {
+                        mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    written(mCurrentOutput);
+                    mCurrentOutput = null;
+                }
+            } catch (Exception e) {
+                Log.d(TAG, "Caught exception: " + e);
+                close();
+            }
+        }
+
+        /**
+         * A message queued while a streamed body was, to be queued after it
+         */
+        private final class DeferredMessage {
+            final ByteBuffer mBuf;
+            /**
+             * The message's body, if it's a streamed response
+             */
+            final RPCStreamSource mSource;
+
+            DeferredMessage(ByteBuffer buf, RPCStreamSource source) {
+                mBuf = buf;
+                mSource = source;
+            }
+        }
+
+        /**
+         * Closes the connection. May be called from any thread.
+         */
+        synchronized void close() {
+            if (!mChannel.isOpen()) {
+                return;
+            }
+            Log.d(TAG, "Closing down socket");
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+            }
+            if (mKey != null) {
+                mNumConnections.decrementAndGet();
+            }
+            if (mCompressor != null) {
+                mCompressor.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.io.IOException;
+
+/**
+ * Thrown, or the failure of an RPCFuture, when the server refused a call because it was too busy to run it.  The
+ * call wasn't run, so it's safe to repeat, after retryAfter().
+ */
+public class RPCOverloadException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	private final long retryAfter;
+
+	public RPCOverloadException(String message, long retryAfter) {
+		super(message);
+		this.retryAfter = retryAfter;
+	}
+
+	/**
+	 * Returns how long the server asked the caller to wait before trying again, in msec.
+	 */
+	public long retryAfter() {
+		return retryAfter;
+	}
+}
@@ -0,0 +1,279 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The caller side's cache of responses from methods the server says are cacheable.
+ * <p>
+ * A server marks a method cacheable when it registers it, with a maximum age (see
+ * RPCService.registerHandler()).  Each response from the method carries that age, and the response is cached
+ * for that long, or for maxAge msec, whichever is less.  Entries are keyed by the remote host and port, the
+ * service and method names, and the call's args, in a canonical form: keys sorted, at every level, so args
+ * that are equal as JSON map to the same entry whatever order they were built in.  The cache holds at most
+ * maxEntries entries, and evicts the least recently used.
+ * <p>
+ * Once a method is known to be cacheable, identical calls to it that miss at the same time are coalesced:
+ * the first is sent, and the rest wait for its response (see join()).  Until then calls are sent as usual,
+ * as there's nothing to say the method's results may be shared, and aren't looked up at all.
+ * <p>
+ * Callers get their own copies of cached values, so they can change them freely.
+ */
+class RPCResponseCache {
+	private final int maxEntries;
+	private final long maxAge;
+
+	/**
+	 * The entries, least recently used first.  Guarded by this.
+	 */
+	private final LinkedHashMap<Key, CachedResponse> entries;
+
+	/**
+	 * The calls that other identical calls are waiting on.  Guarded by this.
+	 */
+	private final Map<Key, RPCFuture> inFlight = new HashMap<Key, RPCFuture>();
+
+	/**
+	 * The methods known to be cacheable, by target()
+	 */
+	private final ConcurrentHashMap<String, Boolean> cacheable = new ConcurrentHashMap<String, Boolean>();
+
+	private long hits;
+	private long misses;
+	private long coalesced;
+
+	/**
+	 * @param maxEntries The most responses held
+	 * @param maxAge The longest a response is held, whatever the server allows (msec.)
+	 */
+	RPCResponseCache(final int maxEntries, long maxAge) {
+		this.maxEntries = maxEntries;
+		this.maxAge = maxAge;
+		entries = new LinkedHashMap<Key, CachedResponse>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, CachedResponse> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Returns the name of a remote method, as the cache knows it.
+	 */
+	static String target(String ip, int port, String serviceName, String method) {
+		return ip + ":" + port + " " + serviceName + "." + method;
+	}
+
+	/**
+	 * Returns whether the target's responses have been cacheable.  Calls to other methods needn't be looked up.
+	 */
+	boolean isCacheable(String target) {
+		return cacheable.containsKey(target);
+	}
+
+	/**
+	 * Returns the key of a call.
+	 */
+	Key key(String target, JSONObject args) throws JSONException {
+		return new Key(target, args == null ? "" : canonical(args));
+	}
+
+	/**
+	 * Returns a copy of the cached response to the call, or null if there's none, or it's expired.
+	 */
+	JSONObject get(Key key) throws JSONException {
+		CachedResponse entry;
+		synchronized (this) {
+			entry = entries.get(key);
+			if (entry != null && entry.expires - System.nanoTime() <= 0) {
+				entries.remove(key);
+				entry = null;
+			}
+			if (entry == null) {
+				misses++;
+				return null;
+			}
+			hits++;
+		}
+		return copy(entry.value);
+	}
+
+	/**
+	 * Called after a miss.  If an identical call to a cacheable method is already in progress, returns its future,
+	 * whose value the caller should take a copy of.  Otherwise returns null, and the caller should make the call,
+	 * then pass its outcome to leave(), whatever it is.
+	 */
+	synchronized RPCFuture join(Key key) {
+		if (!cacheable.containsKey(key.method)) return null;
+		RPCFuture leader = inFlight.get(key);
+		if (leader != null) {
+			coalesced++;
+			return leader;
+		}
+		inFlight.put(key, new RPCFuture());
+		return null;
+	}
+
+	/**
+	 * Records the outcome of a call that join() said to make: caches its response, if the server allows it, and
+	 * passes the response to any identical calls waiting for it.
+	 * @param call The completed call, or null if it couldn't be made
+	 * @param failure Why the call couldn't be made, if call is null
+	 */
+	void leave(Key key, RPCFuture call, IOException failure) throws JSONException, IOException {
+		JSONObject value = null;
+		if (call != null) {
+			failure = call.getFailure();
+			if (failure == null) {
+				long age = Math.min(call.maxAge(), maxAge);
+				JSONObject result = call.await();
+				value = result == null ? null : copy(result);
+				// A call that returns nothing isn't worth caching
+				if (age > 0 && value != null) {
+					cacheable.put(key.method, Boolean.TRUE);
+					synchronized (this) {
+						entries.put(key, new CachedResponse(value, System.nanoTime() + age * 1000000L));
+					}
+				} else if (call.maxAge() < 0) {
+					// The server no longer says the method is cacheable
+					cacheable.remove(key.method);
+				}
+			}
+		}
+
+		RPCFuture waiting;
+		synchronized (this) {
+			waiting = inFlight.remove(key);
+		}
+		if (waiting == null) return;
+		if (failure != null) waiting.fail(failure);
+		else waiting.complete(value);
+	}
+
+	synchronized String dumpState() {
+		return "Response cache: " + entries.size() + " of " + maxEntries + " entries, " + hits + " hits, " + misses
+				+ " misses, " + coalesced + " calls coalesced\n";
+	}
+
+	//-------------------------------------------------------------------------------------------
+	// JSON helpers
+	//-------------------------------------------------------------------------------------------
+
+	/**
+	 * Returns value as JSON text, with every object's keys sorted.
+	 */
+	static String canonical(Object value) throws JSONException {
+		StringBuilder builder = new StringBuilder();
+		appendCanonical(builder, value);
+		return builder.toString();
+	}
+
+	private static void appendCanonical(StringBuilder builder, Object value) throws JSONException {
+		if (value instanceof JSONObject) {
+			JSONObject obj = (JSONObject) value;
+			List<String> keys = new ArrayList<String>(obj.length());
+			for (Iterator<?> it = obj.keys(); it.hasNext();) keys.add((String) it.next());
+			Collections.sort(keys);
+			builder.append('{');
+			for (int i = 0; i < keys.size(); i++) {
+				if (i > 0) builder.append(',');
+				builder.append(JSONObject.quote(keys.get(i))).append(':');
+				appendCanonical(builder, obj.get(keys.get(i)));
+			}
+			builder.append('}');
+		} else if (value instanceof JSONArray) {
+			JSONArray array = (JSONArray) value;
+			builder.append('[');
+			for (int i = 0; i < array.length(); i++) {
+				if (i > 0) builder.append(',');
+				appendCanonical(builder, array.get(i));
+			}
+			builder.append(']');
+		} else {
+			builder.append(JSONObject.valueToString(value));
+		}
+	}
+
+	/**
+	 * Returns a deep copy of obj.
+	 */
+	static JSONObject copy(JSONObject obj) throws JSONException {
+		JSONObject copy = new JSONObject();
+		for (Iterator<?> it = obj.keys(); it.hasNext();) {
+			String key = (String) it.next();
+			copy.put(key, copyValue(obj.get(key)));
+		}
+		return copy;
+	}
+
+	private static Object copyValue(Object value) throws JSONException {
+		if (value instanceof JSONObject) return copy((JSONObject) value);
+		if (value instanceof JSONArray) {
+			JSONArray array = (JSONArray) value;
+			JSONArray copy = new JSONArray();
+			for (int i = 0; i < array.length(); i++) copy.put(copyValue(array.get(i)));
+			return copy;
+		}
+		return value;
+	}
+
+	//-------------------------------------------------------------------------------------------
+	// Keys and entries
+	//-------------------------------------------------------------------------------------------
+
+	/**
+	 * Identifies a call: where it goes, and its canonical args.
+	 */
+	static final class Key {
+		/**
+		 * The method's target()
+		 */
+		final String method;
+		final String args;
+		private final int hash;
+
+		Key(String method, String args) {
+			this.method = method;
+			this.args = args;
+			this.hash = method.hashCode() * 31 + args.hashCode();
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Key)) return false;
+			Key cast = (Key) other;
+			return hash == cast.hash && method.equals(cast.method) && args.equals(cast.args);
+		}
+	}
+
+	private static final class CachedResponse {
+		final JSONObject value;
+		/**
+		 * When the entry expires, as a System.nanoTime() value
+		 */
+		final long expires;
+
+		CachedResponse(JSONObject value, long expires) {
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+}
@@ -5,23 +5,46 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
-import java.util.HashMap;
-import java.util.Map;
-
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.net.base.NetLoadable.NetLoadableService;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCBatchMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCControlMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCInvokeMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCBatchResponseMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCErrorResponseMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCNormalResponseMessage;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCStreamResponseMessage;
+import edu.uw.cs.cse461.net.tcpmessagehandler.MessageCompressor;
+import edu.uw.cs.cse461.net.tcpmessagehandler.TCPChannelMessageHandler;
 import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandler;
+import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandlerInterface;
 import edu.uw.cs.cse461.util.IPFinder;
 import edu.uw.cs.cse461.util.Log;
+import edu.uw.cs.cse461.util.Log.DebugLevel;
 
 /**
  * Implements the side of RPC that receives remote invocation requests.
+ * <p>
+ * Two server modes are available, selected by the rpc.server.mode config entry. The default, "thread", dedicates a
+ * thread to reading each client connection (see RPCCallResponder). The "nio" mode multiplexes all connections over a
+ * small number of selector threads (rpc.server.iothreads; see RPCNioServer). In both modes the RPC methods themselves
+ * run on a pool of rpc.server.workers worker threads, so a client may pipeline calls on one connection and receive
+ * the responses out of order. Both modes speak the same wire protocol.
  * 
  * @author zahorjan
  * 
@@ -35,10 +58,57 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
     private ServerSocket mServerSocket;
 
     /**
-     * The collection of handlers registered with the RPC service. The outer map stores service names, the inner method
-     * names.
+     * The handlers registered with the RPC service. Replaced, never modified, so calls look handlers up without
+     * locking. Writers hold mRegistrationLock, so concurrent registrations aren't lost.
+     */
+    private volatile RPCDispatchTable mHandlers = RPCDispatchTable.EMPTY;
+    private final Object mRegistrationLock = new Object();
+
+    /**
+     * The non-blocking server, when running in "nio" mode. Null in "thread" mode.
+     */
+    private RPCNioServer mNioServer;
+
+    /**
+     * The threads that execute RPC methods. Calls arriving on one connection may execute concurrently, and their
+     * responses are sent in whatever order they complete.
+     */
+    private final ExecutorService mWorkers;
+
+    /**
+     * The number of calls dropped because their deadline passed before they could be run
+     */
+    private final AtomicLong mExpiredCalls = new AtomicLong();
+
+    /**
+     * The number of calls refused because the workers' queue was full, and the number of connections refused
+     */
+    private final AtomicLong mQueueFullCalls = new AtomicLong();
+    private final AtomicLong mRefusedConnections = new AtomicLong();
+
+    /**
+     * The number of connections whose messages have been compressed
      */
-    private final Map<String, Map<String, RPCCallableMethod>> handlers;
+    private final AtomicLong mCompressedConnections = new AtomicLong();
+
+    /**
+     * The most connections open at once, and the number open, in thread mode. rpc.server.maxconnections.
+     */
+    private final int mMaxConnections;
+    private final AtomicInteger mNumConnections = new AtomicInteger();
+
+    /**
+     * The settings of each method's RPCConcurrencyLimit. rpc.admission.*.
+     */
+    private final int mLimitInitial;
+    private final int mLimitMin;
+    private final int mLimitMax;
+    private final int mLimitWindow;
+
+    /**
+     * The largest message a streamed response body is sent in. rpc.stream.chunksize.
+     */
+    private final int mStreamChunkSize;
 
     /**
      * Constructor. Creates the Java ServerSocket and binds it to a port. If the config file specifies an
@@ -55,18 +125,47 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
         // Useful when debugging:
         // Log.setLevel(Log.DebugLevel.DEBUG.toInt());
 
-        handlers = new HashMap<String, Map<String, RPCCallableMethod>>();
-
         String serverIP = IPFinder.localIP();
         int tcpPort = NetBase.theNetBase().config().getAsInt("rpc.server.port", 0);
 
-        mServerSocket = new ServerSocket();
-        mServerSocket.bind(new InetSocketAddress(serverIP, tcpPort));
-        mServerSocket.setSoTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.granularity", 500));
+        mStreamChunkSize = NetBase.theNetBase().config().getAsInt("rpc.stream.chunksize", 65536, 1);
+
+        // Calls wait for a worker in a bounded queue. When it's full, they're refused.
+        int workers = NetBase.theNetBase().config().getAsInt("rpc.server.workers", 16, 1);
+        int queueSize = NetBase.theNetBase().config().getAsInt("rpc.server.queue", 1024, 1);
+        mWorkers = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new WorkerThreadFactory());
+
+        mMaxConnections = NetBase.theNetBase().config().getAsInt("rpc.server.maxconnections", 1024, 1);
+        mLimitInitial = NetBase.theNetBase().config().getAsInt("rpc.admission.initial", 8 * workers, 1);
+        mLimitMin = NetBase.theNetBase().config().getAsInt("rpc.admission.min", workers, 1);
+        mLimitMax = NetBase.theNetBase().config().getAsInt("rpc.admission.max", queueSize, 1);
+        mLimitWindow = NetBase.theNetBase().config().getAsInt("rpc.admission.window", 100, 1);
+
+        String mode = NetBase.theNetBase().config().getProperty("rpc.server.mode", "thread");
+        if (mode.equalsIgnoreCase("nio")) {
+            int ioThreads = NetBase.theNetBase().config().getAsInt("rpc.server.iothreads", 2, 1);
+            mNioServer = new RPCNioServer(this, new InetSocketAddress(serverIP, tcpPort), ioThreads, mWorkers,
+                    mMaxConnections);
+            mServerSocket = mNioServer.serverSocket();
+
+            Log.d(TAG, "RPC server channel bound. Starting " + ioThreads + " I/O threads and " + workers
+                    + " worker threads");
+            mNioServer.start();
+        } else {
+            if (!mode.equalsIgnoreCase("thread")) {
+                Log.w(TAG, "Unknown rpc.server.mode '" + mode + "'. Using thread mode.");
+            }
+
+            // A channel-backed ServerSocket, so that accepted connections can use TCPChannelMessageHandler
+            mServerSocket = ServerSocketChannel.open().socket();
+            mServerSocket.bind(new InetSocketAddress(serverIP, tcpPort));
+            mServerSocket.setSoTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.granularity", 500));
 
-        Log.d(TAG, "RPC server socket bound. Starting listener thread");
-        Thread tcpThread = new Thread(this);
-        tcpThread.start();
+            Log.d(TAG, "RPC server socket bound. Starting listener thread");
+            Thread tcpThread = new Thread(this);
+            tcpThread.start();
+        }
     }
 
     /**
@@ -81,8 +180,15 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
                 try {
                     // Start a responder thread, and continue listening
                     sock = mServerSocket.accept();
+                    if (mNumConnections.get() >= mMaxConnections) {
+                        refuseConnection();
+                        sock.close();
+                        continue;
+                    }
                     Log.d(TAG, "RPC server thread accepted connection. Starting response thread");
-                    new Thread(new RPCCallResponder(sock)).start();
+                    RPCCallResponder responder = new RPCCallResponder(sock);
+                    mNumConnections.incrementAndGet();
+                    new Thread(responder).start();
                 } catch (SocketTimeoutException e) {
                     // this is normal. Just loop back and see if we're
                     // terminating.
@@ -114,14 +220,47 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
      * @throws Exception
      */
     @Override
-    public synchronized void registerHandler(String serviceName, String methodName, RPCCallableMethod method)
+    public void registerHandler(String serviceName, String methodName, RPCCallableMethod method)
             throws Exception {
-        if (!handlers.containsKey(serviceName)) {
-            handlers.put(serviceName, new HashMap<String, RPCCallableMethod>());
+        registerHandler(serviceName, methodName, method, 0);
+    }
+
+    /**
+     * Registers a method whose result depends only on its args, for a while at least. Its responses tell callers
+     * they may cache them for maxAge msec. Callers with a response cache (rpc.cache.entries) then answer identical
+     * calls from it, without calling this service, until then.
+     * 
+     * @param maxAge
+     *            How long callers may cache the method's responses, in msec. 0 if they may not.
+     * @see #registerHandler(String, String, RPCCallableMethod)
+     */
+    public void registerHandler(String serviceName, String methodName, RPCCallableMethod method, long maxAge)
+            throws Exception {
+        RPCConcurrencyLimit limit = new RPCConcurrencyLimit(mLimitInitial, mLimitMin, mLimitMax, mLimitWindow);
+        synchronized (mRegistrationLock) {
+            mHandlers = mHandlers.with(serviceName, methodName, method, limit, Math.max(0, maxAge));
         }
+        Log.d(TAG, "Registered handler " + method + " as " + serviceName + "." + methodName + "()"
+                + (maxAge > 0 ? ", cacheable for " + maxAge + " msec" : ""));
+    }
+
+    /**
+     * Registers a handler that's called directly, rather than through reflection.
+     *
+     * @see #registerHandler(String, String, RPCCallableMethod)
+     */
+    public void registerHandler(String serviceName, String methodName, RPCHandler handler) throws Exception {
+        registerHandler(serviceName, methodName, new RPCCallableMethod(handler));
+    }
 
-        handlers.get(serviceName).put(methodName, method);
-        Log.d(TAG, "Registered handler " + method + " as " + serviceName + "." + methodName + "()");
+    /**
+     * Registers a handler that's called directly, whose responses callers may cache for maxAge msec.
+     *
+     * @see #registerHandler(String, String, RPCCallableMethod, long)
+     */
+    public void registerHandler(String serviceName, String methodName, RPCHandler handler, long maxAge)
+            throws Exception {
+        registerHandler(serviceName, methodName, new RPCCallableMethod(handler), maxAge);
     }
 
     /**
@@ -136,11 +275,25 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
      */
     @Override
     public RPCCallableMethod getRegistrationFor(String serviceName, String methodName) {
-        if (!handlers.containsKey(serviceName)) {
-            return null;
-        }
+        return mHandlers.get(serviceName, methodName);
+    }
 
-        return handlers.get(serviceName).get(methodName);
+    /**
+     * Removes the registration for a service's method, if there is one. Calls already dispatched to it run to
+     * completion; later ones get a "No such method" error response.
+     * 
+     * @return true if there was a registration to remove
+     */
+    public boolean unregisterHandler(String serviceName, String methodName) {
+        synchronized (mRegistrationLock) {
+            RPCDispatchTable table = mHandlers.without(serviceName, methodName);
+            if (table == mHandlers) {
+                return false;
+            }
+            mHandlers = table;
+        }
+        Log.d(TAG, "Unregistered handler for " + serviceName + "." + methodName + "()");
+        return true;
     }
 
     /**
@@ -153,6 +306,368 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
         return mServerSocket.getLocalPort();
     }
 
+    /**
+     * Validates the connect control message that opens every client connection, and builds the OK response to it.
+     * Persistence is granted whenever the client asks for it, and is indicated by a "connection" field in the
+     * response's value. Likewise the binary encoding (see RPCBinaryCodec), indicated by an "encoding" field.
+     * 
+     * @param rawMessage
+     *            The first message read from the connection
+     * @return The response to send back to the client
+     * @throws IOException
+     *             if the message is not a connect message. The connection should be closed.
+     */
+    RPCNormalResponseMessage handleConnect(RPCMessage rawMessage) throws IOException, JSONException {
+        if (!"control".equals(rawMessage.type())) {
+            throw new IOException("Unexpected message of type " + rawMessage.type());
+        }
+
+        RPCControlMessage connectionMessage = (RPCControlMessage) rawMessage;
+
+        if (!"connect".equals(connectionMessage.action())) {
+            throw new IOException("Expected connect message, received " + connectionMessage.action() + " instead");
+        }
+
+        // Determine whether persistence should be enabled
+        JSONObject data = new JSONObject();
+        if ("keep-alive".equals(connectionMessage.getOption("connection"))) {
+            Log.d(TAG, "Client requests a persistent connection");
+            data.put("connection", "keep-alive");
+        } else {
+            Log.d(TAG, "Client doest not request a persistent connection");
+        }
+        if (RPCBinaryCodec.BINARY.equals(connectionMessage.getOption("encoding"))) {
+            Log.d(TAG, "Client requests binary encoding");
+            data.put("encoding", RPCBinaryCodec.BINARY);
+        }
+        if ("yes".equals(connectionMessage.getOption("deadline"))) {
+            data.put("deadline", "yes");
+        }
+        if ("yes".equals(connectionMessage.getOption("retryafter"))) {
+            data.put("retryafter", "yes");
+        }
+        if ("yes".equals(connectionMessage.getOption("maxage"))) {
+            data.put("maxage", "yes");
+        }
+        if ("yes".equals(connectionMessage.getOption("batch"))) {
+            data.put("batch", "yes");
+        }
+        if ("yes".equals(connectionMessage.getOption("compress"))) {
+            Log.d(TAG, "Client requests compressed messages");
+            data.put("compress", "yes");
+        }
+
+        Log.d(TAG, "Connect message is valid. Responding with OK.");
+        return new RPCNormalResponseMessage(connectionMessage.id(), data);
+    }
+
+    /**
+     * Performs the call described by an invoke message, and builds the response to it. Exceptions thrown by the
+     * called method are returned to the caller as an ERROR response.
+     * <p>
+     * A call whose deadline has passed by the time it's dispatched isn't performed at all, and gets no response:
+     * its caller has already given up on it. While the method runs, the call's deadline is RPCDeadline.current().
+     * <p>
+     * The response to a method registered as cacheable carries the time callers may cache it for.
+     * 
+     * @param rawMessage
+     *            A message read from an established connection
+     * @return The response to send back to the client, or null if none should be sent
+     * @throws IOException
+     *             if the message is not an invoke message. The connection should be closed.
+     */
+    RPCMessage handleInvoke(RPCMessage rawMessage) throws IOException, JSONException {
+        if (!"invoke".equals(rawMessage.type())) {
+            throw new IOException("Unexpected message of type " + rawMessage.type());
+        }
+
+        RPCInvokeMessage invokeMessage = (RPCInvokeMessage) rawMessage;
+        String service = invokeMessage.app();
+        String method = invokeMessage.method();
+        JSONObject args = invokeMessage.args();
+
+        // The args can be large, and printing them is costly, so they're printed only if they'll be shown
+        if (Log.isLoggable(TAG, DebugLevel.DEBUG)) {
+            Log.d(TAG, "Received valid call to " + service + "." + method + "() with args " + args);
+        }
+
+        RPCDeadline deadline = invokeMessage.deadline();
+        if (deadline != null && deadline.expired()) {
+            mExpiredCalls.incrementAndGet();
+            Log.d(TAG, "Dropped call to " + service + "." + method + "(): its deadline passed before it could be run");
+            return null;
+        }
+
+        RPCDispatchTable.Entry entry = mHandlers.entry(service, method);
+        if (entry == null) {
+            return new RPCErrorResponseMessage(invokeMessage.id(), "No such method: " + service + "." + method + "()",
+                    invokeMessage);
+        }
+
+        Object result = null;
+        RPCDeadline previous = RPCDeadline.enter(deadline);
+        try {
+            result = entry.callable.invoke(args);
+        } catch (Exception e) {
+            Log.d(TAG, "Error processing RPC: " + e.getMessage());
+            return new RPCErrorResponseMessage(invokeMessage.id(), e.getMessage(), invokeMessage);
+        } finally {
+            RPCDeadline.exit(previous);
+        }
+
+        if (Log.isLoggable(TAG, DebugLevel.DEBUG)) {
+            Log.d(TAG, "RPC return value is " + result);
+        }
+        if (result instanceof RPCStreamingResponse) {
+            return new RPCStreamResponseMessage(invokeMessage.id(), (RPCStreamingResponse) result);
+        }
+        if (entry.maxAge > 0) {
+            return new RPCNormalResponseMessage(invokeMessage.id(), (JSONObject) result, entry.maxAge);
+        }
+        return new RPCNormalResponseMessage(invokeMessage.id(), (JSONObject) result);
+    }
+
+    /**
+     * Where the response to a batch goes: the connection it arrived on.
+     */
+    interface BatchResponder {
+        /**
+         * Sends the response, unless it's null, in which case none should be sent. Called once, by whichever thread
+         * completes the batch's last call. If no call was handed to a worker (every one was refused, say), that's the
+         * thread that called executeBatch(), which for RPCNioServer is an I/O thread, so respond() mustn't wait for
+         * the connection's other output.
+         */
+        void respond(RPCMessage response);
+    }
+
+    /**
+     * Runs the calls of a batch concurrently, on the worker threads, and passes the batch's response to responder once
+     * they're all done. Each call is admitted, or refused, as if it had arrived on its own, so a batch can't get round
+     * admission control. Returns as soon as the calls are handed to the workers.
+     * <p>
+     * If the batch's deadline has passed by the time its last call is done, no response is sent.
+     */
+    void executeBatch(final RPCBatchMessage batch, final BatchResponder responder) throws JSONException {
+        final int size = batch.size();
+        final RPCMessage[] responses = new RPCMessage[size];
+        // Each call's response is written before the count is decremented, so they're all visible to the last
+        final AtomicInteger remaining = new AtomicInteger(size);
+        if (size == 0) {
+            completeBatch(batch, responses, responder);
+            return;
+        }
+        for (int i = 0; i < size; i++) {
+            final int index = i;
+            final RPCInvokeMessage call = batch.call(i);
+            final Admission admission = admit(call);
+            if (admission == null) {
+                responses[index] = refusal(call);
+                if (remaining.decrementAndGet() == 0) {
+                    completeBatch(batch, responses, responder);
+                }
+                continue;
+            }
+            try {
+                mWorkers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            responses[index] = batchResponse(call, handleInvoke(call));
+                        } catch (Exception e) {
+                            responses[index] = batchResponse(call, null);
+                        } finally {
+                            release(admission);
+                        }
+                        if (remaining.decrementAndGet() == 0) {
+                            completeBatch(batch, responses, responder);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                cancel(admission);
+                responses[index] = refusal(call);
+                if (remaining.decrementAndGet() == 0) {
+                    completeBatch(batch, responses, responder);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a call's response as it can go in a batch response: a normal response or an error.
+     * 
+     * @param response
+     *            The response handleInvoke() returned, or null if there is none
+     */
+    private RPCMessage batchResponse(RPCInvokeMessage call, RPCMessage response) {
+        if (response instanceof RPCNormalResponseMessage && !(response instanceof RPCStreamResponseMessage)) {
+            return response;
+        }
+        if (response instanceof RPCErrorResponseMessage) {
+            return response;
+        }
+        try {
+            // handleInvoke() returns no response for a call whose deadline has passed
+            String reason = response == null ? "Deadline passed before the call could be run"
+                    : "A streamed response can't be part of a batch";
+            return new RPCErrorResponseMessage(call.id(), reason, call);
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    private void completeBatch(RPCBatchMessage batch, RPCMessage[] responses, BatchResponder responder) {
+        RPCDeadline deadline = batch.deadline();
+        if (deadline != null && deadline.expired()) {
+            mExpiredCalls.incrementAndGet();
+            Log.d(TAG, "Dropped the response to a batch of " + responses.length + " calls: its deadline passed");
+            responder.respond(null);
+            return;
+        }
+        RPCMessage response = null;
+        try {
+            response = new RPCBatchResponseMessage(batch.id(), responses);
+        } catch (JSONException e) {
+            Log.w(TAG, "Can't build the response to a batch: " + e.getMessage());
+        }
+        responder.respond(response);
+    }
+
+    /**
+     * A call admitted by admit(), to be passed to release() when it completes, or to cancel() if it's refused after
+     * all.
+     */
+    static final class Admission {
+        private static final Admission UNLIMITED = new Admission(null);
+
+        private final RPCConcurrencyLimit mLimit;
+        private final long mStartNanos = System.nanoTime();
+
+        private Admission(RPCConcurrencyLimit limit) {
+            mLimit = limit;
+        }
+    }
+
+    /**
+     * Admits a call to run, if its method's RPCConcurrencyLimit has room for it. Called as the call arrives, before it
+     * waits for a worker, so that a refused call costs next to nothing. Anything but a call to a registered method is
+     * admitted, to be dealt with by handleInvoke().
+     * 
+     * @return The admission, or null if the call is refused, in which case refusal() is the response to send
+     */
+    Admission admit(RPCMessage rawMessage) throws JSONException {
+        if (!(rawMessage instanceof RPCInvokeMessage)) {
+            return Admission.UNLIMITED;
+        }
+        RPCInvokeMessage invokeMessage = (RPCInvokeMessage) rawMessage;
+        RPCDispatchTable.Entry entry = mHandlers.entry(invokeMessage.app(), invokeMessage.method());
+        if (entry == null || entry.limit == null) {
+            return Admission.UNLIMITED;
+        }
+        return entry.limit.tryAcquire() ? new Admission(entry.limit) : null;
+    }
+
+    /**
+     * Records the completion of an admitted call, whose latency adjusts its method's limit.
+     */
+    void release(Admission admission) {
+        if (admission.mLimit != null) {
+            admission.mLimit.release(admission.mStartNanos);
+        }
+    }
+
+    /**
+     * Records that an admitted call couldn't be run after all, because the workers' queue was full.
+     */
+    void cancel(Admission admission) {
+        mQueueFullCalls.incrementAndGet();
+        if (admission.mLimit != null) {
+            admission.mLimit.cancel();
+        }
+    }
+
+    /**
+     * Builds the response refusing a call the server is too busy to run. It tells the caller how long to wait before
+     * trying again.
+     */
+    RPCMessage refusal(RPCMessage rawMessage) throws JSONException {
+        String name = "this method";
+        long retryAfter = 1;
+        if (rawMessage instanceof RPCInvokeMessage) {
+            RPCInvokeMessage invokeMessage = (RPCInvokeMessage) rawMessage;
+            name = invokeMessage.app() + "." + invokeMessage.method() + "()";
+            RPCDispatchTable.Entry entry = mHandlers.entry(invokeMessage.app(), invokeMessage.method());
+            if (entry != null && entry.limit != null) {
+                retryAfter = entry.limit.retryAfter();
+            }
+        }
+        return new RPCErrorResponseMessage(rawMessage.id(), "Server overloaded: too many calls to " + name
+                + " in progress. Retry after " + retryAfter + " msec", retryAfter);
+    }
+
+    /**
+     * Returns the compressor for a connection whose client has agreed to compression. Compression is turned on once
+     * the OK response to the connect message has been sent.
+     */
+    MessageCompressor newCompressor() {
+        mCompressedConnections.incrementAndGet();
+        return new MessageCompressor();
+    }
+
+    /**
+     * Counts a connection refused because the server has rpc.server.maxconnections open.
+     */
+    void refuseConnection() {
+        mRefusedConnections.incrementAndGet();
+        Log.w(TAG, "Refused a connection: " + mMaxConnections + " connections are open");
+    }
+
+    /**
+     * Sends a response on a connection. If it's a streamed response, its body follows it, in chunks of at most
+     * rpc.stream.chunksize bytes. The caller must hold the lock that orders writes to the connection.
+     * <p>
+     * If the body can't be sent in full, the connection is out of step with the client, and should be closed.
+     */
+    void sendResponse(TCPMessageHandlerInterface messageHandler, RPCBinaryCodec codec, RPCMessage response)
+            throws IOException, JSONException {
+        messageHandler.sendMessage(codec.encode(response));
+        if (!(response instanceof RPCStreamResponseMessage)) {
+            return;
+        }
+
+        RPCStreamSource source = ((RPCStreamResponseMessage) response).source();
+        long remaining = source.length();
+        byte[] chunk = new byte[(int) Math.min(mStreamChunkSize, remaining)];
+        while (remaining > 0) {
+            int n = source.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+            if (n <= 0) {
+                throw new IOException("RPC stream source ended " + remaining + " bytes early");
+            }
+            if (messageHandler instanceof TCPChannelMessageHandler) {
+                ((TCPChannelMessageHandler) messageHandler).sendMessage(ByteBuffer.wrap(chunk, 0, n));
+            } else {
+                messageHandler.sendMessage(n == chunk.length ? chunk : Arrays.copyOf(chunk, n));
+            }
+            remaining -= n;
+        }
+    }
+
+    /**
+     * The largest chunk a streamed response body is sent in
+     */
+    int streamChunkSize() {
+        return mStreamChunkSize;
+    }
+
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        if (mNioServer != null) {
+            mNioServer.wakeup();
+        }
+        mWorkers.shutdown();
+    }
+
     @Override
     public String dumpState() {
         StringBuilder sb = new StringBuilder();
@@ -161,17 +676,47 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
             sb.append(mServerSocket.getInetAddress() + ":" + mServerSocket.getLocalPort());
         }
         sb.append("\n");
+        if (mNioServer != null) {
+            sb.append(mNioServer.dumpState());
+        }
+        sb.append("Calls dropped after their deadline: " + mExpiredCalls.get() + "\n");
+        sb.append("Calls refused with the worker queue full: " + mQueueFullCalls.get() + "\n");
+        sb.append("Connections refused: " + mRefusedConnections.get() + "\n");
+        if (mCompressedConnections.get() > 0) {
+            sb.append("Connections compressing messages: " + mCompressedConnections.get() + ". In all, "
+                    + MessageCompressor.totals() + "\n");
+        }
         sb.append("Registered apps/methods:\n");
-        synchronized (this) {
-        	for (String app : handlers.keySet()) {
-        		for (String method : handlers.get(app).keySet()) {
-        			sb.append("    " + app + "." + method + "()\n");
-        		}
-        	}
+        for (RPCDispatchTable.Entry entry : mHandlers.entries()) {
+            sb.append("    " + entry.service + "." + entry.method + "()");
+            if (entry.limit != null) {
+                sb.append(": " + entry.limit);
+            }
+            if (entry.maxAge > 0) {
+                sb.append(", cacheable for " + entry.maxAge + " msec");
+            }
+            if (entry.callable instanceof RPCMemoizedMethod) {
+                sb.append(", " + ((RPCMemoizedMethod) entry.callable).stats());
+            }
+            sb.append("\n");
         }
         return sb.toString();
     }
 
+    /**
+     * Creates the daemon threads that execute RPC methods.
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger mNextId = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "RPCWorker-" + mNextId.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
     /**
      * A runnable handler that responds to RPC call requests. Persists until rpc.persistence.timeout milliseconds have
      * passed since the most recent client interaction.
@@ -182,13 +727,23 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
         /**
          * The message handler for communicating with a client
          */
-        private final TCPMessageHandler messageHandler;
+        private final TCPMessageHandlerInterface messageHandler;
+
+        /**
+         * Encodes responses, under the messageHandler lock, and decodes calls
+         */
+        private RPCBinaryCodec codec;
 
         /**
          * The last time we communicated with the client
          */
         private long lastUsed;
 
+        /**
+         * The number of calls handed to the workers that haven't been responded to yet
+         */
+        private final AtomicInteger inFlight = new AtomicInteger();
+
         /**
          * How long to wait before closing a persistent connection
          */
@@ -202,7 +757,11 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
         public RPCCallResponder(Socket socket) throws IOException {
             persistenceTimeout = NetBase.theNetBase().config().getAsInt("rpc.persistence.timeout", 25000);
             networkTimeout = NetBase.theNetBase().config().getAsInt("net.timeout.socket", 10000);
-            messageHandler = new TCPMessageHandler(socket);
+            if (socket.getChannel() != null) {
+                messageHandler = new TCPChannelMessageHandler(socket.getChannel());
+            } else {
+                messageHandler = new TCPMessageHandler(socket);
+            }
             messageHandler.setTimeout((int) networkTimeout);
         }
 
@@ -214,6 +773,9 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
          * @return true if the persistence timeout has not passed, false otherwise
          */
         private boolean persist(boolean keepAlive) {
+        	if (inFlight.get() > 0) {
+        		return true;
+        	}
         	if (keepAlive) {
         		return lastUsed + persistenceTimeout > System.currentTimeMillis();	
         	}
@@ -229,39 +791,22 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
 
                 // Remember the last time we heard from the client
                 lastUsed = System.currentTimeMillis();
-                
-                // Validate the connection message
-                if (!"control".equals(rawMessage.type())) {
-                    throw new IOException("Unexpected message of type " + rawMessage.type());
-                }
-
-                RPCControlMessage connectionMessage = (RPCControlMessage) rawMessage;
 
-                if (!"connect".equals(connectionMessage.action())) {
-                    throw new IOException("Expected connect message, received " + connectionMessage.action()
-                            + " instead");
-                }
-
-                // Determine whether persistence should be enabled
-                boolean keepAlive = "keep-alive".equals(connectionMessage.getOption("connection"));
-                if (keepAlive) {
-                    Log.d(TAG, "Client requests a persistent connection");
-                } else {
-                    Log.d(TAG, "Client doest not request a persistent connection");
-                }
-
-                // Respond with OK
-                Log.d(TAG, "Connect message is valid. Responding with OK.");
-
-                JSONObject data = new JSONObject();
-                if (keepAlive) {
-                    data.put("connection", "keep-alive");
+                // Validate the connection message and respond with OK
+                RPCNormalResponseMessage connectionResponse = handleConnect(rawMessage);
+                boolean keepAlive = connectionResponse.value().has("connection");
+                messageHandler.sendMessage(connectionResponse.marshall());
+                if (connectionResponse.value().has("compress")) {
+                    MessageCompressor compressor = newCompressor();
+                    if (messageHandler instanceof TCPChannelMessageHandler) {
+                        ((TCPChannelMessageHandler) messageHandler).setCompressor(compressor);
+                    } else {
+                        ((TCPMessageHandler) messageHandler).setCompressor(compressor);
+                    }
                 }
+                codec = new RPCBinaryCodec(connectionResponse.value().has("encoding"),
+                        connectionResponse.value().has("retryafter"), connectionResponse.value().has("maxage"));
 
-                RPCNormalResponseMessage connectionResponse = new RPCNormalResponseMessage(connectionMessage.id(), data);
-
-                messageHandler.sendMessage(connectionResponse.marshall());
-                
                 // Update the socket timeout to check for shutdown signals
                 messageHandler.setTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.granularity", 500));
 
@@ -271,43 +816,13 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
                     try {
                         // Read the invocation message
                         // Log.d(TAG, "Awaiting invocation message from client");
-                        rawMessage = RPCMessage.unmarshall(messageHandler.readMessageAsString());
+                        rawMessage = codec.decode(messageHandler.readMessageAsBytes());
 
                         // Note that we heard from the client
                         lastUsed = System.currentTimeMillis();
 
-                        // Validate the invocation message
-                        if (!"invoke".equals(rawMessage.type())) {
-                            throw new IOException("Unexpected message of type " + rawMessage.type());
-                        }
-
-                        RPCInvokeMessage invokeMessage = (RPCInvokeMessage) rawMessage;
-                        String service = invokeMessage.app();
-                        String method = invokeMessage.method();
-                        JSONObject args = invokeMessage.args();
-
-                        Log.d(TAG, "Received valid call to " + service + "." + method + "() with args " + args);
-
-                        // Perform the RPC
-                        RPCCallableMethod callable = getRegistrationFor(service, method);
-                        JSONObject result = null;
-                        try {
-                            result = callable.handleCall(args);
-                        } catch (Exception e) {
-                            Log.d(TAG, "Error processing RPC: " + e.getMessage());
-                            RPCErrorResponseMessage errMessage = new RPCErrorResponseMessage(invokeMessage.id(),
-                                    e.getMessage(), invokeMessage);
-                            messageHandler.sendMessage(errMessage.marshall());
-                            continue;
-                        }
-
-                        Log.d(TAG, "RPC return value is " + result);
-
-                        // Return the result
-                        Log.d(TAG, "Sending response to client");
-                        RPCNormalResponseMessage responseMessage = new RPCNormalResponseMessage(invokeMessage.id(),
-                                result);
-                        messageHandler.sendMessage(responseMessage.marshall());
+                        // Perform the RPC on a worker thread, and go back to reading
+                        execute(rawMessage);
                     } catch (SocketTimeoutException e) {
                         // This is expected. Proceed through loop again to see
                         // if we should shut down.
@@ -326,9 +841,82 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
             } finally {
                 Log.d(TAG, "Closing down socket");
                 messageHandler.close();
+                mNumConnections.decrementAndGet();
             }
 
         }
+
+        /**
+         * Hands a call to the worker threads, which send the response when the call completes. A call that isn't
+         * admitted, or that finds the workers' queue full, is refused straight away.
+         */
+        private void execute(final RPCMessage rawMessage) throws IOException, JSONException {
+            if (rawMessage instanceof RPCBatchMessage) {
+                inFlight.incrementAndGet();
+                executeBatch((RPCBatchMessage) rawMessage, new BatchResponder() {
+                    @Override
+                    public void respond(RPCMessage response) {
+                        try {
+                            if (response == null) {
+                                return;
+                            }
+                            synchronized (messageHandler) {
+                                sendResponse(messageHandler, codec, response);
+                            }
+                        } catch (Exception e) {
+                            Log.d(TAG, "Caught exception: " + e);
+                            messageHandler.close();
+                        } finally {
+                            inFlight.decrementAndGet();
+                        }
+                    }
+                });
+                return;
+            }
+            final Admission admission = admit(rawMessage);
+            if (admission == null) {
+                refuse(rawMessage);
+                return;
+            }
+            inFlight.incrementAndGet();
+            try {
+                mWorkers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            RPCMessage responseMessage;
+                            try {
+                                responseMessage = handleInvoke(rawMessage);
+                            } finally {
+                                release(admission);
+                            }
+                            if (responseMessage == null) {
+                                return;
+                            }
+                            Log.d(TAG, "Sending response to client");
+                            synchronized (messageHandler) {
+                                sendResponse(messageHandler, codec, responseMessage);
+                            }
+                        } catch (Exception e) {
+                            Log.d(TAG, "Caught exception: " + e);
+                            messageHandler.close();
+                        } finally {
+                            inFlight.decrementAndGet();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                inFlight.decrementAndGet();
+                cancel(admission);
+                refuse(rawMessage);
+            }
+        }
+
+        private void refuse(RPCMessage rawMessage) throws IOException, JSONException {
+            synchronized (messageHandler) {
+                sendResponse(messageHandler, codec, refusal(rawMessage));
+            }
+        }
     }
 
 }
@@ -0,0 +1,23 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.io.IOException;
+
+/**
+ * The body of a streamed RPC response.  The RPC service pulls the bytes from the source one chunk at a time,
+ * as the connection can take them, so the body never has to be held in memory all at once.
+ */
+public interface RPCStreamSource {
+	/**
+	 * The total number of bytes in the stream.  Sent to the caller before the first byte.
+	 */
+	public long length();
+
+	/**
+	 * Copies the next bytes of the stream into buf.
+	 * @param buf Destination
+	 * @param off Offset in buf at which to start
+	 * @param len Maximum number of bytes to copy.  Never more than are left in the stream.
+	 * @return The number of bytes copied, which must be at least 1.
+	 */
+	public int read(byte[] buf, int off, int len) throws IOException;
+}
@@ -0,0 +1,30 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import org.json.JSONObject;
+
+/**
+ * An RPC callable method can return one of these, rather than a JSONObject, to send a response whose bulk
+ * is raw bytes.  The caller receives value as usual, and the bytes of body are delivered, as they arrive,
+ * to the OutputStream it passed to RPCCall.invokeStream().
+ * <p>
+ * On the wire, the OK response carries a "streamlength" field, and is followed on the same connection by
+ * the body, as a sequence of raw TCPMessageHandler messages of at most rpc.stream.chunksize bytes.  No other
+ * response is sent on the connection until the body has been.
+ */
+public class RPCStreamingResponse {
+	private final JSONObject value;
+	private final RPCStreamSource body;
+
+	public RPCStreamingResponse(JSONObject value, RPCStreamSource body) {
+		this.value = value;
+		this.body = body;
+	}
+
+	public JSONObject value() {
+		return value;
+	}
+
+	public RPCStreamSource body() {
+		return body;
+	}
+}
@@ -0,0 +1,131 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * A hashed timer wheel, used to enforce the deadlines of outstanding RPC calls.
+ * <p>
+ * Scheduling and cancelling a timeout are O(1), and a single thread serves every timeout, so the cost of
+ * keeping thousands of calls in flight doesn't grow with the number of calls. The price is precision: a timeout
+ * fires on the first tick at or after its deadline, so up to one tick late.
+ * <p>
+ * Tasks run on the wheel's thread, and so must be short and must not block.
+ */
+class RPCTimerWheel implements Runnable {
+	private static final String TAG = "RPCTimerWheel";
+
+	/**
+	 * A scheduled task. Cancelled timeouts are dropped when the wheel next visits their slot.
+	 */
+	static class Timeout {
+		private final long deadline;       // in wheel ticks
+		private final Runnable task;
+		private volatile boolean cancelled;
+
+		private Timeout(long deadline, Runnable task) {
+			this.deadline = deadline;
+			this.task = task;
+		}
+
+		void cancel() {
+			cancelled = true;
+		}
+	}
+
+	private final long tickNanos;
+	private final long startNanos;
+	private final int mask;
+	private final LinkedList<Timeout>[] slots;
+
+	/**
+	 * Timeouts scheduled by other threads, waiting for the wheel thread to place them in a slot.
+	 */
+	private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<Timeout>();
+
+	private volatile boolean stopped;
+
+	/**
+	 * Creates the wheel and starts its thread.
+	 * @param tickMsec The wheel's resolution, in msec.
+	 * @param nSlots The number of slots. Rounded up to a power of two.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	RPCTimerWheel(int tickMsec, int nSlots) {
+		int size = 1;
+		while (size < nSlots) size <<= 1;
+		mask = size - 1;
+		slots = new LinkedList[size];
+		for (int i = 0; i < size; i++) slots[i] = new LinkedList<Timeout>();
+
+		tickNanos = tickMsec * 1000000L;
+		startNanos = System.nanoTime();
+
+		Thread t = new Thread(this, TAG);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Arranges for task to be run after delay msec. May be called from any thread.
+	 * @return A handle that can be used to cancel the task.
+	 */
+	Timeout schedule(long delayMsec, Runnable task) {
+		long deadlineNanos = System.nanoTime() + delayMsec * 1000000L - startNanos;
+		Timeout timeout = new Timeout((deadlineNanos + tickNanos - 1) / tickNanos, task);
+		newTimeouts.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Stops the wheel thread. Pending tasks are never run.
+	 */
+	void stop() {
+		stopped = true;
+	}
+
+	@Override
+	public void run() {
+		long tick = 0;
+		while (!stopped) {
+			// Sleep until the start of the next tick
+			long sleepNanos = startNanos + (tick + 1) * tickNanos - System.nanoTime();
+			if (sleepNanos > 0) {
+				try {
+					Thread.sleep(sleepNanos / 1000000L, (int) (sleepNanos % 1000000L));
+				} catch (InterruptedException e) {
+					// just check again
+				}
+				continue;
+			}
+			tick++;
+
+			Timeout timeout;
+			while ((timeout = newTimeouts.poll()) != null) {
+				if (timeout.cancelled) continue;
+				// Anything already due goes in the current slot
+				slots[(int) (Math.max(timeout.deadline, tick) & mask)].add(timeout);
+			}
+
+			Iterator<Timeout> it = slots[(int) (tick & mask)].iterator();
+			while (it.hasNext()) {
+				timeout = it.next();
+				if (timeout.cancelled) {
+					it.remove();
+				} else if (timeout.deadline <= tick) {
+					it.remove();
+					try {
+						timeout.task.run();
+					} catch (RuntimeException e) {
+						Log.w(TAG, "Timeout task threw " + e);
+					}
+				}
+				// otherwise, it's due on a later turn of the wheel
+			}
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package edu.uw.cs.cse461.net.tcpmessagehandler;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A process-wide pool of direct ByteBuffers. Direct buffers are expensive to allocate and are freed only by the
+ * garbage collector, so code that needs one per message should borrow it from here and give it back when done.
+ * <p>
+ * Buffers are kept in power-of-two size classes, from 4KB up to 16MB. A bounded number of free buffers is kept in
+ * each class; buffers released beyond that, or larger than the largest class, are simply dropped.
+ */
+public class DirectBufferPool {
+    private static final int MIN_CLASS_SHIFT = 12; // 4KB
+    private static final int MAX_CLASS_SHIFT = 24; // 16MB
+    private static final int MAX_FREE_PER_CLASS = 16;
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static final Queue<ByteBuffer>[] mFree = new Queue[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+    private static final AtomicInteger[] mFreeCount = new AtomicInteger[mFree.length];
+    static {
+        for (int i = 0; i < mFree.length; i++) {
+            mFree[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            mFreeCount[i] = new AtomicInteger();
+        }
+    }
+
+    private DirectBufferPool() {
+    }
+
+    /**
+     * Returns the index of the smallest size class holding at least capacity bytes, or -1 if it's too big for any.
+     */
+    private static int sizeClass(int capacity) {
+        int shift = MIN_CLASS_SHIFT;
+        while ((1 << shift) < capacity) {
+            if (++shift > MAX_CLASS_SHIFT) {
+                return -1;
+            }
+        }
+        return shift - MIN_CLASS_SHIFT;
+    }
+
+    /**
+     * Returns a cleared, big-endian, direct buffer with at least the given capacity. Its limit is set to capacity.
+     */
+    public static ByteBuffer acquire(int capacity) {
+        int c = sizeClass(capacity);
+        if (c < 0) {
+            return ByteBuffer.allocateDirect(capacity);
+        }
+        ByteBuffer buf = mFree[c].poll();
+        if (buf == null) {
+            buf = ByteBuffer.allocateDirect(1 << (c + MIN_CLASS_SHIFT));
+        } else {
+            mFreeCount[c].decrementAndGet();
+            buf.clear();
+            buf.order(ByteOrder.BIG_ENDIAN);
+        }
+        buf.limit(capacity);
+        return buf;
+    }
+
+    /**
+     * Gives a buffer back to the pool. The caller must not use it afterwards.
+     */
+    public static void release(ByteBuffer buf) {
+        if (buf == null || !buf.isDirect()) {
+            return;
+        }
+        int c = sizeClass(buf.capacity());
+        if (c < 0 || buf.capacity() != 1 << (c + MIN_CLASS_SHIFT)) {
+            return;
+        }
+        if (mFreeCount[c].incrementAndGet() > MAX_FREE_PER_CLASS) {
+            mFreeCount[c].decrementAndGet();
+            return;
+        }
+        mFree[c].add(buf);
+    }
+}
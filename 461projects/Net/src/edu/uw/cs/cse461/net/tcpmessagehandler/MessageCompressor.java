@@ -0,0 +1,263 @@
+package edu.uw.cs.cse461.net.tcpmessagehandler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import edu.uw.cs.cse461.net.base.NetBase;
+
+/**
+ * Compresses and decompresses the messages of one connection, for a message handler whose peer has agreed to it.
+ * <p>
+ * A compressed message is sent with the COMPRESSED bit set in its length field; the rest of the field is the length of
+ * what follows, which is the uncompressed length (4 bytes, little endian) and then the data, deflated. Messages
+ * shorter than tcpmessagehandler.compress.threshold bytes, or that deflating doesn't shrink, are sent as usual. Both
+ * ends must agree to compression before either sends a compressed message, as a peer that hasn't would take the flag
+ * for part of the length. For the same reason, a message of 1GB or more can't be sent while compression is on.
+ * <p>
+ * The Deflater and Inflater are kept for the life of the connection, and reset between messages. They hold native
+ * memory, so end() must be called once the connection is closed. Sends and reads may go on at the same time, in
+ * different threads.
+ * <p>
+ * The compression ratio, and the time spent compressing and decompressing, are counted for the connection, and in
+ * total for the process.
+ */
+public class MessageCompressor {
+    /**
+     * The bit of the length field that marks a message compressed
+     */
+    public static final int COMPRESSED = 0x40000000;
+
+    private static final AtomicLong mTotalSent = new AtomicLong();
+    private static final AtomicLong mTotalCompressed = new AtomicLong();
+    private static final AtomicLong mTotalBytesIn = new AtomicLong();
+    private static final AtomicLong mTotalBytesOut = new AtomicLong();
+    private static final AtomicLong mTotalDeflateNanos = new AtomicLong();
+    private static final AtomicLong mTotalDecompressed = new AtomicLong();
+    private static final AtomicLong mTotalInflateNanos = new AtomicLong();
+
+    private final int mThreshold;
+
+    /**
+     * Guarded by itself
+     */
+    private final Deflater mDeflater;
+
+    /**
+     * Guarded by itself
+     */
+    private final Inflater mInflater;
+
+    private final byte[] mDeflateBuf = new byte[8192];
+    private boolean mEnded;
+
+    // Counters for this connection. Sends are counted under mDeflater's lock, reads under mInflater's.
+    private long mSent;
+    private long mCompressed;
+    private long mBytesIn;
+    private long mBytesOut;
+    private long mDeflateNanos;
+    private long mDecompressed;
+    private long mInflateNanos;
+
+    /**
+     * Uses the threshold and compression level given by tcpmessagehandler.compress.threshold and
+     * tcpmessagehandler.compress.level.
+     */
+    public MessageCompressor() {
+        this(NetBase.theNetBase().config().getAsInt("tcpmessagehandler.compress.threshold", 512, 0),
+                NetBase.theNetBase().config().getAsInt("tcpmessagehandler.compress.level", Deflater.BEST_SPEED,
+                        Deflater.DEFAULT_COMPRESSION, Deflater.BEST_COMPRESSION));
+    }
+
+    /**
+     * @param threshold
+     *            Messages shorter than this are sent uncompressed
+     * @param level
+     *            The Deflater compression level
+     */
+    public MessageCompressor(int threshold, int level) {
+        mThreshold = threshold;
+        mDeflater = new Deflater(level, true);
+        mInflater = new Inflater(true);
+    }
+
+    /**
+     * Returns what to send, after the length field, for a message: its uncompressed length and deflated data. Returns
+     * null if the message should be sent uncompressed.
+     */
+    public byte[] compress(byte[] buf, int off, int len) {
+        synchronized (mDeflater) {
+            if (len < mThreshold || mEnded) {
+                skip();
+                return null;
+            }
+            mSent++;
+            mTotalSent.incrementAndGet();
+
+            long start = System.nanoTime();
+            byte[] out = new byte[4 + Math.min(len, 4096)];
+            System.arraycopy(TCPMessageHandler.intToByte(len), 0, out, 0, 4);
+            int outLen = 4;
+            mDeflater.setInput(buf, off, len);
+            mDeflater.finish();
+            while (!mDeflater.finished()) {
+                int n = mDeflater.deflate(mDeflateBuf);
+                // Not worth it if it doesn't shrink
+                if (outLen + n >= len) {
+                    outLen = -1;
+                    break;
+                }
+                if (outLen + n > out.length) {
+                    out = Arrays.copyOf(out, Math.min(len, Math.max(outLen + n, 2 * out.length)));
+                }
+                System.arraycopy(mDeflateBuf, 0, out, outLen, n);
+                outLen += n;
+            }
+            mDeflater.reset();
+            long elapsed = System.nanoTime() - start;
+            mDeflateNanos += elapsed;
+            mTotalDeflateNanos.addAndGet(elapsed);
+            if (outLen < 0) {
+                return null;
+            }
+
+            mCompressed++;
+            mBytesIn += len;
+            mBytesOut += outLen;
+            mTotalCompressed.incrementAndGet();
+            mTotalBytesIn.addAndGet(len);
+            mTotalBytesOut.addAndGet(outLen);
+            return outLen == out.length ? out : Arrays.copyOf(out, outLen);
+        }
+    }
+
+    /**
+     * As compress(byte[], int, int), for the bytes between buf's position and limit. buf isn't changed.
+     */
+    public byte[] compress(ByteBuffer buf) {
+        int len = buf.remaining();
+        if (buf.hasArray()) {
+            return compress(buf.array(), buf.arrayOffset() + buf.position(), len);
+        }
+        if (len < mThreshold) {
+            synchronized (mDeflater) {
+                skip();
+            }
+            return null;
+        }
+        byte[] copy = new byte[len];
+        buf.duplicate().get(copy);
+        return compress(copy, 0, len);
+    }
+
+    /**
+     * Counts a message sent uncompressed because it's too short. The caller holds mDeflater's lock.
+     */
+    private void skip() {
+        mSent++;
+        mTotalSent.incrementAndGet();
+    }
+
+    /**
+     * Returns the message sent as buf[off..off+len) by compress().
+     *
+     * @param maxLength
+     *            The longest message that may be returned
+     */
+    public byte[] decompress(byte[] buf, int off, int len, int maxLength) throws IOException {
+        if (len < 4) {
+            throw new IOException("Compressed message too short");
+        }
+        int length = TCPMessageHandler.byteToInt(Arrays.copyOfRange(buf, off, off + 4));
+        if (length < 0) {
+            throw new IOException("Negative length");
+        }
+        if (length > maxLength) {
+            throw new IOException("Length larger than getMaxReadLength()");
+        }
+
+        synchronized (mInflater) {
+            if (mEnded) {
+                throw new IOException("Message compressor has been ended");
+            }
+            long start = System.nanoTime();
+            byte[] payload = new byte[length];
+            try {
+                mInflater.setInput(buf, off + 4, len - 4);
+                int n = 0;
+                while (n < length) {
+                    int result = mInflater.inflate(payload, n, length - n);
+                    if (result == 0
+                            && (mInflater.finished() || mInflater.needsInput() || mInflater.needsDictionary())) {
+                        break;
+                    }
+                    n += result;
+                }
+                if (n < length || mInflater.getRemaining() > 0) {
+                    throw new IOException("Compressed message doesn't match its length");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Malformed compressed message: " + e.getMessage());
+            } finally {
+                mInflater.reset();
+                long elapsed = System.nanoTime() - start;
+                mInflateNanos += elapsed;
+                mTotalInflateNanos.addAndGet(elapsed);
+            }
+            mDecompressed++;
+            mTotalDecompressed.incrementAndGet();
+            return payload;
+        }
+    }
+
+    /**
+     * Frees the Deflater and Inflater. Later messages are sent uncompressed, and compressed ones can't be read.
+     */
+    public void end() {
+        synchronized (mDeflater) {
+            synchronized (mInflater) {
+                if (!mEnded) {
+                    mEnded = true;
+                    mDeflater.end();
+                    mInflater.end();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the counts for this connection.
+     */
+    public String stats() {
+        String sent;
+        synchronized (mDeflater) {
+            sent = describe(mSent, mCompressed, mBytesIn, mBytesOut, mDeflateNanos);
+        }
+        synchronized (mInflater) {
+            return sent + describeReads(mDecompressed, mInflateNanos);
+        }
+    }
+
+    /**
+     * Returns the counts for every connection of the process.
+     */
+    public static String totals() {
+        return describe(mTotalSent.get(), mTotalCompressed.get(), mTotalBytesIn.get(), mTotalBytesOut.get(),
+                mTotalDeflateNanos.get()) + describeReads(mTotalDecompressed.get(), mTotalInflateNanos.get());
+    }
+
+    private static String describe(long sent, long compressed, long bytesIn, long bytesOut, long nanos) {
+        return "compressed " + compressed + " of " + sent + " messages sent, " + bytesIn + " to " + bytesOut
+                + " bytes" + (bytesOut == 0 ? "" : String.format(" (ratio %.2f)", (double) bytesIn / bytesOut))
+                + String.format(" in %.3f msec", nanos / 1e6);
+    }
+
+    private static String describeReads(long decompressed, long nanos) {
+        return String.format("; decompressed %d messages in %.3f msec", decompressed, nanos / 1e6);
+    }
+}
@@ -0,0 +1,604 @@
+package edu.uw.cs.cse461.net.tcpmessagehandler;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.uw.cs.cse461.net.base.NetBase;
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * A TCPMessageHandler that works on a SocketChannel, using the same wire format (a 4-byte little endian length,
+ * then the data).
+ * <p>
+ * Each message is sent with a single gathering write of the length and the data. Incoming data is read into a
+ * direct buffer taken from the DirectBufferPool, as much as is available at a time, so a stream of small messages
+ * costs about one read call per batch of messages rather than two per message. The caller can borrowMessage() to
+ * look at a message in place, then releaseMessage() it, in which case reading allocates nothing. The byte[], String
+ * and JSON read routines are implemented on top of that, and so copy.
+ * <p>
+ * One thread may read while others send. Sends are serialized internally.
+ * <p>
+ * Messages are compressed once the handler is given a MessageCompressor, as with TCPMessageHandler. Chunked messages
+ * (see TCPMessageHandler.sendMessageAsStream()) can be read, up to getMaxReadLength() bytes in all, and are returned
+ * whole, in a heap buffer.
+ */
+public class TCPChannelMessageHandler implements TCPMessageHandlerInterface {
+    private static final String TAG = "TCPChannelMessageHandler";
+
+    private final SocketChannel mChannel;
+
+    /**
+     * The channel is non-blocking. Readers and writers wait for it on this, so that read timeouts can be enforced.
+     */
+    private final Selector mSelector;
+    private final SelectionKey mKey;
+
+    // --------------------------------------------------------------------------------------
+    // wait state. Guarded by mWaitLock. See await().
+    // --------------------------------------------------------------------------------------
+
+    private final Object mWaitLock = new Object();
+
+    /**
+     * The operations (SelectionKey.OP_READ, OP_WRITE) that threads are waiting for
+     */
+    private int mWanted;
+
+    /**
+     * The operations the channel has been found ready for, that the threads waiting for them haven't yet seen
+     */
+    private int mReady;
+
+    /**
+     * Whether a waiting thread is selecting, and for what
+     */
+    private boolean mSelecting;
+    private int mSelectingFor;
+
+    /**
+     * Read timeout, in msec. 0 means wait forever.
+     */
+    private volatile int mTimeout;
+
+    /**
+     * The maximum allowed size for which decoding of a message will be attempted
+     */
+    private int maxReadLength;
+
+    // --------------------------------------------------------------------------------------
+    // send state. Guarded by mHeader.
+    // --------------------------------------------------------------------------------------
+
+    private final ByteBuffer mHeader = ByteBuffer.allocateDirect(4).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer[] mGather = new ByteBuffer[2];
+
+    // --------------------------------------------------------------------------------------
+    // receive state. Guarded by mReadLock.
+    // --------------------------------------------------------------------------------------
+
+    private final Object mReadLock = new Object();
+
+    /**
+     * Data read from the channel but not yet returned as a message lies between mRecv's position and limit. Null
+     * once closed.
+     */
+    private ByteBuffer mRecv;
+
+    /**
+     * A reusable view of mRecv, returned to the caller by borrowMessage()
+     */
+    private ByteBuffer mView;
+
+    /**
+     * A message too big for mRecv is read into this pooled buffer instead. Non-null from when its length has been
+     * read until it's released.
+     */
+    private ByteBuffer mLarge;
+
+    /**
+     * The message the caller has borrowed, or null
+     */
+    private ByteBuffer mBorrowed;
+
+    /**
+     * Whether the message being read into mLarge is compressed
+     */
+    private boolean mLargeCompressed;
+
+    /**
+     * The data of a chunked message read so far, and what's left of its current chunk. Non-null from when the
+     * message's length field has been read until all of it has.
+     */
+    private ByteBuffer mChunks;
+    private int mChunkRemaining;
+
+    /**
+     * Compresses and decompresses messages, if compression is on
+     */
+    private volatile MessageCompressor mCompressor;
+
+    /**
+     * Constructor, associating this handler with a connected channel. The channel is put in non-blocking mode.
+     *
+     * @param channel
+     * @throws IOException
+     */
+    public TCPChannelMessageHandler(SocketChannel channel) throws IOException {
+        mChannel = channel;
+        mChannel.configureBlocking(false);
+        mSelector = Selector.open();
+        mKey = mChannel.register(mSelector, 0);
+
+        setMaxReadLength(NetBase.theNetBase().config().getAsInt("tcpmessagehandler.maxmsglength", 2097148));
+        int bufSize = NetBase.theNetBase().config().getAsInt("tcpmessagehandler.bufsize", 65536, 4096);
+        mRecv = DirectBufferPool.acquire(bufSize);
+        mRecv.clear().limit(0);
+        mRecv.order(ByteOrder.LITTLE_ENDIAN);
+        mView = mRecv.duplicate();
+    }
+
+    /**
+     * Closes the underlying channel and renders this handler useless. Any borrowed message must have been released
+     * first.
+     */
+    @Override
+    public void close() {
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "IOException encountered during close: " + e.getMessage());
+        }
+        // Closing the selector wakes up any thread selecting on it, which then wakes the others
+        try {
+            mSelector.close();
+        } catch (IOException e) {
+            Log.e(TAG, "IOException encountered during close: " + e.getMessage());
+        }
+        synchronized (mWaitLock) {
+            mWaitLock.notifyAll();
+        }
+        synchronized (mReadLock) {
+            DirectBufferPool.release(mRecv);
+            DirectBufferPool.release(mLarge);
+            mRecv = mLarge = mBorrowed = mChunks = null;
+        }
+        MessageCompressor compressor = mCompressor;
+        if (compressor != null) {
+            compressor.end();
+        }
+    }
+
+    /**
+     * Sets the read timeout.
+     *
+     * @param timeout
+     *            Time out, in msec.
+     * @return The previous time out.
+     */
+    @Override
+    public int setTimeout(int timeout) throws SocketException {
+        int prevTimeout = mTimeout;
+        mTimeout = timeout;
+        return prevTimeout;
+    }
+
+    @Override
+    public boolean setNoDelay(boolean value) throws SocketException {
+        boolean prevVal = mChannel.socket().getTcpNoDelay();
+        mChannel.socket().setTcpNoDelay(value);
+        return prevVal;
+    }
+
+    @Override
+    public int setMaxReadLength(int maxLen) {
+        return maxReadLength = maxLen;
+    }
+
+    @Override
+    public int getMaxReadLength() {
+        return maxReadLength;
+    }
+
+    /**
+     * Turns compression on, or off if compressor is null. The peer must have agreed to compression before it's turned
+     * on; see MessageCompressor.
+     *
+     * @return The previous compressor
+     */
+    public MessageCompressor setCompressor(MessageCompressor compressor) {
+        MessageCompressor prev = mCompressor;
+        mCompressor = compressor;
+        return prev;
+    }
+
+    /**
+     * Returns the compressor, or null if compression is off
+     */
+    public MessageCompressor getCompressor() {
+        return mCompressor;
+    }
+
+    // --------------------------------------------------------------------------------------
+    // send routines
+    // --------------------------------------------------------------------------------------
+
+    /**
+     * Sends the bytes between buf's position and limit as one message, advancing its position to its limit.
+     */
+    public void sendMessage(ByteBuffer buf) throws IOException {
+        int flag = 0;
+        MessageCompressor compressor = mCompressor;
+        if (compressor != null) {
+            byte[] compressed = compressor.compress(buf);
+            if (compressed != null) {
+                buf.position(buf.limit());
+                buf = ByteBuffer.wrap(compressed);
+                flag = MessageCompressor.COMPRESSED;
+            } else if (buf.remaining() >= MessageCompressor.COMPRESSED) {
+                throw new IOException("Message of " + buf.remaining()
+                        + " bytes is too long to send uncompressed with compression on");
+            }
+        }
+
+        synchronized (mHeader) {
+            mHeader.clear();
+            mHeader.putInt(flag | buf.remaining());
+            mHeader.flip();
+            mGather[0] = mHeader;
+            mGather[1] = buf;
+            try {
+                while (mHeader.hasRemaining() || buf.hasRemaining()) {
+                    if (mChannel.write(mGather) == 0) {
+                        awaitWritable();
+                    }
+                }
+            } finally {
+                mGather[1] = null;
+            }
+        }
+    }
+
+    private void awaitWritable() throws IOException {
+        await(SelectionKey.OP_WRITE, 0);
+    }
+
+    /**
+     * Waits until the channel may be ready for op, or timeout msec. have passed (0 means wait forever). At most one
+     * thread waits for each operation, as reads and sends are each serialized.
+     * <p>
+     * Only one thread can select on a selector at a time, so whichever waiting thread finds no other selecting
+     * selects for what all of them want, and passes on what it finds. A thread that wants something the selecting
+     * one isn't selecting for wakes it up, so that it selects again for both.
+     *
+     * @return Whether the channel may be ready; false if the wait timed out
+     */
+    private boolean await(int op, long timeout) throws IOException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true) {
+            int ops;
+            long remaining = 0;
+            synchronized (mWaitLock) {
+                boolean selecting = false;
+                mWanted |= op;
+                try {
+                    while (true) {
+                        if (!mChannel.isOpen() || !mSelector.isOpen()) {
+                            throw new SocketException("Socket closed");
+                        }
+                        if ((mReady & op) != 0) {
+                            mReady &= ~op;
+                            return true;
+                        }
+                        if (timeout > 0) {
+                            remaining = deadline - System.currentTimeMillis();
+                            if (remaining <= 0) {
+                                return false;
+                            }
+                        }
+                        if (!mSelecting) {
+                            break;
+                        }
+                        if ((mSelectingFor & op) == 0) {
+                            mSelector.wakeup();
+                        }
+                        try {
+                            mWaitLock.wait(remaining);
+                        } catch (InterruptedException e) {
+                            throw new InterruptedIOException("Interrupted waiting for the channel");
+                        }
+                    }
+                    selecting = mSelecting = true;
+                    // Anything already found ready is waiting to be seen, not selected for
+                    ops = mSelectingFor = mWanted & ~mReady;
+                } finally {
+                    if (!selecting) {
+                        mWanted &= ~op;
+                    }
+                }
+            }
+
+            int ready = 0;
+            try {
+                mKey.interestOps(ops);
+                if (mSelector.select(remaining) > 0) {
+                    ready = mKey.readyOps();
+                }
+                mSelector.selectedKeys().clear();
+            } catch (ClosedSelectorException e) {
+                // Found closed on the way round
+            } catch (CancelledKeyException e) {
+                // Likewise
+            } finally {
+                synchronized (mWaitLock) {
+                    mSelecting = false;
+                    mReady |= ready & mWanted;
+                    mWaitLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void sendMessage(byte[] buf) throws IOException {
+        sendMessage(ByteBuffer.wrap(buf));
+    }
+
+    /**
+     * Uses str.getBytes() for conversion.
+     */
+    @Override
+    public void sendMessage(String str) throws IOException {
+        sendMessage(str.getBytes());
+    }
+
+    @Override
+    public void sendMessage(int value) throws IOException {
+        sendMessage(TCPMessageHandler.intToByte(value));
+    }
+
+    @Override
+    public void sendMessage(JSONArray jsArray) throws IOException {
+        sendMessage(jsArray.toString());
+    }
+
+    @Override
+    public void sendMessage(JSONObject jsObject) throws IOException {
+        sendMessage(jsObject.toString());
+    }
+
+    // --------------------------------------------------------------------------------------
+    // read routines
+    // --------------------------------------------------------------------------------------
+
+    /**
+     * Reads the next message and lends it to the caller. The message is the bytes between the returned buffer's
+     * position and limit. The buffer belongs to this handler: it's valid only until releaseMessage() is called, and
+     * releaseMessage() must be called before the next read.
+     * <p>
+     * If the read times out, nothing is lost; the next read picks up where this one left off.
+     */
+    public ByteBuffer borrowMessage() throws IOException {
+        synchronized (mReadLock) {
+            if (mRecv == null) {
+                throw new SocketException("Socket closed");
+            }
+            if (mBorrowed != null) {
+                throw new IllegalStateException("borrowMessage() called before the previous message was released");
+            }
+
+            if (mChunks != null) {
+                return mBorrowed = readChunks();
+            }
+            if (mLarge == null) {
+                fill(4);
+                int length = mRecv.getInt(mRecv.position());
+                if (length == TCPMessageHandler.CHUNKED) {
+                    mRecv.position(mRecv.position() + 4);
+                    mChunks = ByteBuffer.allocate(Math.min(mRecv.capacity(), maxReadLength));
+                    mChunkRemaining = 0;
+                    return mBorrowed = readChunks();
+                }
+                if (length < 0) {
+                    throw new IOException("Negative length");
+                }
+                boolean compressed = mCompressor != null && (length & MessageCompressor.COMPRESSED) != 0;
+                if (compressed) {
+                    length &= ~MessageCompressor.COMPRESSED;
+                }
+                if (length > maxReadLength) {
+                    throw new IOException("Length larger than getMaxReadLength()");
+                }
+
+                if (4 + length <= mRecv.capacity()) {
+                    // The common case: the message fits in the receive buffer, so return it from there
+                    fill(4 + length);
+                    int start = mRecv.position() + 4;
+                    mRecv.position(start + length);
+                    mView.clear();
+                    mView.limit(start + length);
+                    mView.position(start);
+                    return mBorrowed = compressed ? decompress(mView) : mView;
+                }
+
+                // Otherwise move whatever part of it we already have to a buffer big enough for the whole thing
+                mRecv.position(mRecv.position() + 4);
+                mLarge = DirectBufferPool.acquire(length);
+                mLargeCompressed = compressed;
+                int available = Math.min(mRecv.remaining(), length);
+                ByteBuffer src = mRecv.duplicate();
+                src.limit(src.position() + available);
+                mLarge.put(src);
+                mRecv.position(mRecv.position() + available);
+            }
+
+            while (mLarge.hasRemaining()) {
+                readSome(mLarge);
+            }
+            mLarge.flip();
+            if (mLargeCompressed) {
+                try {
+                    return mBorrowed = decompress(mLarge);
+                } finally {
+                    DirectBufferPool.release(mLarge);
+                    mLarge = null;
+                }
+            }
+            return mBorrowed = mLarge;
+        }
+    }
+
+    /**
+     * Reads the rest of a chunked message into mChunks, and returns it.
+     */
+    private ByteBuffer readChunks() throws IOException {
+        while (true) {
+            if (mChunkRemaining == 0) {
+                fill(4);
+                int length = mRecv.getInt(mRecv.position());
+                if (length < 0) {
+                    throw new IOException("Negative chunk length");
+                }
+                if (length > maxReadLength - mChunks.position()) {
+                    throw new IOException("Length larger than getMaxReadLength()");
+                }
+                mRecv.position(mRecv.position() + 4);
+                if (length == 0) {
+                    break;
+                }
+                mChunkRemaining = length;
+            }
+            fill(1);
+            int n = Math.min(mRecv.remaining(), mChunkRemaining);
+            if (mChunks.remaining() < n) {
+                ByteBuffer grown = ByteBuffer.allocate(
+                        Math.max(mChunks.position() + n, (int) Math.min(2L * mChunks.capacity(), maxReadLength)));
+                mChunks.flip();
+                grown.put(mChunks);
+                mChunks = grown;
+            }
+            ByteBuffer src = mRecv.duplicate();
+            src.limit(src.position() + n);
+            mChunks.put(src);
+            mRecv.position(mRecv.position() + n);
+            mChunkRemaining -= n;
+        }
+        ByteBuffer msg = mChunks;
+        mChunks = null;
+        msg.flip();
+        return msg;
+    }
+
+    /**
+     * Returns the message whose compressed form is between msg's position and limit, in a heap buffer.
+     */
+    private ByteBuffer decompress(ByteBuffer msg) throws IOException {
+        MessageCompressor compressor = mCompressor;
+        if (compressor == null) {
+            throw new IOException("Compressed message received with compression off");
+        }
+        byte[] data = new byte[msg.remaining()];
+        msg.get(data);
+        return ByteBuffer.wrap(compressor.decompress(data, 0, data.length, maxReadLength));
+    }
+
+    /**
+     * Gives back the message returned by borrowMessage().
+     */
+    public void releaseMessage() {
+        synchronized (mReadLock) {
+            if (mBorrowed != null && mBorrowed == mLarge) {
+                DirectBufferPool.release(mLarge);
+                mLarge = null;
+            }
+            mBorrowed = null;
+        }
+    }
+
+    /**
+     * Reads until at least needed bytes are available in mRecv.
+     */
+    private void fill(int needed) throws IOException {
+        if (mRecv.remaining() >= needed) {
+            return;
+        }
+        mRecv.compact();
+        try {
+            while (mRecv.position() < needed) {
+                readSome(mRecv);
+            }
+        } finally {
+            mRecv.flip();
+        }
+    }
+
+    /**
+     * Reads at least one byte into buf, waiting up to the timeout for it to arrive.
+     */
+    private void readSome(ByteBuffer buf) throws IOException {
+        long start = System.currentTimeMillis();
+        while (true) {
+            int n = mChannel.read(buf);
+            if (n < 0) {
+                throw new EOFException("EOF reached on socket when reading message");
+            }
+            if (n > 0) {
+                return;
+            }
+            int timeout = mTimeout;
+            if (timeout > 0) {
+                long remaining = timeout - (System.currentTimeMillis() - start);
+                if (remaining <= 0 || !await(SelectionKey.OP_READ, remaining)) {
+                    throw new SocketTimeoutException("Read timed out");
+                }
+            } else {
+                await(SelectionKey.OP_READ, 0);
+            }
+        }
+    }
+
+    @Override
+    public byte[] readMessageAsBytes() throws IOException {
+        ByteBuffer msg = borrowMessage();
+        try {
+            byte[] payload = new byte[msg.remaining()];
+            msg.get(payload);
+            return payload;
+        } finally {
+            releaseMessage();
+        }
+    }
+
+    @Override
+    public String readMessageAsString() throws IOException {
+        return new String(readMessageAsBytes());
+    }
+
+    @Override
+    public int readMessageAsInt() throws IOException {
+        return TCPMessageHandler.byteToInt(readMessageAsBytes());
+    }
+
+    @Override
+    public JSONArray readMessageAsJSONArray() throws IOException, JSONException {
+        return new JSONArray(readMessageAsString());
+    }
+
+    @Override
+    public JSONObject readMessageAsJSONObject() throws IOException, JSONException {
+        return new JSONObject(readMessageAsString());
+    }
+}
@@ -1,5 +1,7 @@
 package edu.uw.cs.cse461.net.tcpmessagehandler;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -8,6 +10,12 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -22,6 +30,20 @@ import edu.uw.cs.cse461.util.Log;
  * <p>
  * Design note: TCPMessageHandler cannot usefully subclass Socket, but rather must wrap an existing Socket, because
  * servers must use ServerSocket.accept(), which returns a Socket that must then be turned into a TCPMessageHandler.
+ * <p>
+ * Messages too big to hold in memory can be sent and read as streams, with sendMessageAsStream() and
+ * readMessageAsStream(). A message whose length isn't known up front is sent chunked: its length field is CHUNKED,
+ * and the data follows as a sequence of chunks, each with its own length field, ended by an empty chunk. The
+ * buffering read routines accept chunked messages too, up to getMaxReadLength() bytes in all, as does
+ * TCPChannelMessageHandler.
+ * <p>
+ * Once both ends have agreed to it, messages can be compressed, by giving each end's handler a MessageCompressor.
+ * Messages sent as streams aren't compressed.
+ * <p>
+ * Each message is sent with a single write, unless it's large. With write coalescing on (setCoalescing()), messages
+ * are instead collected in a buffer, which is sent with a single write when it fills, when flush() is called, or
+ * when the oldest message in it has waited tcpmessagehandler.coalesce.linger msec, whichever is first. Reading a
+ * message flushes the buffer first, so a request is never left in it while its sender waits for the reply.
  * 
  * @author zahorjan
  * 
@@ -33,6 +55,31 @@ public class TCPMessageHandler implements TCPMessageHandlerInterface {
      * The maximum amount of data that may be read from the socket at a time
      */
     private static final int CHUNK_SIZE = 10000;
+
+    /**
+     * The length field of a chunked message
+     */
+    public static final int CHUNKED = -1;
+
+    /**
+     * Messages up to this long are copied, after their length, so that both go in one write. Longer ones are written
+     * from the caller's array.
+     */
+    private static final int COMBINE_LIMIT = 65536;
+
+    /**
+     * Flushes the write buffers of coalescing handlers whose linger time is up. Created when first needed.
+     */
+    private static class LingerTimer {
+        static final ScheduledExecutorService TIMER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "TCPMessageHandler linger");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
     
     // --------------------------------------------------------------------------------------
     // helper routines
@@ -76,6 +123,45 @@ public class TCPMessageHandler implements TCPMessageHandlerInterface {
      */
     private int maxReadLength;
 
+    /**
+     * The stream returned by the last readMessageAsStream(), until it's been read to its end
+     */
+    private MessageInputStream incoming;
+
+    /**
+     * The stream returned by the last sendMessageAsStream(), until it's closed
+     */
+    private OutputStream outgoing;
+
+    /**
+     * Compresses and decompresses messages, if compression is on
+     */
+    private volatile MessageCompressor compressor;
+
+    // --------------------------------------------------------------------------------------
+    // write coalescing state. Guarded by writeLock.
+    // --------------------------------------------------------------------------------------
+
+    private final Object writeLock = new Object();
+
+    /**
+     * Messages waiting to be sent, in writeBuf[0..writeCount). Null unless coalescing is on. writeCount is volatile so
+     * that readers can see whether there's anything to flush without waiting for a send in progress.
+     */
+    private byte[] writeBuf;
+    private volatile int writeCount;
+
+    /**
+     * How long a message may wait in writeBuf, in msec. 0 means until flush().
+     */
+    private int linger;
+    private boolean flushScheduled;
+
+    /**
+     * Why a flush at the end of a linger failed, to be thrown by the next send
+     */
+    private IOException lingerFailure;
+
     /**
      * Constructor, associating this TCPMessageHandler with a connected socket.
      * 
@@ -92,11 +178,25 @@ public class TCPMessageHandler implements TCPMessageHandlerInterface {
      */
     @Override
     public void close() {
+        try {
+            synchronized (writeLock) {
+                if (writeCount > 0 && !sock.isClosed()) {
+                    flushBuffer();
+                }
+                writeBuf = null;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "IOException encountered flushing during close: " + e.getMessage());
+        }
         try {
             sock.close();
         } catch (IOException e) {
             Log.e(TAG, "IOException encountered during close: " + e.getMessage());
         }
+        MessageCompressor c = compressor;
+        if (c != null) {
+            c.end();
+        }
     }
 
     /**
@@ -145,18 +245,168 @@ public class TCPMessageHandler implements TCPMessageHandlerInterface {
         return maxReadLength;
     }
 
+    /**
+     * Turns compression on, or off if compressor is null. The peer must have agreed to compression before it's turned
+     * on, and is sent compressed messages from then on; see MessageCompressor.
+     * 
+     * @return The previous compressor
+     */
+    public MessageCompressor setCompressor(MessageCompressor compressor) {
+        MessageCompressor prev = this.compressor;
+        this.compressor = compressor;
+        return prev;
+    }
+
+    /**
+     * Returns the compressor, or null if compression is off
+     */
+    public MessageCompressor getCompressor() {
+        return compressor;
+    }
+
+    /**
+     * Turns write coalescing on or off. Turning it off flushes the buffer. The buffer's size, and how long a message
+     * may linger in it, are given by tcpmessagehandler.coalesce.buffersize and tcpmessagehandler.coalesce.linger.
+     * Coalescing is worth it for streams of small messages; as each flush is one write, it combines well with
+     * setNoDelay(true).
+     * 
+     * @return The previous setting
+     */
+    public boolean setCoalescing(boolean value) throws IOException {
+        synchronized (writeLock) {
+            boolean prev = writeBuf != null;
+            if (value && !prev) {
+                writeBuf = new byte[NetBase.theNetBase().config()
+                        .getAsInt("tcpmessagehandler.coalesce.buffersize", 65536, 16)];
+                linger = NetBase.theNetBase().config().getAsInt("tcpmessagehandler.coalesce.linger", 1, 0);
+            } else if (!value && prev) {
+                flushBuffer();
+                writeBuf = null;
+            }
+            return prev;
+        }
+    }
+
+    /**
+     * Sends any messages waiting in the write coalescing buffer.
+     */
+    public void flush() throws IOException {
+        synchronized (writeLock) {
+            checkLingerFailure();
+            flushBuffer();
+        }
+    }
+
     // --------------------------------------------------------------------------------------
     // send routines
     // --------------------------------------------------------------------------------------
 
     @Override
     public void sendMessage(byte[] buf) throws IOException {
-        // Start by writing the length
+        checkNoOutgoing();
+
+        MessageCompressor c = compressor;
+        if (c != null) {
+            byte[] compressed = c.compress(buf, 0, buf.length);
+            if (compressed != null) {
+                writeMessage(MessageCompressor.COMPRESSED | compressed.length, compressed);
+                return;
+            }
+            checkSendable(buf.length);
+        }
+        writeMessage(buf.length, buf);
+    }
+
+    /**
+     * Sends a length field and the data that follows it, or adds them to the write buffer.
+     */
+    private void writeMessage(int length, byte[] data) throws IOException {
         OutputStream os = sock.getOutputStream();
-        os.write(intToByte(buf.length));
+        synchronized (writeLock) {
+            checkLingerFailure();
+            if (writeBuf == null) {
+                if (data.length <= COMBINE_LIMIT) {
+                    // One write, so that Nagle's algorithm doesn't hold the data back waiting for the length's ACK
+                    byte[] frame = new byte[4 + data.length];
+                    putInt(frame, 0, length);
+                    System.arraycopy(data, 0, frame, 4, data.length);
+                    os.write(frame);
+                } else {
+                    os.write(intToByte(length));
+                    os.write(data);
+                }
+                return;
+            }
+
+            // Make room for the message, or as much of it as fits
+            if (writeCount + 4 + data.length > writeBuf.length) {
+                flushBuffer();
+            }
+            putInt(writeBuf, writeCount, length);
+            writeCount += 4;
+            int n = Math.min(data.length, writeBuf.length - writeCount);
+            System.arraycopy(data, 0, writeBuf, writeCount, n);
+            writeCount += n;
+            if (n < data.length) {
+                // A message bigger than the buffer: send the rest from the caller's array
+                flushBuffer();
+                os.write(data, n, data.length - n);
+            } else if (writeCount == writeBuf.length) {
+                flushBuffer();
+            } else if (linger > 0 && !flushScheduled) {
+                flushScheduled = true;
+                LingerTimer.TIMER.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (writeLock) {
+                            flushScheduled = false;
+                            try {
+                                flushBuffer();
+                            } catch (IOException e) {
+                                lingerFailure = e;
+                            }
+                        }
+                    }
+                }, linger, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
 
-        // Next, send the data
-        os.write(buf);
+    /**
+     * Sends what's in the write buffer. The caller holds writeLock.
+     */
+    private void flushBuffer() throws IOException {
+        if (writeCount > 0) {
+            int n = writeCount;
+            writeCount = 0;
+            sock.getOutputStream().write(writeBuf, 0, n);
+        }
+    }
+
+    private void checkLingerFailure() throws IOException {
+        if (lingerFailure != null) {
+            throw lingerFailure;
+        }
+    }
+
+    /**
+     * Flushes the write buffer, then writes a length field on its own, to start a message sent as a stream.
+     */
+    private OutputStream startStream(int length) throws IOException {
+        OutputStream os = sock.getOutputStream();
+        synchronized (writeLock) {
+            checkLingerFailure();
+            flushBuffer();
+            os.write(intToByte(length));
+        }
+        return os;
+    }
+
+    private static void putInt(byte[] buf, int off, int i) {
+        buf[off] = (byte) i;
+        buf[off + 1] = (byte) (i >> 8);
+        buf[off + 2] = (byte) (i >> 16);
+        buf[off + 3] = (byte) (i >> 24);
     }
 
     /**
@@ -191,6 +441,199 @@ public class TCPMessageHandler implements TCPMessageHandlerInterface {
         sendMessage(jsObject.toString());
     }
 
+    /**
+     * Starts a message of the given length, and returns a stream to write its data to. Exactly length bytes must be
+     * written, and the stream closed, before anything else is sent. The data goes straight to the socket, so many
+     * small writes are best made through a BufferedOutputStream.
+     * <p>
+     * Closing the stream doesn't close the socket.
+     */
+    public OutputStream sendMessageAsStream(int length) throws IOException {
+        if (length < 0) {
+            throw new IllegalArgumentException("Negative length");
+        }
+        checkNoOutgoing();
+        if (compressor != null) {
+            checkSendable(length);
+        }
+        return outgoing = new LengthMessageOutputStream(startStream(length), length);
+    }
+
+    /**
+     * Starts a chunked message, of any length, and returns a stream to write its data to. Data is sent in chunks of
+     * up to CHUNK_SIZE bytes, as it's written, and flush() sends whatever's been written so far. close() ends the
+     * message, and must be called before anything else is sent.
+     * <p>
+     * Closing the stream doesn't close the socket.
+     */
+    public OutputStream sendMessageAsStream() throws IOException {
+        checkNoOutgoing();
+        return outgoing = new ChunkedMessageOutputStream(startStream(CHUNKED));
+    }
+
+    /**
+     * With compression on, the length field's COMPRESSED bit can't be part of an uncompressed message's length.
+     */
+    private static void checkSendable(int length) throws IOException {
+        if (length >= MessageCompressor.COMPRESSED) {
+            throw new IOException("Message of " + length
+                    + " bytes is too long to send uncompressed with compression on");
+        }
+    }
+
+    private void checkNoOutgoing() {
+        if (outgoing != null) {
+            throw new IllegalStateException("A message is being sent as a stream: close it first");
+        }
+    }
+
+    /**
+     * The body of a message sent by sendMessageAsStream(int)
+     */
+    private class LengthMessageOutputStream extends OutputStream {
+        private final OutputStream os;
+        private int remaining;
+        private boolean closed;
+
+        LengthMessageOutputStream(OutputStream os, int length) {
+            this.os = os;
+            this.remaining = length;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (len > remaining) {
+                throw new IOException("Write of " + len + " bytes overruns the message's length, with " + remaining
+                        + " bytes left");
+            }
+            os.write(b, off, len);
+            remaining -= len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            os.flush();
+        }
+
+        /**
+         * Ends the message. If fewer bytes were written than the message's length, the peer can't find where the
+         * next message starts, so the socket is closed.
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            outgoing = null;
+            if (remaining > 0) {
+                TCPMessageHandler.this.close();
+                throw new IOException("Message closed " + remaining + " bytes short of its length");
+            }
+            os.flush();
+        }
+    }
+
+    /**
+     * The body of a message sent by sendMessageAsStream()
+     */
+    private class ChunkedMessageOutputStream extends OutputStream {
+        private final OutputStream os;
+        /**
+         * The chunk being filled, at chunk[4..4+count), with room before it for its length, and after it for the
+         * empty chunk that ends the message, so that each goes in one write
+         */
+        private final byte[] chunk = new byte[4 + CHUNK_SIZE + 4];
+        private int count;
+        private boolean closed;
+
+        ChunkedMessageOutputStream(OutputStream os) {
+            this.os = os;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (count == CHUNK_SIZE) {
+                sendChunk();
+            }
+            chunk[4 + count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            while (len > 0) {
+                if (count == 0 && len >= CHUNK_SIZE) {
+                    // Nothing buffered, and a whole chunk's worth to send: send it from the caller's array
+                    os.write(intToByte(CHUNK_SIZE));
+                    os.write(b, off, CHUNK_SIZE);
+                    off += CHUNK_SIZE;
+                    len -= CHUNK_SIZE;
+                    continue;
+                }
+                int n = Math.min(len, CHUNK_SIZE - count);
+                System.arraycopy(b, off, chunk, 4 + count, n);
+                count += n;
+                off += n;
+                len -= n;
+                if (count == CHUNK_SIZE) {
+                    sendChunk();
+                }
+            }
+        }
+
+        private void sendChunk() throws IOException {
+            if (count > 0) {
+                putInt(chunk, 0, count);
+                os.write(chunk, 0, 4 + count);
+                count = 0;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            sendChunk();
+            os.flush();
+        }
+
+        /**
+         * Sends what's left, then the empty chunk that ends the message.
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            outgoing = null;
+            if (count == 0) {
+                os.write(intToByte(0));
+            } else {
+                putInt(chunk, 0, count);
+                putInt(chunk, 4 + count, 0);
+                os.write(chunk, 0, 4 + count + 4);
+                count = 0;
+            }
+            os.flush();
+        }
+    }
+
     // --------------------------------------------------------------------------------------
     // read routines
     // All of these invert any encoding done by the corresponding send method.
@@ -198,22 +641,33 @@ public class TCPMessageHandler implements TCPMessageHandlerInterface {
 
     @Override
     public byte[] readMessageAsBytes() throws IOException {
+        flushBeforeRead();
+        skipIncoming();
         InputStream is = sock.getInputStream();
 
         // Read the length
-        byte lengthBuf[] = new byte[4];
-        int read = is.read(lengthBuf);
-        if (read == -1) {
-            throw new EOFException("EOF reached on socket when reading length");
-        } else if (read < 3) {
-            throw new IOException("Message length too short");
+        int length = readLength(is, "length");
+
+        if (length == CHUNKED) {
+            return readChunked();
         }
-        int length = byteToInt(lengthBuf);
+        return readBody(is, length);
+    }
 
+    /**
+     * Reads the data of a message that isn't chunked, whose length field has just been read, and decompresses it if
+     * need be.
+     */
+    private byte[] readBody(InputStream is, int length) throws IOException {
         // Sanity check the length
         if (length < 0) {
             throw new IOException("Negative length");
         }
+        MessageCompressor c = compressor;
+        boolean compressed = c != null && (length & MessageCompressor.COMPRESSED) != 0;
+        if (compressed) {
+            length &= ~MessageCompressor.COMPRESSED;
+        }
         if (length > maxReadLength) {
             throw new IOException("Length larger than getMaxReadLength()");
         }
@@ -230,7 +684,172 @@ public class TCPMessageHandler implements TCPMessageHandlerInterface {
         	readSoFar += result;
         }
 
-        return payload;
+        return compressed ? c.decompress(payload, 0, length, maxReadLength) : payload;
+    }
+
+    /**
+     * Reads the body of a chunked message, whose length field has just been read, into memory.
+     */
+    private byte[] readChunked() throws IOException {
+        MessageInputStream in = new MessageInputStream(sock.getInputStream(), CHUNKED);
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        byte[] buf = new byte[CHUNK_SIZE];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            if (payload.size() + n > maxReadLength) {
+                throw new IOException("Length larger than getMaxReadLength()");
+            }
+            payload.write(buf, 0, n);
+        }
+        return payload.toByteArray();
+    }
+
+    /**
+     * Reads a length field, waiting for all four bytes of it.
+     * 
+     * @param what
+     *            What the length is of, for error messages
+     */
+    private static int readLength(InputStream is, String what) throws IOException {
+        byte lengthBuf[] = new byte[4];
+        int readSoFar = 0;
+        while (readSoFar < 4) {
+            int result = is.read(lengthBuf, readSoFar, 4 - readSoFar);
+            if (result == -1) {
+                throw new EOFException("EOF reached on socket when reading " + what);
+            }
+            readSoFar += result;
+        }
+        return byteToInt(lengthBuf);
+    }
+
+    /**
+     * Reads the next message's length, and returns a stream from which its data can be read. The stream ends where the
+     * message does. Messages of any length, and chunked messages, can be read this way, as the message isn't held in
+     * memory; getMaxReadLength() doesn't apply. The exception is a compressed message, which is decompressed into
+     * memory, as readMessageAsBytes() would.
+     * <p>
+     * Reading the next message skips whatever hasn't been read of this one, as does closing the stream. Closing the
+     * stream doesn't close the socket.
+     */
+    public InputStream readMessageAsStream() throws IOException {
+        flushBeforeRead();
+        skipIncoming();
+        InputStream is = sock.getInputStream();
+        int length = readLength(is, "length");
+        if (length > 0 && compressor != null && (length & MessageCompressor.COMPRESSED) != 0) {
+            return new ByteArrayInputStream(readBody(is, length));
+        }
+        if (length < 0 && length != CHUNKED) {
+            throw new IOException("Negative length");
+        }
+        return incoming = new MessageInputStream(is, length);
+    }
+
+    /**
+     * As readMessageAsStream(), but returns the message as a channel.
+     */
+    public ReadableByteChannel readMessageAsChannel() throws IOException {
+        return Channels.newChannel(readMessageAsStream());
+    }
+
+    private void flushBeforeRead() throws IOException {
+        if (writeCount > 0) {
+            synchronized (writeLock) {
+                flushBuffer();
+            }
+        }
+    }
+
+    private void skipIncoming() throws IOException {
+        if (incoming != null) {
+            incoming.close();
+        }
+    }
+
+    /**
+     * The body of a message, as returned by readMessageAsStream()
+     */
+    private class MessageInputStream extends InputStream {
+        private final InputStream is;
+        private final boolean chunked;
+
+        /**
+         * What's left of the message, or of the current chunk of a chunked message
+         */
+        private int remaining;
+        private boolean done;
+
+        MessageInputStream(InputStream is, int length) {
+            this.is = is;
+            this.chunked = length == CHUNKED;
+            this.remaining = chunked ? 0 : length;
+        }
+
+        /**
+         * Returns whether there's more of the message, reading the next chunk's length if need be.
+         */
+        private boolean more() throws IOException {
+            while (!done && remaining == 0) {
+                if (!chunked) {
+                    finish();
+                    break;
+                }
+                int length = readLength(is, "chunk length");
+                if (length < 0) {
+                    throw new IOException("Negative chunk length");
+                }
+                if (length == 0) {
+                    finish();
+                }
+                remaining = length;
+            }
+            return !done;
+        }
+
+        private void finish() {
+            done = true;
+            if (incoming == this) {
+                incoming = null;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!more()) {
+                return -1;
+            }
+            int result = is.read(b, off, Math.min(len, remaining));
+            if (result == -1) {
+                throw new EOFException("EOF reached on socket when reading message");
+            }
+            remaining -= result;
+            return result;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return done ? 0 : Math.min(remaining, is.available());
+        }
+
+        /**
+         * Skips the rest of the message.
+         */
+        @Override
+        public void close() throws IOException {
+            byte[] buf = new byte[CHUNK_SIZE];
+            while (read(buf, 0, buf.length) != -1) {
+            }
+        }
     }
 
     @Override
@@ -1,6 +1,7 @@
 package edu.uw.cs.cse461.service;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -8,10 +9,13 @@ import org.json.JSONObject;
 import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.net.rpc.RPCCallableMethod;
 import edu.uw.cs.cse461.net.rpc.RPCService;
+import edu.uw.cs.cse461.net.rpc.RPCStreamSource;
+import edu.uw.cs.cse461.net.rpc.RPCStreamingResponse;
 import edu.uw.cs.cse461.util.Base64;
 
 /**
- * A simple service that sends back the amount of data requested. It exposes a single method via RPC: dataxfer.
+ * A simple service that sends back the amount of data requested. It exposes two methods via RPC: dataxfer, which
+ * returns the data Base64 encoded in its response, and dataxferstream, which streams it as raw bytes.
  * <p>
  * To make a method available via RPC you must do two key things:
  * <ol>
@@ -51,6 +55,7 @@ public class DataXferRPCService extends DataXferServiceBase {
 
     // A variable capable of describing a method that can be invoked by RPC.
     private final RPCCallableMethod dataxfer;
+    private final RPCCallableMethod dataxferstream;
 
     /**
      * The constructor registers RPC-callable methods with the RPCService.
@@ -65,6 +70,11 @@ public class DataXferRPCService extends DataXferServiceBase {
         dataxfer = new RPCCallableMethod(this, "_dataxfer");
         // Register the method with the RPC service as externally invocable method "dataxfer"
         ((RPCService) NetBase.theNetBase().getService("rpc")).registerHandler(loadablename(), "dataxfer", dataxfer);
+
+        // The streaming variant, this->_dataxferstream(), is externally invocable as "dataxferstream"
+        dataxferstream = new RPCCallableMethod(this, "_dataxferstream");
+        ((RPCService) NetBase.theNetBase().getService("rpc")).registerHandler(loadablename(), "dataxferstream",
+                dataxferstream);
     }
 
     /**
@@ -93,4 +103,50 @@ public class DataXferRPCService extends DataXferServiceBase {
         args.put(DATA_KEY, Base64.encodeBytes(payload));
         return args;
     }
+
+    /**
+     * Like _dataxfer(), but the data isn't put in the response. Instead it follows the response as raw bytes, which
+     * the RPC service pulls from a source a chunk at a time, so no copy of the whole payload is ever made.
+     * 
+     * @param args
+     * @return
+     * @throws Exception
+     */
+    public RPCStreamingResponse _dataxferstream(JSONObject args) throws Exception {
+        JSONObject header = args.getJSONObject(DataXferRPCService.HEADER_KEY);
+        if (header == null || !header.has(HEADER_TAG_KEY)
+                || !header.getString(HEADER_TAG_KEY).equalsIgnoreCase(DataXferServiceBase.HEADER_STR)
+                || !header.has(HEADER_LENGTH_KEY)) {
+            throw new Exception("Missing or incorrect header value: '" + header + "'");
+        }
+        long length = header.getLong(HEADER_LENGTH_KEY);
+        if (length < 0) {
+            throw new Exception("Negative transfer length: " + length);
+        }
+
+        header.put(HEADER_TAG_KEY, RESPONSE_OKAY_STR);
+        return new RPCStreamingResponse(args, new ZeroSource(length));
+    }
+
+    /**
+     * A stream of zero bytes.
+     */
+    private static class ZeroSource implements RPCStreamSource {
+        private final long mLength;
+
+        ZeroSource(long length) {
+            mLength = length;
+        }
+
+        @Override
+        public long length() {
+            return mLength;
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) {
+            Arrays.fill(buf, off, off + len, (byte) 0);
+            return len;
+        }
+    }
 }
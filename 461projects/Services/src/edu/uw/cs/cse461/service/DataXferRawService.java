@@ -1,27 +1,44 @@
 package edu.uw.cs.cse461.service;
 
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 
 import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.net.base.NetLoadableInterface.NetLoadableServiceInterface;
 import edu.uw.cs.cse461.util.ConfigManager;
 import edu.uw.cs.cse461.util.IPFinder;
 import edu.uw.cs.cse461.util.Log;
+import edu.uw.cs.cse461.util.TokenBucket;
 
 /**
  * Transfers reasonably large amounts of data to client over raw TCP and UDP sockets.  In both cases,
  * the server simply sends as fast as it can.  The server does not implement any correctness mechanisms,
  * so, when using UDP, clients may not receive all the data sent.
  * <p>
- * Four consecutive ports are used to send fixed amounts of data of various sizes.
+ * Consecutive ports are used to send fixed amounts of data of various sizes.  By default there are four, 
+ * sending the XFERSIZE amounts; the dataxferraw.server.xfersizes config entry can replace them.
+ * <p>
+ * TCP transfers are sent from a preallocated payload: either a direct buffer, written in large chunks, or,
+ * if dataxferraw.server.payloadfile names a file, that file, sent with FileChannel.transferTo() (which lets
+ * the OS send it without copying it through the JVM).  The payload is repeated as needed, so transfers can
+ * be much larger than it.
+ * <p>
+ * UDP transfers are sent as datagrams carrying dataxferraw.server.udp.payloadsize bytes each, numbered so
+ * that clients can measure loss, and optionally paced (dataxferraw.server.udp.rate).  A client can instead ask
+ * for a reliable transfer, which uses the ReliableUDP protocol.
+ * <p>
+ * TCP clients are served concurrently, by a RawTCPServer's worker pool (see its config entries).
  * <p>
  * @author zahorjan
  *
@@ -31,10 +48,18 @@ public class DataXferRawService extends DataXferServiceBase implements NetLoadab
 	
 	public static final int NPORTS = 4;
 	public static final int[] XFERSIZE = {1000, 10000, 100000, 1000000};
+	
+	/**
+	 * The largest UDP payload IPv4 can carry
+	 */
+	public static final int MAX_DATAGRAM = 65507;
 
 	private int mBasePort;
+	private long[] mXferSizes;
+	private Payload mPayload;
 	
-	private TCPThread[] tcpThreads;
+	private RawTCPServer mTCPServer;
+	private ServerSocket[] mServerSockets;
 	private UDPThread[] udpThreads;
 	
 	/**
@@ -53,19 +78,68 @@ public class DataXferRawService extends DataXferServiceBase implements NetLoadab
 		String serverIP = IPFinder.localIP();
 		if ( serverIP == null ) throw new Exception("IPFinder isn't providing the local IP address.  Can't run.");
 		
+		mXferSizes = xferSizes(config);
+		long maxSize = 0;
+		for (long size : mXferSizes) maxSize = Math.max(maxSize, size);
+		mPayload = new Payload(config, maxSize);
+		
 		// Start the server threads
-		tcpThreads = new TCPThread[NPORTS];
-		udpThreads = new UDPThread[NPORTS];
+		mTCPServer = new RawTCPServer(loadablename());
+		mServerSockets = new ServerSocket[mXferSizes.length];
+		udpThreads = new UDPThread[mXferSizes.length];
 		
-		for (int i = 0; i < NPORTS; i++) {
-			tcpThreads[i] = new TCPThread(serverIP, mBasePort + i, XFERSIZE[i]);
-			tcpThreads[i].start();
-			udpThreads[i] = new UDPThread(serverIP, mBasePort + i, XFERSIZE[i]);
+		for (int i = 0; i < mXferSizes.length; i++) {
+			mServerSockets[i] = mTCPServer.listen(serverIP, mBasePort + i, new TCPHandler(mXferSizes[i]));
+			udpThreads[i] = new UDPThread(serverIP, mBasePort + i, mXferSizes[i]);
 			udpThreads[i].start();
 		}
 		
 	}
 	
+	/**
+	 * Returns the transfer sizes, one per port starting at dataxferraw.server.baseport.  They're read from
+	 * the dataxferraw.server.xfersizes config entry, a white space separated list of sizes in bytes, optionally
+	 * with a K, M or G suffix.  If there's no such entry, they're the XFERSIZE values.
+	 */
+	public static long[] xferSizes(ConfigManager config) {
+		String[] sizeStrs = config.getAsStringVec("dataxferraw.server.xfersizes");
+		if ( sizeStrs == null || sizeStrs.length == 0 || sizeStrs[0].length() == 0 ) {
+			long[] sizes = new long[NPORTS];
+			for (int i = 0; i < NPORTS; i++) sizes[i] = XFERSIZE[i];
+			return sizes;
+		}
+		
+		long[] sizes = new long[sizeStrs.length];
+		for (int i = 0; i < sizeStrs.length; i++) {
+			String str = sizeStrs[i].toUpperCase();
+			long multiplier = 1;
+			if ( str.endsWith("K") ) multiplier = 1L << 10;
+			else if ( str.endsWith("M") ) multiplier = 1L << 20;
+			else if ( str.endsWith("G") ) multiplier = 1L << 30;
+			if ( multiplier != 1 ) str = str.substring(0, str.length() - 1);
+			sizes[i] = Long.parseLong(str) * multiplier;
+			if ( sizes[i] < 0 ) throw new IllegalArgumentException("Negative dataxferraw.server.xfersizes entry: " + sizeStrs[i]);
+		}
+		return sizes;
+	}
+	
+	/**
+	 * Returns the number of payload bytes in each UDP response datagram, dataxferraw.server.udp.payloadsize.
+	 * The default is 1000.  With the response header, a datagram can be at most 65507 bytes, the largest UDP
+	 * payload IPv4 allows.
+	 */
+	public static int udpPayloadSize(ConfigManager config) {
+		return config.getAsInt("dataxferraw.server.udp.payloadsize", 1000, 1, MAX_DATAGRAM - RESPONSE_OKAY_LEN);
+	}
+	
+	/**
+	 * Returns the number of payload bytes in each datagram of a reliable transfer.  It's udpPayloadSize(), unless
+	 * that plus the reliable protocol's larger header would make the datagram too big.
+	 */
+	public static int reliablePayloadSize(ConfigManager config) {
+		return Math.min(udpPayloadSize(config), MAX_DATAGRAM - ReliableUDP.DATA_HEADER_LEN);
+	}
+	
 
 	/**
 	 * Returns string summarizing the status of this server.  The string is printed by the dumpservicestate
@@ -74,123 +148,85 @@ public class DataXferRawService extends DataXferServiceBase implements NetLoadab
 	@Override
 	public String dumpState() {
 		StringBuilder sb = new StringBuilder(super.dumpState());
+		sb.append("\nPayload: " + mPayload);
+		ConfigManager config = NetBase.theNetBase().config();
+		int rate = config.getAsInt("dataxferraw.server.udp.rate", 0, 0);
+		sb.append("\nUDP datagram payload: " + udpPayloadSize(config) + " bytes, " + (rate > 0 ? "paced at " + rate + " bytes/sec" : "unpaced"));
 		sb.append("\nListening on:");
-		for (int i = 0; i < XFERSIZE.length; i++) {
+		for (int i = 0; i < mXferSizes.length; i++) {
 			sb.append("\n\tTCP: ");
-			if ( tcpThreads[i].getServerSocket() != null ) sb.append(tcpThreads[i].getServerSocket());
+			if ( !mServerSockets[i].isClosed() ) sb.append(mServerSockets[i]);
 			else sb.append("Not listening");
 		}
 		
-		for (int i = 0; i < XFERSIZE.length; i++) {
+		for (int i = 0; i < mXferSizes.length; i++) {
 			sb.append("\n\tUDP: ");
 			if ( udpThreads[i].getDatagramSocket() != null ) sb.append(udpThreads[i].getDatagramSocket().getLocalSocketAddress());
 			else sb.append("Not listening");
 		}
+		sb.append("\n").append(mTCPServer.dumpState());
 		return sb.toString();
 	}
 	
 	/**
-	 * TCPThread is a thread for handling TCP requests to the DataXfer service.
-	 *
+	 * Closes the TCP server sockets and stops its workers.  The UDP threads notice the shutdown flag
+	 * within net.timeout.granularity.
 	 */
-	private class TCPThread extends Thread {
-		private ServerSocket mServerSocket;
-		private String serverIP;
-		private int port;
-		private int xferLength;
+	@Override
+	public void shutdown() {
+		super.shutdown();
+		mTCPServer.shutdown();
+	}
+	
+	/**
+	 * Serves TCP clients of one port: reads and validates the header, then sends xferLength bytes.
+	 */
+	private class TCPHandler implements RawTCPServer.ConnectionHandler {
+		private final long xferLength;
 		
-		/**
-		 * Constructs a new TCPThread on the given IP and port. This constructor does not reserve the
-		 * given port or open a serversocket.
-		 *  
-		 * @param serverIP the IP of this server instance
-		 * @param port the port on which to send the payload
-		 * @param xferLength The amount of data to send
-		 */
-		private TCPThread(String serverIP, int port, int xferLength) {
-			this.serverIP = serverIP;
-			this.port = port;
+		private TCPHandler(long xferLength) {
 			this.xferLength = xferLength;
 		}
 		
-		/**
-		 * Runs the TCP DataXfer service
-		 */
 		@Override
-		public void run() {
-			// Initialize some buffers and server constants
+		public void serve(Socket sock) throws Exception {
 			byte[] header = new byte[4];
-			int socketTimeout = NetBase.theNetBase().config().getAsInt("net.timeout.socket", 5000);
+			InputStream is = sock.getInputStream();
+			SocketChannel channel = sock.getChannel();
 			
-			try {
-				// Create a server socket to listen for client connections
-				mServerSocket = new ServerSocket();
-				mServerSocket.bind(new InetSocketAddress(serverIP, port));
-				mServerSocket.setSoTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.granularity", 500));
-				
-				// Keep checking for the shutdown signal
-				while (!isShutdown()) {
-					Socket sock = null;
-					try {
-						// Block until a client connects
-						sock = mServerSocket.accept();
-						
-						// Establish input and output streams to the client.
-						sock.setSoTimeout(socketTimeout);
-						InputStream is = sock.getInputStream();
-						OutputStream os = sock.getOutputStream();
-						
-						// Read and validate the header.
-						int len = is.read(header);
-						if ( len != HEADER_STR.length() )
-							throw new Exception("Bad header length: got " + len + " but wanted " + HEADER_STR.length());
-						
-						String headerStr = new String(header); 
-						if ( !headerStr.equalsIgnoreCase(HEADER_STR) )
-							throw new Exception("Bad header: got '" + headerStr + "' but wanted '" + HEADER_STR + "'");
-						
-						// Send the response header
-						os.write(RESPONSE_OKAY_STR.getBytes());
-						
-						// Write the appropriate number of bytes
-						byte[] byteBuf = new byte[1];
-						byteBuf[0] = 42; // This byte value is arbitrary
-						for (int i = 0; i < xferLength; i++) {
-							os.write(byteBuf);
-						}
-						
-					} catch (SocketTimeoutException e) {
-						// normal behavior, but we're done with the client we were talking with
-					} catch (Exception e) {
-						Log.i(TAG, "TCP thread caught " + e.getClass().getName() + " exception: " + e.getMessage());
-					} finally {
-						if ( sock != null ) try { sock.close(); sock = null;} catch (Exception e) { /**/ }
-					}
-				}
-			} catch (Exception e) {
-				Log.w(TAG, "TCP server thread exiting due to exception: " + e.getMessage());
-			} finally {
-				if ( mServerSocket != null ) try { mServerSocket.close(); mServerSocket = null; } catch (Exception e) { /**/ }
-			}
-		}
-		
-		/**
-		 * @return the server socket backing this thread.
-		 */
-		public ServerSocket getServerSocket() {
-			return this.mServerSocket;
+			// Read and validate the header.
+			int len = is.read(header);
+			if ( len != HEADER_STR.length() )
+				throw new Exception("Bad header length: got " + len + " but wanted " + HEADER_STR.length());
+			
+			String headerStr = new String(header); 
+			if ( !headerStr.equalsIgnoreCase(HEADER_STR) )
+				throw new Exception("Bad header: got '" + headerStr + "' but wanted '" + HEADER_STR + "'");
+			
+			// Send the response header
+			ByteBuffer okay = ByteBuffer.wrap(RESPONSE_OKAY_BYTES);
+			while ( okay.hasRemaining() ) channel.write(okay);
+			
+			// Write the appropriate number of bytes
+			mPayload.send(channel, xferLength);
 		}
-		
 	}
 	
+	/**
+	 * UDPThread serves UDP requests for one port.  Each request is answered with a sequence of datagrams,
+	 * each the response header followed by up to mPayloadSize bytes of payload, the last one short unless
+	 * xferLength is a multiple of mPayloadSize.  The first four payload bytes of each datagram hold its
+	 * sequence number (big endian, starting at 0), so a client can tell which datagrams were lost.
+	 * <p>
+	 * All the datagrams are sent from one direct buffer, through a DatagramChannel.  Sending can be paced
+	 * with a token bucket, so that a transfer doesn't simply overflow the socket buffers.
+	 */
 	private class UDPThread extends Thread {
 		
-		private static final int PAYLOAD_SIZE = 1000;
-		
-		private DatagramSocket mDatagramSocket;
+		private DatagramChannel mChannel;
 		private String serverIP;
 		private int port;
-		private int xferLength;
+		private long xferLength;
 		
 		/**
 		 * Constructs a new UDPThread on the given IP and port. This constructor does not reserve the
@@ -200,7 +236,7 @@ public class DataXferRawService extends DataXferServiceBase implements NetLoadab
 		 * @param port the port on which to send the data
 		 * @param xferLength The length of the payload to send in total
 		 */
-		private UDPThread(String serverIP, int port, int xferLength) {
+		private UDPThread(String serverIP, int port, long xferLength) {
 			this.serverIP = serverIP;
 			this.port = port;
 			this.xferLength = xferLength;
@@ -211,51 +247,98 @@ public class DataXferRawService extends DataXferServiceBase implements NetLoadab
 		 */
 		@Override
 		public void run() {
-			byte buf[] = new byte[1000 + RESPONSE_OKAY_LEN];
+			ConfigManager config = NetBase.theNetBase().config();
+			int payloadSize = udpPayloadSize(config);
+			int sndBuf = config.getAsInt("dataxferraw.server.udp.sndbuf", 0, 0);
+			long rate = config.getAsInt("dataxferraw.server.udp.rate", 0, 0);
+			// A burst must hold the largest datagram either mode sends
+			int maxDatagram = Math.max(RESPONSE_OKAY_LEN + payloadSize, ReliableUDP.DATA_HEADER_LEN + reliablePayloadSize(config));
+			long burst = config.getAsInt("dataxferraw.server.udp.burst", 64 * 1024, maxDatagram);
+			
+			int reliableWindow = config.getAsInt("dataxferraw.server.reliable.window", 1024, 1);
+			int dropPerMille = config.getAsInt("dataxferraw.server.reliable.droppermille", 0, 0, 1000);
+			int socketTimeout = config.getAsInt("net.timeout.socket", 5000);
+			
+			byte buf[] = new byte[64];
 			DatagramPacket packet = new DatagramPacket(buf, buf.length);
+			
+			// The outgoing datagram, reused for every send.  Only the sequence number and length change.
+			ByteBuffer out = ByteBuffer.allocateDirect(RESPONSE_OKAY_LEN + payloadSize);
+			out.put(RESPONSE_OKAY_BYTES);
+			while ( out.hasRemaining() ) out.put((byte)42);
 
 			//	Thread termination in this code is primitive.  When shutdown() is called (by the
 			//	application's main thread, so asynchronously to the threads just mentioned) it
 			//	closes the sockets.  This causes an exception on any thread trying to read from
 			//	it, which is what provokes thread termination.
 			try {
-				mDatagramSocket = new DatagramSocket(new InetSocketAddress(serverIP, port));
-				mDatagramSocket.setSoTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.granularity", 500));
+				mChannel = DatagramChannel.open();
+				DatagramSocket socket = mChannel.socket();
+				if ( sndBuf > 0 ) socket.setSendBufferSize(sndBuf);
+				socket.bind(new InetSocketAddress(serverIP, port));
+				socket.setSoTimeout(config.getAsInt("net.timeout.granularity", 500));
 				
 				while ( !isShutdown() ) {
 					try {
-						mDatagramSocket.receive(packet);
+						// Requests are read through the socket, which honors the timeout
+						packet.setLength(buf.length);
+						socket.receive(packet);
 						if ( packet.getLength() < HEADER_STR.length() )
 							throw new Exception("Bad header: length = " + packet.getLength());
 						String headerStr = new String( buf, 0, HEADER_STR.length() );
 						if ( ! headerStr.equalsIgnoreCase(HEADER_STR) )
 							throw new Exception("Bad header: got '" + headerStr + "', wanted '" + HEADER_STR + "'");
 						
-						// Set the header and a one byte at the beginning and end of the buffer.
-						System.arraycopy(RESPONSE_OKAY_STR.getBytes(), 0, buf, 0, RESPONSE_OKAY_STR.length());
-						buf[RESPONSE_OKAY_LEN] = (byte)1;
-						buf[buf.length - 1] = (byte)1;
+						TokenBucket pacer = rate > 0 ? new TokenBucket(rate, burst) : null;
+						InetSocketAddress client = (InetSocketAddress)packet.getSocketAddress();
 						
-						for (int i = xferLength; i > 0; i -= PAYLOAD_SIZE) {
-							if (i < PAYLOAD_SIZE) {
-								mDatagramSocket.send( new DatagramPacket(buf, i + RESPONSE_OKAY_LEN, packet.getAddress(), packet.getPort()));
-							} else {
-								mDatagramSocket.send( new DatagramPacket(buf, PAYLOAD_SIZE + RESPONSE_OKAY_LEN, packet.getAddress(), packet.getPort()));
-							}
+						if ( packet.getLength() > HEADER_STR.length() && buf[HEADER_STR.length()] == ReliableUDP.MODE_RELIABLE ) {
+							int window = reliableWindow;
+							if ( packet.getLength() >= HEADER_STR.length() + 5 )
+								window = Math.max(1, Math.min(window, ByteBuffer.wrap(buf).getInt(HEADER_STR.length() + 1)));
+							sendReliable(client, window, pacer, dropPerMille, socketTimeout);
+							continue;
 						}
+						
+						int seq = 0;
+						for (long remaining = xferLength; remaining > 0; remaining -= payloadSize, seq++) {
+							int len = RESPONSE_OKAY_LEN + (int)Math.min(remaining, payloadSize);
+							if ( len >= RESPONSE_OKAY_LEN + 4 ) out.putInt(RESPONSE_OKAY_LEN, seq);
+							out.limit(len).position(0);
+							if ( pacer != null ) pacer.take(len);
+							mChannel.send(out, client);
+						}
+						out.clear();
 					} catch (SocketTimeoutException e) {
 						// socket timeout is normal
 					} catch (Exception e) {
+						if ( isShutdown() ) break;
 						Log.w(TAG,
 								"Dgram reading thread caught "
 										+ e.getClass().getName()
 										+ " exception: " + e.getMessage());
 					}
 				}
-			} catch (SocketException e) {
+			} catch (IOException e) {
 				Log.w(TAG, "UDP server thread exiting due to exception: " + e.getMessage());
 			} finally {
-				if ( mDatagramSocket != null ) { mDatagramSocket.close(); mDatagramSocket = null; }
+				if ( mChannel != null ) { try { mChannel.close(); } catch (IOException e) { /**/ } mChannel = null; }
+			}
+		}
+		
+		/**
+		 * Runs a reliable transfer to client, from a new socket
+		 */
+		private void sendReliable(InetSocketAddress client, int window, TokenBucket pacer, int dropPerMille, int socketTimeout) throws Exception {
+			DatagramChannel session = DatagramChannel.open();
+			try {
+				session.socket().bind(new InetSocketAddress(serverIP, 0));
+				session.connect(client);
+				ReliableUDP.SendStats stats = ReliableUDP.send(session, xferLength, reliablePayloadSize(NetBase.theNetBase().config()),
+															   window, socketTimeout, pacer, dropPerMille);
+				Log.d(TAG, "Reliable transfer to " + client + ": " + stats);
+			} finally {
+				session.close();
 			}
 		}
 		
@@ -263,7 +346,71 @@ public class DataXferRawService extends DataXferServiceBase implements NetLoadab
 		 * @return the datagram socket back this thread.
 		 */
 		public DatagramSocket getDatagramSocket() {
-			return mDatagramSocket;
+			DatagramChannel channel = mChannel;
+			return channel == null ? null : channel.socket();
+		}
+	}
+	
+	/**
+	 * The bytes sent by TCP transfers, prepared once and shared by all the TCP threads.
+	 */
+	private static class Payload {
+		/**
+		 * If a payload file is configured, its channel.  Otherwise null.
+		 */
+		private final FileChannel mFile;
+		private final long mFileSize;
+		
+		/**
+		 * If no payload file is configured, a read-only direct buffer holding the payload.  Otherwise null.
+		 */
+		private final ByteBuffer mBuffer;
+		
+		Payload(ConfigManager config, long maxXferSize) throws IOException {
+			String fileName = config.getProperty("dataxferraw.server.payloadfile");
+			if ( fileName != null && fileName.trim().length() > 0 ) {
+				mFile = new RandomAccessFile(fileName.trim(), "r").getChannel();
+				mFileSize = mFile.size();
+				if ( mFileSize == 0 ) throw new IOException("dataxferraw.server.payloadfile " + fileName + " is empty");
+				mBuffer = null;
+			} else {
+				// No point in a buffer bigger than the largest transfer
+				int size = (int)Math.min(maxXferSize, config.getAsInt("dataxferraw.server.payloadbuffer", 1 << 20, 1));
+				ByteBuffer buf = ByteBuffer.allocateDirect(Math.max(size, 1));
+				while ( buf.hasRemaining() ) buf.put((byte)42); // This byte value is arbitrary
+				buf.flip();
+				mBuffer = buf.asReadOnlyBuffer();
+				mFile = null;
+				mFileSize = 0;
+			}
+		}
+		
+		/**
+		 * Writes length bytes of payload to a blocking channel.
+		 */
+		void send(SocketChannel channel, long length) throws IOException {
+			if ( mFile != null ) {
+				long position = 0;
+				while ( length > 0 ) {
+					long n = mFile.transferTo(position, Math.min(length, mFileSize - position), channel);
+					length -= n;
+					position += n;
+					if ( position == mFileSize ) position = 0;
+				}
+			} else {
+				ByteBuffer buf = mBuffer.duplicate();
+				while ( length > 0 ) {
+					buf.clear();
+					if ( length < buf.capacity() ) buf.limit((int)length);
+					while ( buf.hasRemaining() ) length -= channel.write(buf);
+				}
+			}
+		}
+		
+		@Override
+		public String toString() {
+			if ( mFile != null ) return "file, " + mFileSize + " bytes, sent with transferTo()";
+			return "direct buffer, " + mBuffer.capacity() + " bytes";
 		}
 	}
 }
@@ -61,7 +61,8 @@ public class DataXferTCPMessageHandlerService extends DataXferServiceBase implem
 
                                 int size = msg.getInt(TRANSFER_SIZE_KEY);
 
-                                // Send the header.
+                                // Send the header, and the data, coalesced into as few writes as the buffer allows
+                                tcpMessageHandlerSocket.setCoalescing(true);
                                 tcpMessageHandlerSocket.sendMessage(DataXferServiceBase.RESPONSE_OKAY_BYTES);
                                 byte[] maxBytes = new byte[MAX_SIZE];
                                 for (int i = 0; i < size / MAX_SIZE; i++) {
@@ -71,6 +72,7 @@ public class DataXferTCPMessageHandlerService extends DataXferServiceBase implem
                                     byte[] minBytes = new byte[size % MAX_SIZE];
                                     tcpMessageHandlerSocket.sendMessage(minBytes);
                                 }
+                                tcpMessageHandlerSocket.flush();
                             } catch (SocketTimeoutException e) {
                                 Log.e(TAG, "Timed out waiting for data on tcp connection");
                             } catch (EOFException e) {
@@ -7,6 +7,7 @@ import org.json.JSONObject;
 
 import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.net.rpc.RPCCallableMethod;
+import edu.uw.cs.cse461.net.rpc.RPCHandler;
 import edu.uw.cs.cse461.net.rpc.RPCService;
 
 /**
@@ -28,6 +29,8 @@ import edu.uw.cs.cse461.net.rpc.RPCService;
  * This means that when an incoming RPC specifies service "echo" (the 1st argument) and method "echo" (the 2nd), that
  * the method described by RPCCallableMethod variable <tt>echo</tt> should be invoked.
  * </ol>
+ * Alternatively, the RPCCallableMethod can be built from an RPCHandler, code that calls the method directly, rather
+ * than from the method's name. That's what this class does, as echo is the call the ping apps make.
  * 
  * @author zahorjan
  * 
@@ -58,8 +61,13 @@ public class EchoRPCService extends EchoServiceBase {
     public EchoRPCService() throws Exception {
         super("echorpc");
 
-        // Set up the method descriptor variable to refer to this->_echo()
-        echo = new RPCCallableMethod(this, "_echo");
+        // Set up the method descriptor variable to call this->_echo()
+        echo = new RPCCallableMethod(new RPCHandler() {
+            @Override
+            public Object handleCall(JSONObject args) throws Exception {
+                return _echo(args);
+            }
+        });
         // Register the method with the RPC service as externally invocable method "echo"
         ((RPCService) NetBase.theNetBase().getService("rpc")).registerHandler(loadablename(), "echo", echo);
     }
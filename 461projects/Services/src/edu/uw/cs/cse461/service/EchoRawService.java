@@ -21,6 +21,7 @@ import edu.uw.cs.cse461.util.Log;
 public class EchoRawService extends EchoServiceBase  {
 	private static final String TAG="EchoRawService";
 	
+	private RawTCPServer mTCPServer;
 	private ServerSocket mServerSocket;
 	private DatagramSocket mDatagramSocket;
 	
@@ -28,9 +29,9 @@ public class EchoRawService extends EchoServiceBase  {
 	 * A NetLoadableService must provide a public constructor taking no arguments.
 	 * <p>
 	 * This service must listen to both a UDP and a TCP port.  It creates sockets
-	 * bound to those ports in this constructor.  It also creates a thread per socket -
-	 * the thread blocks trying to receive data on its socket, and when it does,
-	 * echoes back whatever it receives. 
+	 * bound to those ports in this constructor.  A thread blocks trying to receive
+	 * datagrams on the UDP socket, and echoes back whatever it receives.  TCP connections
+	 * are handed to a RawTCPServer, which echoes on several connections at once.
 	 * @throws Exception
 	 */
 	public EchoRawService() throws Exception {
@@ -48,14 +49,11 @@ public class EchoRawService extends EchoServiceBase  {
 		// Instead, ephemeral ports are used.  (You can run the dumpservericestate application
 		// to see ports are actually allocated.)
 				
-		mServerSocket = new ServerSocket();
-		mServerSocket.bind(new InetSocketAddress(serverIP, 0));
-		mServerSocket.setSoTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.granularity", 500));
+		mTCPServer = new RawTCPServer(loadablename());
 		
 		mDatagramSocket = new DatagramSocket(new InetSocketAddress(serverIP, 0));
 		mDatagramSocket.setSoTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.granularity", 500));
 		
-		Log.i(TAG,  "Server socket = " + mServerSocket.getLocalSocketAddress());
 		Log.i(TAG,  "Datagram socket = " + mDatagramSocket.getLocalSocketAddress());
 		
 		// Code/thread handling the UDP socket
@@ -92,55 +90,29 @@ public class EchoRawService extends EchoServiceBase  {
 		};
 		dgramThread.start();
 		
-		// Code/thread handling the TCP socket
-		Thread tcpThread = new Thread() {
-
-			public void run() {
+		// TCP clients are served concurrently, by the RawTCPServer's worker pool
+		mServerSocket = mTCPServer.listen(serverIP, 0, new RawTCPServer.ConnectionHandler() {
+			public void serve(Socket sock) throws Exception {
 				byte[] header = new byte[4];
 				byte[] buf = new byte[1024];
-				int socketTimeout = NetBase.theNetBase().config().getAsInt("net.timeout.socket", 5000);
-				try {
-					while ( !isShutdown() ) {
-						Socket sock = null;
-						try {
-							// accept() blocks until a client connects.  When it does, a new socket is created that communicates only
-							// with that client.  That socket is returned.
-							sock = mServerSocket.accept();
-							// We're going to read from sock, to get the message to echo, but we can't risk a client mistake
-							// blocking us forever.  So, arrange for the socket to give up if no data arrives for a while.
-							sock.setSoTimeout(socketTimeout);
-							InputStream is = sock.getInputStream();
-							OutputStream os = sock.getOutputStream();
-							// Read the header.  Either it gets here in one chunk or we ignore it.  (That's not exactly the
-							// spec, admittedly.)
-							int len = is.read(header);
-							if ( len != HEADER_STR.length() )
-								throw new Exception("Bad header length: got " + len + " but wanted " + HEADER_STR.length());
-							String headerStr = new String(header); 
-							if ( !headerStr.equalsIgnoreCase(HEADER_STR) )
-								throw new Exception("Bad header: got '" + headerStr + "' but wanted '" + HEADER_STR + "'");
-							os.write(RESPONSE_OKAY_STR.getBytes());
-							
-							// Now read and echo the payload.
-							// Keep reading until the client has closed its side of the connection
-							while ( (len = is.read(buf)) >= 0 ) os.write(buf, 0, len);
-							
-						} catch (SocketTimeoutException e) {
-							// normal behavior, but we're done with the client we were talking with
-						} catch (Exception e) {
-							Log.i(TAG, "TCP thread caught " + e.getClass().getName() + " exception: " + e.getMessage());
-						} finally {
-							if ( sock != null ) try { sock.close(); sock = null;} catch (Exception e) {}
-						}
-					}
-				} catch (Exception e) {
-					Log.w(TAG, "TCP server thread exiting due to exception: " + e.getMessage());
-				} finally {
-					if ( mServerSocket != null ) try { mServerSocket.close(); mServerSocket = null; } catch (Exception e) {}
-				}
+				InputStream is = sock.getInputStream();
+				OutputStream os = sock.getOutputStream();
+				// Read the header.  Either it gets here in one chunk or we ignore it.  (That's not exactly the
+				// spec, admittedly.)
+				int len = is.read(header);
+				if ( len != HEADER_STR.length() )
+					throw new Exception("Bad header length: got " + len + " but wanted " + HEADER_STR.length());
+				String headerStr = new String(header); 
+				if ( !headerStr.equalsIgnoreCase(HEADER_STR) )
+					throw new Exception("Bad header: got '" + headerStr + "' but wanted '" + HEADER_STR + "'");
+				os.write(RESPONSE_OKAY_STR.getBytes());
+				
+				// Now read and echo the payload.
+				// Keep reading until the client has closed its side of the connection
+				while ( (len = is.read(buf)) >= 0 ) os.write(buf, 0, len);
 			}
-		};
-		tcpThread.start();
+		});
+		Log.i(TAG,  "Server socket = " + mServerSocket.getLocalSocketAddress());
 	}
 
 	
@@ -155,6 +127,7 @@ public class EchoRawService extends EchoServiceBase  {
 	@Override
 	public void shutdown() {
 		super.shutdown();
+		mTCPServer.shutdown();
 		Log.d(TAG, "Shutting down");
 	}
 	
@@ -166,11 +139,12 @@ public class EchoRawService extends EchoServiceBase  {
 	public String dumpState() {
 		StringBuilder sb = new StringBuilder(super.dumpState());
 		sb.append("\nListening on:\n\tTCP: ");
-		if ( mServerSocket != null ) sb.append(mServerSocket.toString());
+		if ( !mServerSocket.isClosed() ) sb.append(mServerSocket.toString());
 		else sb.append("Not listening");
 		sb.append("\n\tUDP: ");
 		if ( mDatagramSocket != null ) sb.append(mDatagramSocket.getLocalSocketAddress());
 		else sb.append("Not listening");
+		sb.append("\n").append(mTCPServer.dumpState());
 		return sb.toString();
 	}
 
@@ -0,0 +1,199 @@
+package edu.uw.cs.cse461.service;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.uw.cs.cse461.net.base.NetBase;
+import edu.uw.cs.cse461.util.ConfigManager;
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * The TCP side of the raw services.  Each listening socket gets an accept thread, which hands the connections
+ * it accepts to a bounded pool of worker threads, shared by all the service's sockets.  A worker serves one
+ * connection at a time, so a slow or stalled client ties up only its own worker, not the whole service.
+ * <p>
+ * Accepted connections wait in a queue until a worker is free.  The total number of connections admitted
+ * (being served or queued) is limited; connections beyond the limit are closed as soon as they're accepted.
+ * Both limits come from the config file, prefixed with the service's name:
+ * <pre>
+ *   &lt;name&gt;.server.workers         number of worker threads (default 64)
+ *   &lt;name&gt;.server.maxconnections  admission limit (default 512)
+ * </pre>
+ * Accepted sockets are channel-backed, and have their read timeout set to net.timeout.socket.
+ */
+public class RawTCPServer {
+	private static final String TAG="RawTCPServer";
+
+	/**
+	 * What a service does with each connection.
+	 */
+	public interface ConnectionHandler {
+		/**
+		 * Serves one client.  Runs on a worker thread.  The socket is closed when this returns or throws.
+		 * A SocketTimeoutException is taken as normal termination.
+		 */
+		public void serve(Socket sock) throws Exception;
+	}
+
+	private final String mName;
+	private final int mMaxConnections;
+	private final int mSocketTimeout;
+	private final int mAcceptTimeout;
+	private final ThreadPoolExecutor mWorkers;
+	private final List<ServerSocket> mServerSockets = new ArrayList<ServerSocket>();
+	private volatile boolean mAmShutdown = false;
+
+	// Statistics reported by dumpState()
+	private final AtomicInteger mAdmitted = new AtomicInteger();
+	private final AtomicInteger mPeakQueued = new AtomicInteger();
+	private final AtomicLong mServed = new AtomicLong();
+	private final AtomicLong mRejected = new AtomicLong();
+
+	/**
+	 * @param name The service's loadable name, used as the config entry prefix and to name threads.
+	 */
+	public RawTCPServer(String name) {
+		mName = name;
+		ConfigManager config = NetBase.theNetBase().config();
+		int workers = config.getAsInt(name + ".server.workers", 64, 1);
+		mMaxConnections = config.getAsInt(name + ".server.maxconnections", 512, 1);
+		mSocketTimeout = config.getAsInt("net.timeout.socket", 5000);
+		mAcceptTimeout = config.getAsInt("net.timeout.granularity", 500);
+
+		// The queue needn't be bounded: admission control keeps it under mMaxConnections
+		mWorkers = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+										  new LinkedBlockingQueue<Runnable>(), new WorkerThreadFactory());
+	}
+
+	/**
+	 * Binds a server socket to ip:port (port 0 for an ephemeral port) and starts accepting connections on it.
+	 * @return The bound server socket
+	 */
+	public ServerSocket listen(String ip, int port, final ConnectionHandler handler) throws Exception {
+		final ServerSocket serverSocket = ServerSocketChannel.open().socket();
+		serverSocket.bind(new InetSocketAddress(ip, port));
+		serverSocket.setSoTimeout(mAcceptTimeout);
+		synchronized (mServerSockets) {
+			mServerSockets.add(serverSocket);
+		}
+
+		Thread acceptThread = new Thread(mName + "-accept-" + serverSocket.getLocalPort()) {
+			@Override
+			public void run() {
+				try {
+					while ( !mAmShutdown ) {
+						Socket sock;
+						try {
+							sock = serverSocket.accept();
+						} catch (SocketTimeoutException e) {
+							continue;  // normal; lets us check for shutdown
+						}
+						admit(sock, handler);
+					}
+				} catch (Exception e) {
+					if ( !mAmShutdown ) Log.w(TAG, mName + " accept thread exiting due to exception: " + e.getMessage());
+				} finally {
+					try { serverSocket.close(); } catch (Exception e) { /**/ }
+				}
+			}
+		};
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+		return serverSocket;
+	}
+
+	/**
+	 * Queues a newly accepted connection for a worker, or closes it if the admission limit has been reached.
+	 */
+	private void admit(final Socket sock, final ConnectionHandler handler) {
+		if ( mAdmitted.incrementAndGet() > mMaxConnections ) {
+			mAdmitted.decrementAndGet();
+			mRejected.incrementAndGet();
+			try { sock.close(); } catch (Exception e) { /**/ }
+			return;
+		}
+
+		try {
+			mWorkers.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						sock.setSoTimeout(mSocketTimeout);
+						handler.serve(sock);
+					} catch (SocketTimeoutException e) {
+						// normal behavior, but we're done with the client we were talking with
+					} catch (Exception e) {
+						Log.i(TAG, mName + " worker caught " + e.getClass().getName() + " exception: " + e.getMessage());
+					} finally {
+						try { sock.close(); } catch (Exception e) { /**/ }
+						mServed.incrementAndGet();
+						mAdmitted.decrementAndGet();
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			// The pool has been shut down
+			mAdmitted.decrementAndGet();
+			try { sock.close(); } catch (Exception e2) { /**/ }
+			return;
+		}
+
+		int queued = mWorkers.getQueue().size();
+		int peak;
+		while ( queued > (peak = mPeakQueued.get()) && !mPeakQueued.compareAndSet(peak, queued) ) ;
+	}
+
+	/**
+	 * Closes the server sockets and stops the workers.  Connections already being served are allowed to finish.
+	 */
+	public void shutdown() {
+		mAmShutdown = true;
+		synchronized (mServerSockets) {
+			for (ServerSocket serverSocket : mServerSockets) {
+				try { serverSocket.close(); } catch (Exception e) { /**/ }
+			}
+		}
+		mWorkers.shutdown();
+	}
+
+	/**
+	 * Returns the number of admitted connections waiting for a worker.
+	 */
+	public int queueDepth() {
+		return mWorkers.getQueue().size();
+	}
+
+	public String dumpState() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("TCP workers: ").append(mWorkers.getActiveCount()).append(" busy of ").append(mWorkers.getMaximumPoolSize());
+		sb.append("\nTCP connections: ").append(mAdmitted.get()).append(" admitted (limit ").append(mMaxConnections).append("), ");
+		sb.append(queueDepth()).append(" queued (peak ").append(mPeakQueued.get()).append("), ");
+		sb.append(mServed.get()).append(" served, ").append(mRejected.get()).append(" rejected");
+		return sb.toString();
+	}
+
+	/**
+	 * Names the worker threads, and makes them daemons so they don't hold up process exit
+	 */
+	private class WorkerThreadFactory implements ThreadFactory {
+		private final AtomicInteger mNextId = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, mName + "-worker-" + mNextId.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,352 @@
+package edu.uw.cs.cse461.service;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.BitSet;
+import java.util.Random;
+
+import edu.uw.cs.cse461.util.TokenBucket;
+
+/**
+ * The reliable UDP transfer protocol used by DataXferRawService's reliable mode.
+ * <p>
+ * A client asks for a reliable transfer by sending the usual request header to a DataXferRaw UDP port, followed by
+ * MODE_RELIABLE and its receive window (an int, in datagrams).  The server answers from a new socket, bound to an
+ * ephemeral port, which is used for the rest of the transfer; the client sends its acks to wherever the data comes from.
+ * All integers are big endian.
+ * <pre>
+ *   DATA  type (1 byte: TYPE_DATA), seq (int), count (int), payload
+ *   ACK   type (1 byte: TYPE_ACK), cumulative ack (int), window (int), sack bitmap
+ * </pre>
+ * Data datagrams are numbered from 0 to count-1.  Each carries payloadSize bytes, except perhaps the last.
+ * <p>
+ * The cumulative ack is the lowest sequence number not yet received.  Bit i of the bitmap (low order bit of its
+ * first byte first) is set if datagram cumulative ack + 1 + i has been received.  The bitmap is at most MAX_SACK_BYTES
+ * long, and is trimmed after the highest datagram received.  The receiver acks every ACK_EVERY datagrams, at once when a
+ * datagram arrives out of order, and ACK_DELAY msec. after the last datagram if it hasn't acked it yet.  It acks the
+ * final datagram ACK_FINAL_COPIES times, as nothing acks its ack.
+ * <p>
+ * The sender keeps up to window datagrams beyond the cumulative ack in flight, where window is the smaller of its own
+ * limit and the receiver's advertised window.  A datagram is resent when it hasn't been acked within the retransmission
+ * timeout, estimated from round trip times as TCP does, or, the first time only, as soon as a datagram DUP_THRESHOLD
+ * or more past it has been acked.  There is no congestion control; the sender can be paced with a TokenBucket instead.
+ * <p>
+ * The receiver's window is the smaller of what its caller asks for and what its socket's receive buffer can hold,
+ * reckoning RCVBUF_OVERHEAD bytes of kernel bookkeeping per datagram.  A bigger window would just overflow the buffer.
+ */
+public class ReliableUDP {
+	/**
+	 * Follows the request header to ask for a reliable transfer
+	 */
+	public static final byte MODE_RELIABLE = 'R';
+
+	private static final byte TYPE_DATA = 1;
+	private static final byte TYPE_ACK = 2;
+
+	public static final int DATA_HEADER_LEN = 9;
+	private static final int ACK_HEADER_LEN = 9;
+	private static final int MAX_SACK_BYTES = 128;
+
+	private static final int ACK_EVERY = 8;
+	private static final int ACK_DELAY = 5;
+	private static final int ACK_FINAL_COPIES = 3;
+	private static final int DUP_THRESHOLD = 3;
+	private static final int RCVBUF_OVERHEAD = 1024;
+
+	private static final int INITIAL_RTO = 200;		// msec
+	private static final int MIN_RTO = 2 * ACK_DELAY;	// so delayed acks aren't taken for losses
+	private static final int MAX_RTO = 2000;
+
+	/**
+	 * Returns the number of datagrams a transfer of length bytes takes.
+	 */
+	public static int datagramCount(long length, int payloadSize) throws IOException {
+		long count = (length + payloadSize - 1) / payloadSize;
+		if ( count > Integer.MAX_VALUE ) throw new IOException("Transfer of " + length + " bytes needs too many datagrams");
+		return (int)count;
+	}
+
+	//---------------------------------------------------------------------------------------------------
+	// Sender
+	//---------------------------------------------------------------------------------------------------
+
+	/**
+	 * What a send() did, for logging
+	 */
+	public static class SendStats {
+		public int datagrams;
+		public int sent;
+		public int retransmitted;
+		public int timeouts;
+		public int rtoMsec;
+
+		@Override
+		public String toString() {
+			return datagrams + " datagrams, " + sent + " sent, " + retransmitted + " retransmitted (" + timeouts + " timeouts), final RTO " + rtoMsec + " msec";
+		}
+	}
+
+	/**
+	 * Sends length bytes of payload over a channel connected to the receiver.  Returns when the receiver has
+	 * acked everything.
+	 * @param channel A channel connected to the receiver.  It's put into non-blocking mode.
+	 * @param length The number of bytes to send
+	 * @param payloadSize Payload bytes per datagram.  At most MAX_DATAGRAM - DATA_HEADER_LEN.
+	 * @param window The most datagrams to have outstanding.  Further limited by the receiver's window.
+	 * @param timeout If nothing is heard from the receiver for this long (msec.), a SocketTimeoutException is thrown.
+	 * @param pacer If not null, paces the sending of datagrams.
+	 * @param dropPerMille Simulates loss: this many datagrams per thousand are dropped instead of sent.
+	 */
+	public static SendStats send(DatagramChannel channel, long length, int payloadSize, int window, int timeout,
+								 TokenBucket pacer, int dropPerMille) throws IOException, InterruptedException {
+		SendStats stats = new SendStats();
+		int count = datagramCount(length, payloadSize);
+		stats.datagrams = count;
+
+		ByteBuffer out = ByteBuffer.allocateDirect(DATA_HEADER_LEN + payloadSize);
+		out.put(TYPE_DATA).putInt(0).putInt(count);
+		while ( out.hasRemaining() ) out.put((byte)42);	// This byte value is arbitrary
+		ByteBuffer in = ByteBuffer.allocateDirect(ACK_HEADER_LEN + MAX_SACK_BYTES);
+		Random random = dropPerMille > 0 ? new Random() : null;
+
+		// Datagrams [cumAck, next) have been sent.  Only those can be outstanding, so their send
+		// times and transmission counts are kept in rings indexed by seq % window.
+		BitSet acked = new BitSet(count);
+		int cumAck = 0;
+		int next = 0;
+		int highestAcked = -1;
+		int peerWindow = window;
+		long[] sentAt = new long[window];
+		int[] transmissions = new int[window];
+
+		// The retransmission timeout is rto, doubled for each consecutive timeout without an ack making progress
+		double srtt = -1;
+		double rttvar = 0;
+		long baseRto = INITIAL_RTO;
+		int backoff = 0;
+		long lastHeard = System.currentTimeMillis();
+
+		Selector selector = Selector.open();
+		Selector writeSelector = Selector.open();
+		try {
+			channel.configureBlocking(false);
+			channel.register(selector, SelectionKey.OP_READ);
+			channel.register(writeSelector, SelectionKey.OP_WRITE);
+
+			while ( cumAck < count ) {
+				long now = System.currentTimeMillis();
+				long rto = Math.min(MAX_RTO, baseRto << backoff);
+				long nextDeadline = now + rto;
+				boolean timeoutSeen = false;
+
+				// Retransmit whatever has timed out, or looks lost because later datagrams have been acked
+				for (int seq = cumAck; seq < next; seq++) {
+					if ( acked.get(seq) ) continue;
+					int slot = seq % window;
+					long age = now - sentAt[slot];
+					boolean timedOut = age >= rto;
+					boolean fastRetransmit = transmissions[slot] == 1 && highestAcked >= seq + DUP_THRESHOLD;
+					if ( timedOut || fastRetransmit ) {
+						if ( timedOut ) stats.timeouts++;
+						stats.retransmitted++;
+						sendData(channel, writeSelector, out, seq, count, length, payloadSize, pacer, random, dropPerMille);
+						stats.sent++;
+						sentAt[slot] = System.currentTimeMillis();
+						transmissions[slot]++;
+						timeoutSeen |= timedOut;
+					}
+					nextDeadline = Math.min(nextDeadline, sentAt[slot] + rto);
+				}
+				if ( timeoutSeen && (baseRto << backoff) < MAX_RTO ) backoff++;
+
+				// Fill the window with new datagrams
+				int limit = Math.min(window, peerWindow);
+				while ( next < count && next - cumAck < limit ) {
+					sendData(channel, writeSelector, out, next, count, length, payloadSize, pacer, random, dropPerMille);
+					stats.sent++;
+					int slot = next % window;
+					sentAt[slot] = System.currentTimeMillis();
+					transmissions[slot] = 1;
+					next++;
+				}
+
+				// Wait for acks
+				long wait = Math.max(1, nextDeadline - System.currentTimeMillis());
+				selector.select(wait);
+				selector.selectedKeys().clear();
+
+				while ( true ) {
+					in.clear();
+					if ( channel.receive(in) == null ) break;
+					in.flip();
+					if ( in.remaining() < ACK_HEADER_LEN || in.get() != TYPE_ACK ) continue;
+					now = System.currentTimeMillis();
+					lastHeard = now;
+					int ackedThrough = in.getInt();
+					peerWindow = Math.max(1, in.getInt());
+
+					// Everything below the cumulative ack, then what the bitmap says
+					for (int seq = cumAck; seq < ackedThrough && seq < next; seq++) {
+						if ( acked.get(seq) ) continue;
+						acked.set(seq);
+						int slot = seq % window;
+						if ( transmissions[slot] == 1 ) {
+							// Karn: only unambiguous samples
+							double sample = now - sentAt[slot];
+							if ( srtt < 0 ) { srtt = sample; rttvar = sample / 2; }
+							else { rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - sample); srtt = 0.875 * srtt + 0.125 * sample; }
+							baseRto = Math.max(MIN_RTO, Math.min(MAX_RTO, (long)Math.ceil(srtt + 4 * rttvar)));
+						}
+					}
+					if ( ackedThrough > cumAck ) backoff = 0;
+					int base = ackedThrough + 1;
+					for (int b = 0; in.hasRemaining(); b++) {
+						int bits = in.get() & 0xff;
+						for (int i = 0; bits != 0; i++, bits >>>= 1) {
+							if ( (bits & 1) == 0 ) continue;
+							int seq = base + 8 * b + i;
+							if ( seq >= next ) break;
+							if ( !acked.get(seq) ) backoff = 0;
+							acked.set(seq);
+							highestAcked = Math.max(highestAcked, seq);
+						}
+					}
+					highestAcked = Math.max(highestAcked, ackedThrough - 1);
+					while ( cumAck < next && acked.get(cumAck) ) cumAck++;
+				}
+
+				if ( System.currentTimeMillis() - lastHeard > timeout )
+					throw new SocketTimeoutException("Reliable UDP receiver stopped acking at " + cumAck + " of " + count);
+			}
+		} finally {
+			selector.close();
+			writeSelector.close();
+		}
+		stats.rtoMsec = (int)baseRto;
+		return stats;
+	}
+
+	private static void sendData(DatagramChannel channel, Selector writeSelector, ByteBuffer out, int seq, int count, long length, int payloadSize,
+								 TokenBucket pacer, Random random, int dropPerMille) throws IOException, InterruptedException {
+		int len = DATA_HEADER_LEN + (int)Math.min(payloadSize, length - (long)seq * payloadSize);
+		if ( pacer != null ) pacer.take(len);
+		if ( random != null && random.nextInt(1000) < dropPerMille ) return;
+		out.putInt(1, seq);
+		out.limit(len).position(0);
+		// The channel is non-blocking, so wait out a full socket buffer
+		while ( channel.write(out) == 0 ) {
+			writeSelector.select(MAX_RTO);
+			writeSelector.selectedKeys().clear();
+		}
+		out.clear();
+	}
+
+	//---------------------------------------------------------------------------------------------------
+	// Receiver
+	//---------------------------------------------------------------------------------------------------
+
+	/**
+	 * Requests a reliable transfer of length bytes from a DataXferRaw UDP port, and receives it.
+	 * @param header The request header
+	 * @param server The server's UDP port
+	 * @param length The length of the transfer the port sends
+	 * @param payloadSize Payload bytes per datagram.  Must match the server's.
+	 * @param window The receive window to advertise, in datagrams
+	 * @param timeout If nothing arrives for this long (msec.), a SocketTimeoutException is thrown.
+	 * @param dest If not null, the payload is stored here.  Otherwise it's just counted.
+	 * @param rcvBuf SO_RCVBUF for the receiving socket, or 0 for the default
+	 * @return The number of payload bytes received
+	 */
+	public static long receive(byte[] header, InetSocketAddress server, long length, int payloadSize, int window,
+							   int timeout, byte[] dest, int rcvBuf) throws IOException {
+		int count = datagramCount(length, payloadSize);
+		BitSet received = new BitSet(count);
+		int cumAck = 0;
+		int highest = -1;
+		int unacked = 0;
+		long bytes = 0;
+
+		DatagramSocket socket = new DatagramSocket();
+		try {
+			if ( rcvBuf > 0 ) socket.setReceiveBufferSize(rcvBuf);
+			socket.setSoTimeout(ACK_DELAY);
+			window = Math.max(1, Math.min(window, socket.getReceiveBufferSize() / (DATA_HEADER_LEN + payloadSize + RCVBUF_OVERHEAD)));
+
+			ByteBuffer request = ByteBuffer.allocate(header.length + 5);
+			request.put(header).put(MODE_RELIABLE).putInt(window);
+			socket.send(new DatagramPacket(request.array(), request.capacity(), server));
+
+			byte[] buf = new byte[DATA_HEADER_LEN + payloadSize];
+			DatagramPacket packet = new DatagramPacket(buf, buf.length);
+			ByteBuffer bufBB = ByteBuffer.wrap(buf);
+			byte[] ackBuf = new byte[ACK_HEADER_LEN + MAX_SACK_BYTES];
+			SocketAddress sender = null;
+			long lastHeard = System.currentTimeMillis();
+
+			while ( cumAck < count ) {
+				try {
+					packet.setLength(buf.length);
+					socket.receive(packet);
+				} catch (SocketTimeoutException e) {
+					if ( System.currentTimeMillis() - lastHeard > timeout )
+						throw new SocketTimeoutException("Reliable UDP transfer stalled at " + cumAck + " of " + count);
+					if ( unacked > 0 ) {
+						sendAck(socket, sender, ackBuf, received, cumAck, highest, window);
+						unacked = 0;
+					}
+					continue;
+				}
+				if ( packet.getLength() < DATA_HEADER_LEN || buf[0] != TYPE_DATA ) continue;
+				if ( sender == null ) sender = packet.getSocketAddress();
+				else if ( !sender.equals(packet.getSocketAddress()) ) continue;
+				lastHeard = System.currentTimeMillis();
+
+				int seq = bufBB.getInt(1);
+				if ( bufBB.getInt(5) != count || seq < 0 || seq >= count )
+					throw new IOException("Reliable UDP datagram " + seq + " of " + bufBB.getInt(5) + " doesn't match a transfer of " + count);
+				boolean inOrder = seq == cumAck;
+				if ( !received.get(seq) ) {
+					received.set(seq);
+					int payloadLen = packet.getLength() - DATA_HEADER_LEN;
+					if ( dest != null ) System.arraycopy(buf, DATA_HEADER_LEN, dest, seq * payloadSize, payloadLen);
+					bytes += payloadLen;
+					highest = Math.max(highest, seq);
+					while ( cumAck < count && received.get(cumAck) ) cumAck++;
+				}
+				unacked++;
+				if ( !inOrder || unacked >= ACK_EVERY || cumAck == count ) {
+					sendAck(socket, sender, ackBuf, received, cumAck, highest, window);
+					unacked = 0;
+				}
+			}
+			for (int i = 1; i < ACK_FINAL_COPIES; i++) sendAck(socket, sender, ackBuf, received, cumAck, highest, window);
+		} finally {
+			socket.close();
+		}
+		return bytes;
+	}
+
+	private static void sendAck(DatagramSocket socket, SocketAddress sender, byte[] ackBuf, BitSet received, int cumAck,
+								int highest, int window) throws IOException {
+		ByteBuffer ack = ByteBuffer.wrap(ackBuf);
+		ack.put(TYPE_ACK).putInt(cumAck).putInt(window);
+		int base = cumAck + 1;
+		int nBits = Math.min(MAX_SACK_BYTES * 8, highest - base + 1);
+		for (int b = 0; b * 8 < nBits; b++) {
+			int bits = 0;
+			for (int i = 0; i < 8 && b * 8 + i < nBits; i++) {
+				if ( received.get(base + b * 8 + i) ) bits |= 1 << i;
+			}
+			ack.put((byte)bits);
+		}
+		socket.send(new DatagramPacket(ackBuf, ack.position(), sender));
+	}
+}
@@ -0,0 +1,144 @@
+package edu.uw.cs.cse461.util;
+
+/**
+ * A log-bucketed histogram of non-negative long values (typically latencies in nanoseconds), in the style of
+ * HdrHistogram.  Values below 2^SUB_BITS get a bucket each.  Above that, each power of two range is split into
+ * 2^(SUB_BITS-1) equal buckets, so any value is recorded to within about 1.6% of itself, in a fixed, small array.
+ * Values of 2^MAX_BITS and more (about 73 minutes, in nsec.) are counted in the top bucket.
+ * <p>
+ * Histograms are plain data, and aren't thread safe.  LatencyRecorder records concurrently, and produces these as
+ * snapshots.  Histograms can be added, and an earlier snapshot subtracted from a later one to get the histogram of
+ * the values recorded in between, so intervals can be measured without ever resetting the recorder.
+ */
+public class Histogram {
+	static final int SUB_BITS = 6;
+	static final int MAX_BITS = 42;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int HALF_COUNT = SUB_COUNT / 2;
+
+	/**
+	 * The number of buckets
+	 */
+	static final int BUCKETS = SUB_COUNT + (MAX_BITS - SUB_BITS) * HALF_COUNT;
+
+	final long[] mCounts;
+	long mCount;
+	long mSum;
+	long mMin = Long.MAX_VALUE;
+	long mMax = Long.MIN_VALUE;
+
+	public Histogram() {
+		mCounts = new long[BUCKETS];
+	}
+
+	/**
+	 * Returns the index of the bucket that counts value.
+	 */
+	static int bucket(long value) {
+		if ( value < SUB_COUNT ) return value < 0 ? 0 : (int)value;
+		int msb = 63 - Long.numberOfLeadingZeros(value);
+		if ( msb >= MAX_BITS ) return BUCKETS - 1;
+		int shift = msb - SUB_BITS + 1;
+		// (value >>> shift) is in [HALF_COUNT, SUB_COUNT)
+		return SUB_COUNT + (shift - 1) * HALF_COUNT + (int)(value >>> shift) - HALF_COUNT;
+	}
+
+	/**
+	 * Returns the lowest value counted by bucket i.
+	 */
+	static long bucketLow(int i) {
+		if ( i < SUB_COUNT ) return i;
+		int shift = (i - SUB_COUNT) / HALF_COUNT + 1;
+		long sub = (i - SUB_COUNT) % HALF_COUNT + HALF_COUNT;
+		return sub << shift;
+	}
+
+	/**
+	 * Returns a value representative of bucket i: the middle of its range.
+	 */
+	static long bucketMid(int i) {
+		if ( i < SUB_COUNT ) return i;
+		int shift = (i - SUB_COUNT) / HALF_COUNT + 1;
+		return bucketLow(i) + (1L << (shift - 1));
+	}
+
+	public void record(long value) {
+		mCounts[bucket(value)]++;
+		mCount++;
+		mSum += value;
+		if ( value < mMin ) mMin = value;
+		if ( value > mMax ) mMax = value;
+	}
+
+	/**
+	 * Adds other's values to this histogram.
+	 */
+	public void add(Histogram other) {
+		for (int i = 0; i < BUCKETS; i++) mCounts[i] += other.mCounts[i];
+		mCount += other.mCount;
+		mSum += other.mSum;
+		mMin = Math.min(mMin, other.mMin);
+		mMax = Math.max(mMax, other.mMax);
+	}
+
+	/**
+	 * Returns the histogram of the values in this one that aren't in earlier, an older snapshot of the same
+	 * recorder.  The min and max are only as exact as the buckets: they're those of the lowest and highest
+	 * non-empty bucket, clamped to this histogram's min and max.
+	 */
+	public Histogram minus(Histogram earlier) {
+		Histogram result = new Histogram();
+		int lo = -1, hi = -1;
+		for (int i = 0; i < BUCKETS; i++) {
+			long c = mCounts[i] - earlier.mCounts[i];
+			result.mCounts[i] = c;
+			if ( c > 0 ) {
+				if ( lo < 0 ) lo = i;
+				hi = i;
+			}
+		}
+		result.mCount = mCount - earlier.mCount;
+		result.mSum = mSum - earlier.mSum;
+		if ( lo >= 0 ) {
+			result.mMin = Math.max(mMin, bucketLow(lo));
+			result.mMax = hi == BUCKETS - 1 ? mMax : Math.min(mMax, bucketLow(hi + 1) - 1);
+		}
+		return result;
+	}
+
+	public long count() { return mCount; }
+	public long sum() { return mSum; }
+	public long min() { return mCount > 0 ? mMin : 0; }
+	public long max() { return mCount > 0 ? mMax : 0; }
+	public double mean() { return mCount > 0 ? (double)mSum / mCount : 0.0; }
+
+	/**
+	 * Returns (an approximation of) the value below which the given percentage of the recorded values fall.
+	 * @param percentile In [0, 100], e.g. 99.9
+	 */
+	public long percentile(double percentile) {
+		if ( mCount == 0 ) return 0;
+		long rank = (long)Math.ceil(percentile / 100.0 * mCount);
+		if ( rank < 1 ) rank = 1;
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += mCounts[i];
+			if ( seen >= rank ) return Math.max(mMin, Math.min(mMax, bucketMid(i)));
+		}
+		return mMax;
+	}
+
+	/**
+	 * Formats the usual percentiles, with values scaled by 1/divisor (e.g. 1e6 to show nanoseconds as msec.)
+	 */
+	public String percentileString(double divisor) {
+		return String.format("p50 %.3f, p90 %.3f, p99 %.3f, p99.9 %.3f, max %.3f",
+							 percentile(50) / divisor, percentile(90) / divisor, percentile(99) / divisor,
+							 percentile(99.9) / divisor, max() / divisor);
+	}
+
+	@Override
+	public String toString() {
+		return mCount + " values, mean " + String.format("%.1f", mean()) + ", " + percentileString(1.0);
+	}
+}
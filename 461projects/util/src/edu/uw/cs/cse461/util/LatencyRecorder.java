@@ -0,0 +1,80 @@
+package edu.uw.cs.cse461.util;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records values (typically latencies, in nanoseconds) from any number of threads, without locks or contended
+ * atomic operations.  Each recording thread gets its own shard, a set of Histogram buckets that only it writes.
+ * Writes are plain ordered stores (lazySet), so recording costs a few array updates.  Readers merge the shards
+ * into a Histogram when asked; they may miss values being recorded at the same moment, but never see torn ones.
+ * <p>
+ * There's no reset.  To measure an interval, take a snapshot at its start and subtract it from one taken at its end
+ * (see Histogram.minus()).  That way concurrent readers don't disturb each other, or the recording threads.
+ */
+public class LatencyRecorder {
+
+	/**
+	 * One thread's values.  Slots BUCKETS.. hold the count, sum, min and max.
+	 */
+	private static class Shard {
+		static final int COUNT = Histogram.BUCKETS;
+		static final int SUM = COUNT + 1;
+		static final int MIN = COUNT + 2;
+		static final int MAX = COUNT + 3;
+
+		final AtomicLongArray mSlots = new AtomicLongArray(Histogram.BUCKETS + 4);
+
+		Shard() {
+			mSlots.set(MIN, Long.MAX_VALUE);
+			mSlots.set(MAX, Long.MIN_VALUE);
+		}
+
+		/**
+		 * Called only by the owning thread
+		 */
+		void record(long value) {
+			int b = Histogram.bucket(value);
+			mSlots.lazySet(b, mSlots.get(b) + 1);
+			mSlots.lazySet(SUM, mSlots.get(SUM) + value);
+			if ( value < mSlots.get(MIN) ) mSlots.lazySet(MIN, value);
+			if ( value > mSlots.get(MAX) ) mSlots.lazySet(MAX, value);
+			// Written last, so a reader that sees the count sees the rest
+			mSlots.set(COUNT, mSlots.get(COUNT) + 1);
+		}
+
+		void addTo(Histogram h) {
+			long count = mSlots.get(COUNT);
+			if ( count == 0 ) return;
+			for (int i = 0; i < Histogram.BUCKETS; i++) h.mCounts[i] += mSlots.get(i);
+			h.mCount += count;
+			h.mSum += mSlots.get(SUM);
+			h.mMin = Math.min(h.mMin, mSlots.get(MIN));
+			h.mMax = Math.max(h.mMax, mSlots.get(MAX));
+		}
+	}
+
+	private final CopyOnWriteArrayList<Shard> mShards = new CopyOnWriteArrayList<Shard>();
+
+	private final ThreadLocal<Shard> mLocalShard = new ThreadLocal<Shard>() {
+		@Override
+		protected Shard initialValue() {
+			Shard shard = new Shard();
+			mShards.add(shard);
+			return shard;
+		}
+	};
+
+	public void record(long value) {
+		mLocalShard.get().record(value);
+	}
+
+	/**
+	 * Returns a histogram of all the values recorded so far.
+	 */
+	public Histogram snapshot() {
+		Histogram h = new Histogram();
+		for (Shard shard : mShards) shard.addTo(h);
+		return h;
+	}
+}
@@ -52,6 +52,14 @@ public class Log {
 		return old;
 	}
 	
+	/**
+	 * Returns whether a message at this level would be shown.  Lets a caller skip building a message
+	 * that's expensive to build (say, one that prints a large object) when it won't be shown.
+	 */
+	static public boolean isLoggable(String tag, DebugLevel level) {
+		return (mShowLog && level.toInt() >= mLevel) || level==DebugLevel.ASSERT;
+	}
+	
 	static public int v(String tag, String msg) { return _show(DebugLevel.VERBOSE, tag, msg); }
 	static public int d(String tag, String msg) { return _show(DebugLevel.DEBUG, tag, msg); }
 	static public int i(String tag, String msg) { return _show(DebugLevel.INFO, tag, msg); }
@@ -3,6 +3,9 @@ package edu.uw.cs.cse461.util;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This is a static class implementing a simple sample-based measurement facility.  Subclasses provide
@@ -11,6 +14,10 @@ import java.util.List;
  * <p>
  * Subclasses provide explicit support for sampling elapsed time (summarized by an arithmetic mean) and average
  * transfer rate (summarized by a harmonic mean).
+ * <p>
+ * Any number of threads may take samples at once.  A start() is matched with the stop() or abort() made by the
+ * same thread, so several threads can time the same key concurrently.  Elapsed times are kept in a LatencyRecorder,
+ * which records without locking and keeps a histogram, so their percentiles are available as well as the mean.
  * 
  * @author zahorjan
  *
@@ -31,23 +38,24 @@ public class SampledStatistic {
 		protected double mMaxSample = Double.MIN_VALUE;
 		protected double mMinSample = Double.MAX_VALUE;
 
-		protected void addSample(double sample) {
+		protected synchronized void addSample(double sample) {
 			mNumSamples++;
 			if ( sample < mMinSample ) mMinSample = sample;
 			if ( sample > mMaxSample ) mMaxSample = sample;
 		}
-		void abort() { mNumAborted++; }
+		synchronized void abort() { mNumAborted++; }
 		
 		abstract public double mean();
-		public double min() { return mMinSample; }
-		public double max() { return mMaxSample; }
+		public synchronized double min() { return mMinSample; }
+		public synchronized double max() { return mMaxSample; }
 		
-		public long nSamples() { return mNumSamples; }
-		public long nAborted() { return mNumAborted; }
-		public long nTrials() { return mNumAborted + mNumSamples; }
+		public synchronized long nSamples() { return mNumSamples; }
+		public synchronized long nAborted() { return mNumAborted; }
+		public long nTrials() { return nAborted() + nSamples(); }
 		
 		public double failureRate() {
-			if ( nTrials() > 0 ) return ((double)mNumAborted)/nTrials();
+			long nTrials = nTrials();
+			if ( nTrials > 0 ) return ((double)nAborted())/nTrials;
 			return 0.0;
 		}
 		
@@ -72,7 +80,7 @@ public class SampledStatistic {
 		double   	mSampleTotal = 0.0;
 		double  	mSquaredSampleTotal = 0.0;
 
-		public void addSample(double sample) {
+		public synchronized void addSample(double sample) {
 			super.addSample(sample);
 			mSampleTotal += sample;
 			mSquaredSampleTotal += sample*sample;
@@ -82,13 +90,65 @@ public class SampledStatistic {
 		 * Return the arithemtic mean.
 		 * @return Arithmetic mean of samples.  Returns 0.0 if no samples yet registered.
 		 */
-		public double mean() { return mSampleTotal / (mNumSamples>0?mNumSamples:1); 	}
+		public synchronized double mean() { return mSampleTotal / (mNumSamples>0?mNumSamples:1); 	}
 	}
 	//--------------------------------------------------------------------------------------------
 	
 	//--------------------------------------------------------------------------------------------
+	/**
+	 * Elapsed time samples, in msec.  They're held in a LatencyRecorder (in nsec.), rather than in the
+	 * ArithmeticMeanSet fields, so recording them doesn't lock, and their distribution is kept.  The
+	 * accessors merge the recorder's per-thread histograms each time they're called.
+	 */
 	public static class ElapsedTimeInterval extends ArithmeticMeanSet {
-		long   mStartTime = -1;
+		private static final double NSEC_PER_MSEC = 1000000.0;
+
+		private final LatencyRecorder mRecorder = new LatencyRecorder();
+		private final AtomicLong mAborted = new AtomicLong();
+
+		/**
+		 * Records a sample given in nanoseconds
+		 */
+		public void addNanos(long nsec) { mRecorder.record(nsec); }
+
+		@Override
+		public void addSample(double msec) { addNanos((long)(msec * NSEC_PER_MSEC)); }
+
+		@Override
+		void abort() { mAborted.incrementAndGet(); }
+
+		/**
+		 * Returns a histogram of the samples so far, in nanoseconds.  Subtract an earlier one (Histogram.minus())
+		 * to get the samples taken in between.
+		 */
+		public Histogram histogram() { return mRecorder.snapshot(); }
+
+		/**
+		 * Returns the sample below which the given percentage of samples lie, in msec.
+		 * @param percentile In [0, 100], e.g. 99.9
+		 */
+		public double percentile(double percentile) { return histogram().percentile(percentile) / NSEC_PER_MSEC; }
+
+		/**
+		 * Returns "p50 x, p90 x, p99 x, p99.9 x, max x", in msec.
+		 */
+		public String percentileString() { return histogram().percentileString(NSEC_PER_MSEC); }
+
+		@Override
+		public double mean() { return histogram().mean() / NSEC_PER_MSEC; }
+		@Override
+		public double min() { return histogram().min() / NSEC_PER_MSEC; }
+		@Override
+		public double max() { return histogram().max() / NSEC_PER_MSEC; }
+		@Override
+		public long nSamples() { return histogram().count(); }
+		@Override
+		public long nAborted() { return mAborted.get(); }
+
+		@Override
+		public String toString() {
+			return super.toString() + " {" + percentileString() + "}";
+		}
 	}
 	//--------------------------------------------------------------------------------------------
 	
@@ -99,7 +159,7 @@ public class SampledStatistic {
 		double   	mSampleTimeTotal = 0.0;   // total time spent in transfers
 		long		mSampleDataTotal = 0;     // total data transferred
 
-		public void addSample(double timeSample, long dataSample) {
+		public synchronized void addSample(double timeSample, long dataSample) {
 			if ( timeSample <= 0.0 ) throw new RuntimeException("Harmonic mean time sample must be greater than 0.0");
 			super.addSample(dataSample/timeSample);
 			mSampleTimeTotal += timeSample;
@@ -110,9 +170,9 @@ public class SampledStatistic {
 		 * Return the arithemtic mean.
 		 * @return Arithmetic mean of samples.  Returns 0.0 if no samples yet registered.
 		 */
-		public double mean() { return mSampleTimeTotal > 0.0 ? mSampleDataTotal / mSampleTimeTotal : 0.0; 	}
+		public synchronized double mean() { return mSampleTimeTotal > 0.0 ? mSampleDataTotal / mSampleTimeTotal : 0.0; 	}
 		
-		public String toString() {
+		public synchronized String toString() {
 			return super.toString() + " {" + mSampleTimeTotal + ", " + mSampleDataTotal + "}";
 		}
 	}
@@ -120,9 +180,7 @@ public class SampledStatistic {
 	
 	//--------------------------------------------------------------------------------------------
 	public static class TransferRateInterval extends HarmonicMean {
-		long   mStartTime = -1;
-		
-		public long getDataTotal() {
+		public synchronized long getDataTotal() {
 			return mSampleDataTotal;
 		}
 	}
@@ -133,7 +191,7 @@ public class SampledStatistic {
 	//--------------------------------------------------------------------------------------------
 	//--------------------------------------------------------------------------------------------
 
-	private static class SampleSetManager<T extends SampleSet> extends HashMap<String, T> {
+	private static class SampleSetManager<T extends SampleSet> extends ConcurrentHashMap<String, T> {
 
 		/**
 		 * Format a string containing simple measures of samples taken for all timers.
@@ -161,6 +219,36 @@ public class SampledStatistic {
 			return sb.toString();
 		}
 
+		/**
+		 * Returns the set for key, adding entry as that set if there isn't one yet.
+		 */
+		public T getOrAdd(String key, T entry) {
+			T existing = putIfAbsent(key, entry);
+			return existing != null ? existing : entry;
+		}
+	}
+
+	/**
+	 * The start times of the measurements the calling thread has in progress, by key
+	 */
+	private static class StartTimes extends ThreadLocal<Map<String, Long>> {
+		@Override
+		protected Map<String, Long> initialValue() { return new HashMap<String, Long>(); }
+
+		void start(String key) {
+			if ( get().containsKey(key) ) {
+				throw new RuntimeException("start(" + key + ") called but am already had a start call with no matching stop");
+			}
+			get().put(key, System.nanoTime());
+		}
+
+		/**
+		 * Ends the calling thread's measurement for key, returning its start time, or -1 if there was none.
+		 */
+		long end(String key) {
+			Long start = get().remove(key);
+			return start == null ? -1 : start;
+		}
 	}
 
 	//--------------------------------------------------------------------------------------------
@@ -182,6 +270,14 @@ public class SampledStatistic {
 		private static double MSEC_SCALE = 1.0/1000000.0;
 		
 		private static SampleSetManager<ElapsedTimeInterval> mSampleSetManager = new SampleSetManager<ElapsedTimeInterval>(); 
+		private static StartTimes mStartTimes = new StartTimes();
+		
+		private static ElapsedTimeInterval entry(String key) {
+			if ( key == null ) throw new RuntimeException("ElapsedTime key can't be null");
+			ElapsedTimeInterval entry = mSampleSetManager.get(key);
+			if ( entry == null ) entry = mSampleSetManager.getOrAdd(key, new ElapsedTimeInterval());
+			return entry;
+		}
 		
 		/**
 		 * Indicate the start of an elapsed time interval.  The interval should be terminated by calling stop()
@@ -189,17 +285,26 @@ public class SampledStatistic {
 		 * @param key The arbitary name of a timer (e.g., ElapsedTime.start("foo")).
 		 */
 		public static void start(String key) {
-			if ( key == null ) throw new RuntimeException("ElapsedTime key can't be null");
-			ElapsedTimeInterval entry = mSampleSetManager.get(key);
-			if ( entry == null ) {
-				entry = new ElapsedTimeInterval();
-				mSampleSetManager.put(key,  entry);
-			}
-			
-			if ( entry.mStartTime > 0 ) {
-				throw new RuntimeException("start(" + key + ") called but am already had a start call with no matching stop");
-			}
-			entry.mStartTime = System.nanoTime();
+			entry(key);
+			mStartTimes.start(key);
+		}
+		
+		/**
+		 * Records an elapsed time sample measured by the caller, without start() and stop().
+		 * @param key The name of the timer with which to record the sample.
+		 * @param nsec The sample, in nanoseconds.
+		 */
+		public static void record(String key, long nsec) {
+			entry(key).addNanos(nsec);
+		}
+
+		/**
+		 * Records an aborted trial, without start() and abort().  Any interval the calling thread has started
+		 * for key is unaffected.
+		 * @param key The name of the timer with which to record the aborted trial.
+		 */
+		public static void recordAbort(String key) {
+			entry(key).abort();
 		}
 
 		/**
@@ -211,11 +316,11 @@ public class SampledStatistic {
 		public static double stop(String key) {
 			if ( key == null ) throw new RuntimeException("ElapsedTime key can't be null");
 			ElapsedTimeInterval entry = mSampleSetManager.get(key);
-			if ( entry == null || entry.mStartTime < 0 ) throw new RuntimeException("stop(" + key + ") called but there was no matching start");
-			double sample = (System.nanoTime() - entry.mStartTime) * MSEC_SCALE;
-			entry.mStartTime = -1;
-			entry.addSample(sample);
-			return sample;
+			long start = mStartTimes.end(key);
+			if ( entry == null || start < 0 ) throw new RuntimeException("stop(" + key + ") called but there was no matching start");
+			long nsec = System.nanoTime() - start;
+			entry.addNanos(nsec);
+			return nsec * MSEC_SCALE;
 		}
 		
 		/**
@@ -229,9 +334,9 @@ public class SampledStatistic {
 		public static double abort(String key) {
 			if ( key == null ) throw new RuntimeException("ElapsedTime key can't be null");
 			ElapsedTimeInterval entry = mSampleSetManager.get(key);
-			if ( entry == null || entry.mStartTime < 0 ) return 0.0;
-			double sample = (System.nanoTime() - entry.mStartTime) * MSEC_SCALE;
-			entry.mStartTime = -1;
+			long start = mStartTimes.end(key);
+			if ( entry == null || start < 0 ) return 0.0;
+			double sample = (System.nanoTime() - start) * MSEC_SCALE;
 
 			entry.abort();
 			return sample;
@@ -243,9 +348,9 @@ public class SampledStatistic {
 		}
 
 		/**
-		 * Reset all sample sets.
+		 * Reset all sample sets, and any measurements the calling thread has started.
 		 */
-		public static void clear() { mSampleSetManager.clear(); }
+		public static void clear() { mSampleSetManager.clear(); mStartTimes.get().clear(); }
 		
 		/**
 		 * Returns String with summary information on all keys
@@ -277,6 +382,7 @@ public class SampledStatistic {
 		private static double MSEC_SCALE = 1.0/1000000.0;
 
 		private static SampleSetManager<TransferRateInterval> mSampleSetManager = new SampleSetManager<TransferRateInterval>(); 
+		private static StartTimes mStartTimes = new StartTimes();
 
 		/**
 		 * Indicate the start of an elapsed time interval.  The interval should be terminated by calling stop()
@@ -285,16 +391,8 @@ public class SampledStatistic {
 		 */
 		public static void start(String key) {
 			if ( key == null ) throw new RuntimeException("ElapsedTime key can't be null");
-			TransferRateInterval entry = mSampleSetManager.get(key);
-			if ( entry == null ) {
-				entry = new TransferRateInterval();
-				mSampleSetManager.put(key,  entry);
-			}
-
-			if ( entry.mStartTime > 0 ) {
-				throw new RuntimeException("start(" + key + ") called but am already had a start call with no matching stop");
-			}
-			entry.mStartTime = System.nanoTime();
+			if ( mSampleSetManager.get(key) == null ) mSampleSetManager.getOrAdd(key, new TransferRateInterval());
+			mStartTimes.start(key);
 		}
 
 		/**
@@ -307,9 +405,9 @@ public class SampledStatistic {
 		public static double stop(String key, long dataAmount) {
 			if ( key == null ) throw new RuntimeException("ElapsedTime key can't be null");
 			TransferRateInterval entry = mSampleSetManager.get(key);
-			if ( entry == null || entry.mStartTime < 0 ) throw new RuntimeException("stop(" + key + ") called but there was no matching start");
-			double timeSample = (System.nanoTime() - entry.mStartTime) * MSEC_SCALE;
-			entry.mStartTime = -1;
+			long start = mStartTimes.end(key);
+			if ( entry == null || start < 0 ) throw new RuntimeException("stop(" + key + ") called but there was no matching start");
+			double timeSample = (System.nanoTime() - start) * MSEC_SCALE;
 			entry.addSample(timeSample, dataAmount);
 			return timeSample > 0.0 ? dataAmount / timeSample : Double.MAX_VALUE;
 		}
@@ -325,10 +423,10 @@ public class SampledStatistic {
 		public static double abort(String key, long dataAmount) {
 			if ( key == null ) throw new RuntimeException("ElapsedTime key can't be null");
 			TransferRateInterval entry = mSampleSetManager.get(key);
-			if ( entry == null || entry.mStartTime < 0 ) return 0.0;
-			double sample = (System.nanoTime() - entry.mStartTime) * MSEC_SCALE;
+			long start = mStartTimes.end(key);
+			if ( entry == null || start < 0 ) return 0.0;
+			double sample = (System.nanoTime() - start) * MSEC_SCALE;
 			sample = sample > 0.0 ? sample = dataAmount / sample : Double.MAX_VALUE;
-			entry.mStartTime = -1;
 
 			entry.abort();
 			return sample;
@@ -340,9 +438,9 @@ public class SampledStatistic {
 		}
 
 		/**
-		 * Reset all sample sets.
+		 * Reset all sample sets, and any measurements the calling thread has started.
 		 */
-		public static void clear() { mSampleSetManager.clear(); }
+		public static void clear() { mSampleSetManager.clear(); mStartTimes.get().clear(); }
 
 		/**
 		 * Return summary information on all keys
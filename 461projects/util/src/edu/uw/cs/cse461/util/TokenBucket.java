@@ -0,0 +1,56 @@
+package edu.uw.cs.cse461.util;
+
+/**
+ * A token bucket, for pacing a sender to an average rate.
+ * <p>
+ * Tokens (bytes, say) accumulate at rate per second, up to burst of them.  take(n) waits until
+ * n tokens are available and removes them.  Sleeps are at least a millisecond, so at high rates
+ * the sender goes in bursts of up to burst tokens rather than one send at a time.  Taking more
+ * than burst tokens at once waits for a full bucket and leaves it in debt, so the rate still holds.
+ * <p>
+ * Not thread safe: a bucket paces one sender.
+ */
+public class TokenBucket {
+	private final double mRate;		// tokens per nanosecond
+	private final long mBurst;
+	private double mTokens;
+	private long mLastRefill;
+
+	/**
+	 * @param rate Tokens added per second.  Must be positive.
+	 * @param burst The most tokens the bucket holds.  Should be at least the largest take() argument.
+	 */
+	public TokenBucket(long rate, long burst) {
+		if ( rate <= 0 ) throw new IllegalArgumentException("TokenBucket rate must be positive: " + rate);
+		if ( burst <= 0 ) throw new IllegalArgumentException("TokenBucket burst must be positive: " + burst);
+		mRate = rate / 1.0e9;
+		mBurst = burst;
+		mTokens = burst;
+		mLastRefill = System.nanoTime();
+	}
+
+	/**
+	 * Waits until n tokens are available, then takes them.  If n is more than burst, waits until
+	 * the bucket is full instead, and the tokens go negative.
+	 */
+	public void take(long n) throws InterruptedException {
+		// The bucket never holds more than burst
+		long needed = Math.min(n, mBurst);
+		while ( true ) {
+			long now = System.nanoTime();
+			mTokens = Math.min(mBurst, mTokens + (now - mLastRefill) * mRate);
+			mLastRefill = now;
+			if ( mTokens >= needed ) {
+				mTokens -= n;
+				return;
+			}
+			long waitNsec = (long)((needed - mTokens) / mRate);
+			Thread.sleep(Math.max(1, waitNsec / 1000000));
+		}
+	}
+
+	@Override
+	public String toString() {
+		return (long)(mRate * 1.0e9) + " tokens/sec, burst " + mBurst;
+	}
+}